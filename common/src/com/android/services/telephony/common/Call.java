@@ -93,6 +93,25 @@ public final class Call implements Parcelable {
                 | RESPOND_VIA_TEXT | MUTE | GENERIC_CONFERENCE;
     }
 
+    /**
+     * Bit mask of the fields carried by a Call parcel. A Call created from a full snapshot carries
+     * {@link #ALL}; a delta created through {@link Call#createDelta} carries only the fields that
+     * differ from the previously sent copy and must be applied with {@link Call#applyDelta} onto
+     * the last known copy of the call.
+     */
+    public static class Fields {
+        public static final int STATE            = 0x00000001;
+        public static final int DISCONNECT_CAUSE = 0x00000002;
+        public static final int CAPABILITIES     = 0x00000004;
+        public static final int CONNECT_TIME     = 0x00000008;
+        public static final int CHILDREN         = 0x00000010;
+        public static final int GATEWAY          = 0x00000020;
+        public static final int IDENTIFICATION   = 0x00000040;
+
+        public static final int ALL = STATE | DISCONNECT_CAUSE | CAPABILITIES | CONNECT_TIME
+                | CHILDREN | GATEWAY | IDENTIFICATION;
+    }
+
     /**
      * Copy of states found in Connection object since Connection object is not available to the UI
      * code.
@@ -193,6 +212,9 @@ public final class Call implements Parcelable {
     // Gateway service package name
     private String mGatewayPackage;
 
+    // Fields that hold valid values. Anything other than Fields.ALL means this is a delta.
+    private int mFields = Fields.ALL;
+
     public Call(int callId) {
         mCallId = callId;
         mIdentification = new CallIdentification(mCallId);
@@ -208,6 +230,96 @@ public final class Call implements Parcelable {
         mChildCallIds = new TreeSet<Integer>(call.mChildCallIds);
         mGatewayNumber = call.mGatewayNumber;
         mGatewayPackage = call.mGatewayPackage;
+        mFields = call.mFields;
+    }
+
+    /**
+     * Creates a delta holding only the fields of current that differ from previous, which must be
+     * the copy of the same call last sent to the receiver.
+     */
+    public static Call createDelta(Call previous, Call current) {
+        final Call delta = new Call(current.mCallId);
+        int fields = 0;
+
+        if (previous.mState != current.mState) {
+            delta.mState = current.mState;
+            fields |= Fields.STATE;
+        }
+        if (previous.mDisconnectCause != current.mDisconnectCause) {
+            delta.mDisconnectCause = current.mDisconnectCause;
+            fields |= Fields.DISCONNECT_CAUSE;
+        }
+        if (previous.mCapabilities != current.mCapabilities) {
+            delta.mCapabilities = current.mCapabilities;
+            fields |= Fields.CAPABILITIES;
+        }
+        if (previous.mConnectTime != current.mConnectTime) {
+            delta.mConnectTime = current.mConnectTime;
+            fields |= Fields.CONNECT_TIME;
+        }
+        if (!previous.mChildCallIds.equals(current.mChildCallIds)) {
+            delta.mChildCallIds.addAll(current.mChildCallIds);
+            fields |= Fields.CHILDREN;
+        }
+        if (!Objects.equal(previous.mGatewayNumber, current.mGatewayNumber) ||
+                !Objects.equal(previous.mGatewayPackage, current.mGatewayPackage)) {
+            delta.mGatewayNumber = current.mGatewayNumber;
+            delta.mGatewayPackage = current.mGatewayPackage;
+            fields |= Fields.GATEWAY;
+        }
+        if (!previous.mIdentification.equals(current.mIdentification)) {
+            delta.mIdentification = new CallIdentification(current.mIdentification);
+            fields |= Fields.IDENTIFICATION;
+        }
+
+        delta.mFields = fields;
+        return delta;
+    }
+
+    /**
+     * Copies the fields carried by the delta onto this call.
+     */
+    public void applyDelta(Call delta) {
+        if (delta.mCallId != mCallId) {
+            throw new IllegalArgumentException("Delta for call " + delta.mCallId +
+                    " applied to call " + mCallId);
+        }
+
+        final int fields = delta.mFields;
+        if ((fields & Fields.STATE) != 0) {
+            mState = delta.mState;
+        }
+        if ((fields & Fields.DISCONNECT_CAUSE) != 0) {
+            mDisconnectCause = delta.mDisconnectCause;
+        }
+        if ((fields & Fields.CAPABILITIES) != 0) {
+            mCapabilities = delta.mCapabilities;
+        }
+        if ((fields & Fields.CONNECT_TIME) != 0) {
+            mConnectTime = delta.mConnectTime;
+        }
+        if ((fields & Fields.CHILDREN) != 0) {
+            mChildCallIds = new TreeSet<Integer>(delta.mChildCallIds);
+        }
+        if ((fields & Fields.GATEWAY) != 0) {
+            mGatewayNumber = delta.mGatewayNumber;
+            mGatewayPackage = delta.mGatewayPackage;
+        }
+        if ((fields & Fields.IDENTIFICATION) != 0) {
+            mIdentification = new CallIdentification(delta.mIdentification);
+        }
+    }
+
+    /**
+     * Returns true if this call only carries the fields that changed since the last update and
+     * has to be applied onto the last known copy of the call with {@link #applyDelta}.
+     */
+    public boolean isDelta() {
+        return mFields != Fields.ALL;
+    }
+
+    public int getFields() {
+        return mFields;
     }
 
     public int getCallId() {
@@ -337,14 +449,33 @@ public final class Call implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(mCallId);
-        dest.writeInt(mState);
-        dest.writeString(getDisconnectCause().toString());
-        dest.writeInt(getCapabilities());
-        dest.writeLong(getConnectTime());
-        dest.writeIntArray(Ints.toArray(mChildCallIds));
-        dest.writeString(getGatewayNumber());
-        dest.writeString(getGatewayPackage());
-        dest.writeParcelable(mIdentification, 0);
+        dest.writeInt(mFields);
+        if ((mFields & Fields.STATE) != 0) {
+            dest.writeInt(mState);
+        }
+        if ((mFields & Fields.DISCONNECT_CAUSE) != 0) {
+            // The raw cause, which getDisconnectCause() masks on the receiving side as well.  It
+            // may be set before the state changes, and a delta sent with that change relies on
+            // the receiver already having it.  Written by name, so that the two sides need not
+            // agree on the order of the values.
+            dest.writeString(mDisconnectCause.toString());
+        }
+        if ((mFields & Fields.CAPABILITIES) != 0) {
+            dest.writeInt(getCapabilities());
+        }
+        if ((mFields & Fields.CONNECT_TIME) != 0) {
+            dest.writeLong(getConnectTime());
+        }
+        if ((mFields & Fields.CHILDREN) != 0) {
+            dest.writeIntArray(Ints.toArray(mChildCallIds));
+        }
+        if ((mFields & Fields.GATEWAY) != 0) {
+            dest.writeString(getGatewayNumber());
+            dest.writeString(getGatewayPackage());
+        }
+        if ((mFields & Fields.IDENTIFICATION) != 0) {
+            mIdentification.writeToParcel(dest, flags);
+        }
     }
 
     /**
@@ -352,14 +483,31 @@ public final class Call implements Parcelable {
      */
     private Call(Parcel in) {
         mCallId = in.readInt();
-        mState = in.readInt();
-        mDisconnectCause = DisconnectCause.valueOf(in.readString());
-        mCapabilities = in.readInt();
-        mConnectTime = in.readLong();
-        mChildCallIds.addAll(Ints.asList(in.createIntArray()));
-        mGatewayNumber = in.readString();
-        mGatewayPackage = in.readString();
-        mIdentification = in.readParcelable(CallIdentification.class.getClassLoader());
+        mFields = in.readInt();
+        if ((mFields & Fields.STATE) != 0) {
+            mState = in.readInt();
+        }
+        if ((mFields & Fields.DISCONNECT_CAUSE) != 0) {
+            mDisconnectCause = DisconnectCause.valueOf(in.readString());
+        }
+        if ((mFields & Fields.CAPABILITIES) != 0) {
+            mCapabilities = in.readInt();
+        }
+        if ((mFields & Fields.CONNECT_TIME) != 0) {
+            mConnectTime = in.readLong();
+        }
+        if ((mFields & Fields.CHILDREN) != 0) {
+            mChildCallIds.addAll(Ints.asList(in.createIntArray()));
+        }
+        if ((mFields & Fields.GATEWAY) != 0) {
+            mGatewayNumber = in.readString();
+            mGatewayPackage = in.readString();
+        }
+        if ((mFields & Fields.IDENTIFICATION) != 0) {
+            mIdentification = CallIdentification.CREATOR.createFromParcel(in);
+        } else {
+            mIdentification = new CallIdentification(mCallId);
+        }
     }
 
     @Override
@@ -396,6 +544,7 @@ public final class Call implements Parcelable {
                 .add("mGatewayNumber", MoreStrings.toSafeString(mGatewayNumber))
                 .add("mGatewayPackage", mGatewayPackage)
                 .add("mIdentification", mIdentification)
+                .add("mFields", mFields)
                 .toString();
     }
 }
@@ -90,6 +90,28 @@ public final class CallIdentification implements Parcelable {
         mCnapName = cnapName;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CallIdentification)) {
+            return false;
+        }
+        final CallIdentification other = (CallIdentification) o;
+        return mCallId == other.mCallId &&
+                mNumberPresentation == other.mNumberPresentation &&
+                mCnapNamePresentation == other.mCnapNamePresentation &&
+                Objects.equal(mNumber, other.mNumber) &&
+                Objects.equal(mCnapName, other.mCnapName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(mCallId, mNumber, mNumberPresentation, mCnapName,
+                mCnapNamePresentation);
+    }
+
     /**
      * Parcelable implementation
      */
@@ -30,9 +30,11 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.ServiceState;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.telephony.Call;
@@ -44,8 +46,9 @@ import com.android.internal.telephony.CallManager;
 
 import com.android.phone.CallGatewayManager.RawGatewayInfo;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.PrintWriter;
 import java.util.List;
 
 /**
@@ -92,12 +95,18 @@ public class BluetoothPhoneService extends Service {
     private boolean mCdmaIsSecondCallActive = false;
     private boolean mCdmaCallsSwapped = false;
 
-    private long[] mClccTimestamps; // Timestamps associated with each clcc index
-    private boolean[] mClccUsed;     // Is this clcc index in use
-
     private static final int GSM_MAX_CONNECTIONS = 6;  // Max connections allowed by GSM
     private static final int CDMA_MAX_CONNECTIONS = 2;  // Max connections allowed by CDMA
 
+    // Call state changes closer together than this are reported to the headset as one.
+    private static final int HEADSET_STATE_WINDOW_MILLIS = 50;
+
+    private final HeadsetStatePublisher mHeadsetStatePublisher = new HeadsetStatePublisher();
+
+    // CLCC indexes of the GSM connections, kept up to date on call state changes.
+    private final ClccIndex<Connection> mClccIndex =
+            new ClccIndex<Connection>(GSM_MAX_CONNECTIONS);
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -131,11 +140,6 @@ public class BluetoothPhoneService extends Service {
         mCM.registerForDisconnect(mHandler, PHONE_ON_DISCONNECT, null);
 
         // TODO(BT) registerForIncomingRing?
-        mClccTimestamps = new long[GSM_MAX_CONNECTIONS];
-        mClccUsed = new boolean[GSM_MAX_CONNECTIONS];
-        for (int i = 0; i < GSM_MAX_CONNECTIONS; i++) {
-            mClccUsed[i] = false;
-        }
     }
 
     @Override
@@ -158,6 +162,12 @@ public class BluetoothPhoneService extends Service {
         return mBinder;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("BluetoothPhoneService:");
+        mHeadsetStatePublisher.dump(pw);
+    }
+
     private static final int PRECISE_CALL_STATE_CHANGED = 1;
     private static final int PHONE_CDMA_CALL_WAITING = 2;
     private static final int LIST_CURRENT_CALLS = 3;
@@ -165,6 +175,7 @@ public class BluetoothPhoneService extends Service {
     private static final int CDMA_SWAP_SECOND_CALL_STATE = 5;
     private static final int CDMA_SET_SECOND_CALL_STATE = 6;
     private static final int PHONE_ON_DISCONNECT = 7;
+    private static final int FLUSH_HEADSET_STATE = 8;
 
     private Handler mHandler = new Handler() {
         @Override
@@ -192,6 +203,9 @@ public class BluetoothPhoneService extends Service {
                 case CDMA_SET_SECOND_CALL_STATE:
                     handleCdmaSetSecondCallState((Boolean) msg.obj);
                     break;
+                case FLUSH_HEADSET_STATE:
+                    mHeadsetStatePublisher.flush();
+                    break;
             }
         }
     };
@@ -211,13 +225,9 @@ public class BluetoothPhoneService extends Service {
     }
 
     private void handlePreciseCallStateChange(Connection connection) {
-        // get foreground call state
-        int oldNumActive = mNumActive;
-        int oldNumHeld = mNumHeld;
-        Call.State oldRingingCallState = mRingingCallState;
-        Call.State oldForegroundCallState = mForegroundCallState;
-        CallNumber oldRingNumber = mRingNumber;
+        updateLiveConnections();
 
+        // get foreground call state
         Call foregroundCall = mCM.getActiveFgCall();
 
         if (VDBG)
@@ -264,13 +274,13 @@ public class BluetoothPhoneService extends Service {
                             CdmaPhoneCallState.PhoneCallState.THRWAY_ACTIVE)
                                 && app.cdmaPhoneCallState.IsThreeWayCallOrigStateDialing()) {
                         // Mimic dialing, put the call on hold, alerting
-                        mBluetoothHeadset.phoneStateChanged(0, mNumHeld,
+                        mHeadsetStatePublisher.sendNow(new HeadsetState(0, mNumHeld,
                             convertCallState(Call.State.IDLE, Call.State.DIALING),
-                            mRingNumber.mNumber, mRingNumber.mType);
+                            mRingNumber.mNumber, mRingNumber.mType));
 
-                        mBluetoothHeadset.phoneStateChanged(0, mNumHeld,
+                        mHeadsetStatePublisher.sendNow(new HeadsetState(0, mNumHeld,
                             convertCallState(Call.State.IDLE, Call.State.ALERTING),
-                            mRingNumber.mNumber, mRingNumber.mType);
+                            mRingNumber.mNumber, mRingNumber.mType));
 
                     }
 
@@ -285,9 +295,9 @@ public class BluetoothPhoneService extends Service {
                               CdmaPhoneCallState.PhoneCallState.THRWAY_ACTIVE) {
                         log("CDMA 3way conf call. mNumActive: " + mNumActive +
                             " mNumHeld: " + mNumHeld);
-                        mBluetoothHeadset.phoneStateChanged(mNumActive, mNumHeld,
+                        mHeadsetStatePublisher.sendNow(new HeadsetState(mNumActive, mNumHeld,
                             convertCallState(Call.State.IDLE, mForegroundCallState),
-                            mRingNumber.mNumber, mRingNumber.mType);
+                            mRingNumber.mNumber, mRingNumber.mType));
                     }
                 }
                 mCdmaThreeWayCallState = currCdmaThreeWayCallState;
@@ -308,17 +318,14 @@ public class BluetoothPhoneService extends Service {
             mBgndEarliestConnectionTime = backgroundCall.getEarliestConnectTime();
         }
 
-        if (mNumActive != oldNumActive || mNumHeld != oldNumHeld ||
-            mRingingCallState != oldRingingCallState ||
-            mForegroundCallState != oldForegroundCallState ||
-            !mRingNumber.equalTo(oldRingNumber) ||
-            callsSwitched) {
-            if (mBluetoothHeadset != null) {
-                mBluetoothHeadset.phoneStateChanged(mNumActive, mNumHeld,
-                    convertCallState(mRingingCallState, mForegroundCallState),
-                    mRingNumber.mNumber, mRingNumber.mType);
-            }
-        }
+        // A swap does not change the state, but the headset still needs to hear about it.
+        mHeadsetStatePublisher.publish(getHeadsetState(), callsSwitched);
+    }
+
+    private HeadsetState getHeadsetState() {
+        return new HeadsetState(mNumActive, mNumHeld,
+                convertCallState(mRingingCallState, mForegroundCallState),
+                mRingNumber.mNumber, mRingNumber.mType);
     }
 
     private void handleListCurrentCalls() {
@@ -342,11 +349,7 @@ public class BluetoothPhoneService extends Service {
     }
 
     private void handleQueryPhoneState() {
-        if (mBluetoothHeadset != null) {
-            mBluetoothHeadset.phoneStateChanged(mNumActive, mNumHeld,
-                convertCallState(mRingingCallState, mForegroundCallState),
-                mRingNumber.mNumber, mRingNumber.mType);
-        }
+        mHeadsetStatePublisher.sendNow(getHeadsetState());
     }
 
     private int getNumHeldUmts() {
@@ -420,15 +423,128 @@ public class BluetoothPhoneService extends Service {
             mNumber = number;
             mType = type;
         }
+    }
 
-        private boolean equalTo(CallNumber callNumber)
-        {
-            if (mType != callNumber.mType) return false;
+    /**
+     * What phoneStateChanged() reports to the headset.
+     */
+    private static final class HeadsetState {
+        final int mNumActive;
+        final int mNumHeld;
+        final int mCallState;
+        final String mNumber;
+        final int mType;
+
+        HeadsetState(int numActive, int numHeld, int callState, String number, int type) {
+            mNumActive = numActive;
+            mNumHeld = numHeld;
+            mCallState = callState;
+            mNumber = number;
+            mType = type;
+        }
 
-            if (mNumber != null && mNumber.compareTo(callNumber.mNumber) == 0) {
-                return true;
+        boolean sameAs(HeadsetState other) {
+            return other != null && mNumActive == other.mNumActive
+                    && mNumHeld == other.mNumHeld && mCallState == other.mCallState
+                    && TextUtils.equals(mNumber, other.mNumber) && mType == other.mType;
+        }
+    }
+
+    /**
+     * Sends call state changes to the headset.  Each indication is an IPC to the Bluetooth
+     * process, so only changes are sent, and changes arriving within
+     * HEADSET_STATE_WINDOW_MILLIS of the last indication are collapsed into the latest one.
+     * The first change after a quiet period goes out right away.  Only used on the main thread.
+     */
+    private final class HeadsetStatePublisher {
+        private HeadsetState mLastSent;
+        private long mLastSentTime;
+        private HeadsetState mPending;
+        private boolean mPendingForced;
+
+        private int mSentCount;
+        private int mSuppressedCount;
+
+        /**
+         * Reports the current state.
+         *
+         * @param force Send it even if the headset was already told about the same state.
+         */
+        void publish(HeadsetState state, boolean force) {
+            final HeadsetState latest = mPending != null ? mPending : mLastSent;
+            if (!force && !mPendingForced && state.sameAs(latest)) {
+                return;
+            }
+            if (mPending != null) {
+                // The pending state never makes it to the headset.
+                mSuppressedCount++;
+            }
+            mPending = state;
+            mPendingForced |= force;
+
+            if (SystemClock.uptimeMillis() - mLastSentTime >= HEADSET_STATE_WINDOW_MILLIS) {
+                flush();
+            } else if (!mHandler.hasMessages(FLUSH_HEADSET_STATE)) {
+                mHandler.sendEmptyMessageAtTime(FLUSH_HEADSET_STATE,
+                        mLastSentTime + HEADSET_STATE_WINDOW_MILLIS);
             }
-            return false;
+        }
+
+        /**
+         * Sends the state right away, in order with the indications sent before.  Any pending
+         * state is older than this one and is dropped.
+         */
+        void sendNow(HeadsetState state) {
+            mHandler.removeMessages(FLUSH_HEADSET_STATE);
+            if (mPending != null) {
+                mSuppressedCount++;
+                mPending = null;
+                mPendingForced = false;
+            }
+            send(state);
+        }
+
+        void flush() {
+            mHandler.removeMessages(FLUSH_HEADSET_STATE);
+            if (mPending == null) {
+                return;
+            }
+            final HeadsetState state = mPending;
+            final boolean force = mPendingForced;
+            mPending = null;
+            mPendingForced = false;
+
+            if (!force && state.sameAs(mLastSent)) {
+                // Changed and changed back within the window.
+                mSuppressedCount++;
+                return;
+            }
+            send(state);
+        }
+
+        private void send(HeadsetState state) {
+            if (mBluetoothHeadset == null) {
+                // Nothing was sent, so the same state must go out once there is a headset.
+                return;
+            }
+            mBluetoothHeadset.phoneStateChanged(state.mNumActive, state.mNumHeld,
+                    state.mCallState, state.mNumber, state.mType);
+            mLastSent = state;
+            mLastSentTime = SystemClock.uptimeMillis();
+            mSentCount++;
+        }
+
+        /**
+         * Forgets what was sent, for when the headset service goes away; a new one has not
+         * been told anything yet.
+         */
+        void reset() {
+            mLastSent = null;
+        }
+
+        void dump(PrintWriter pw) {
+            pw.println("  headset state indications sent: " + mSentCount
+                    + ", suppressed: " + mSuppressedCount);
         }
     }
 
@@ -439,79 +555,41 @@ public class BluetoothPhoneService extends Service {
         }
         public void onServiceDisconnected(int profile) {
             mBluetoothHeadset = null;
+            mHeadsetStatePublisher.reset();
         }
     };
 
-    private void listCurrentCallsGsm() {
-        // Collect all known connections
-        // clccConnections isindexed by CLCC index
-        Connection[] clccConnections = new Connection[GSM_MAX_CONNECTIONS];
-        LinkedList<Connection> newConnections = new LinkedList<Connection>();
-        LinkedList<Connection> connections = new LinkedList<Connection>();
-
-        Call foregroundCall = mCM.getActiveFgCall();
-        Call backgroundCall = mCM.getFirstActiveBgCall();
-        Call ringingCall = mCM.getFirstActiveRingingCall();
-
-        if (ringingCall.getState().isAlive()) {
-            connections.addAll(ringingCall.getConnections());
-        }
-        if (foregroundCall.getState().isAlive()) {
-            connections.addAll(foregroundCall.getConnections());
-        }
-        if (backgroundCall.getState().isAlive()) {
-            connections.addAll(backgroundCall.getConnections());
-        }
+    /**
+     * Reports the connections of the live ringing, foreground and background calls to
+     * mClccIndex.  Every change to them comes with a call state change, so the index always
+     * knows the current set when a CLCC request arrives.
+     */
+    private void updateLiveConnections() {
+        mClccIndex.clearLive();
+        addLiveConnections(mCM.getFirstActiveRingingCall());
+        addLiveConnections(mCM.getActiveFgCall());
+        addLiveConnections(mCM.getFirstActiveBgCall());
+    }
 
-        // Mark connections that we already known about
-        boolean clccUsed[] = new boolean[GSM_MAX_CONNECTIONS];
-        for (int i = 0; i < GSM_MAX_CONNECTIONS; i++) {
-            clccUsed[i] = mClccUsed[i];
-            mClccUsed[i] = false;
-        }
-        for (Connection c : connections) {
-            boolean found = false;
-            long timestamp = c.getCreateTime();
-            for (int i = 0; i < GSM_MAX_CONNECTIONS; i++) {
-                if (clccUsed[i] && timestamp == mClccTimestamps[i]) {
-                    mClccUsed[i] = true;
-                    found = true;
-                    clccConnections[i] = c;
-                    break;
-                }
-            }
-            if (!found) {
-                newConnections.add(c);
+    private void addLiveConnections(Call call) {
+        if (call.getState().isAlive()) {
+            final List<Connection> connections = call.getConnections();
+            for (int i = 0; i < connections.size(); i++) {
+                final Connection c = connections.get(i);
+                mClccIndex.addLive(c.getCreateTime(), c);
             }
         }
+    }
 
-        // Find a CLCC index for new connections
-        while (!newConnections.isEmpty()) {
-            // Find lowest empty index
-            int i = 0;
-            while (mClccUsed[i]) i++;
-            // Find earliest connection
-            long earliestTimestamp = newConnections.get(0).getCreateTime();
-            Connection earliestConnection = newConnections.get(0);
-            for (int j = 0; j < newConnections.size(); j++) {
-                long timestamp = newConnections.get(j).getCreateTime();
-                if (timestamp < earliestTimestamp) {
-                    earliestTimestamp = timestamp;
-                    earliestConnection = newConnections.get(j);
-                }
-            }
-
-            // update
-            mClccUsed[i] = true;
-            mClccTimestamps[i] = earliestTimestamp;
-            clccConnections[i] = earliestConnection;
-            newConnections.remove(earliestConnection);
-        }
+    private void listCurrentCallsGsm() {
+        // Assign indexes to connections that appeared since the last request, if any.
+        mClccIndex.commit();
 
         // Send CLCC response to Bluetooth headset service
-        for (int i = 0; i < clccConnections.length; i++) {
-            if (mClccUsed[i]) {
-                sendClccResponseGsm(i, clccConnections[i]);
+        for (int i = 0; i < mClccIndex.getCapacity(); i++) {
+            final Connection c = mClccIndex.get(i);
+            if (c != null) {
+                sendClccResponseGsm(i, c);
             }
         }
     }
@@ -3,7 +3,6 @@ package com.android.phone;
 import static com.android.phone.TimeConsumingPreferenceActivity.RESPONSE_ERROR;
 import com.android.internal.telephony.CommandException;
 import com.android.internal.telephony.CommandsInterface;
-import com.android.internal.telephony.Phone;
 
 import android.content.Context;
 import android.os.AsyncResult;
@@ -23,7 +22,7 @@ public class CLIRListPreference extends ListPreference {
     private final boolean DBG = (PhoneGlobals.DBG_LEVEL >= 2);
 
     private final MyHandler mHandler = new MyHandler();
-    private final Phone mPhone;
+    private final SuppServiceQueryEngine mQueryEngine;
     private TimeConsumingPreferenceListener mTcpListener;
 
     int clirArray[];
@@ -31,7 +30,7 @@ public class CLIRListPreference extends ListPreference {
     public CLIRListPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
 
-        mPhone = PhoneGlobals.getPhone();
+        mQueryEngine = PhoneGlobals.getInstance().getSuppServiceQueryEngine();
     }
 
     public CLIRListPreference(Context context) {
@@ -42,7 +41,7 @@ public class CLIRListPreference extends ListPreference {
     protected void onDialogClosed(boolean positiveResult) {
         super.onDialogClosed(positiveResult);
 
-        mPhone.setOutgoingCallerIdDisplay(findIndexOfValue(getValue()),
+        mQueryEngine.setOutgoingCallerIdDisplay(findIndexOfValue(getValue()),
                 mHandler.obtainMessage(MyHandler.MESSAGE_SET_CLIR));
         if (mTcpListener != null) {
             mTcpListener.onStarted(this, false);
@@ -52,9 +51,16 @@ public class CLIRListPreference extends ListPreference {
     /* package */ void init(TimeConsumingPreferenceListener listener, boolean skipReading) {
         mTcpListener = listener;
         if (!skipReading) {
-            mPhone.getOutgoingCallerIdDisplay(mHandler.obtainMessage(MyHandler.MESSAGE_GET_CLIR,
+            mQueryEngine.getOutgoingCallerIdDisplay(mHandler.obtainMessage(
+                    MyHandler.MESSAGE_GET_CLIR,
                     MyHandler.MESSAGE_GET_CLIR, MyHandler.MESSAGE_GET_CLIR));
-            if (mTcpListener != null) {
+
+            // Show the last value read while the network is asked again.
+            int[] cachedClirArray = mQueryEngine.getCachedOutgoingCallerIdDisplay();
+            if (cachedClirArray != null) {
+                handleGetCLIRResult(cachedClirArray);
+                setEnabled(false);
+            } else if (mTcpListener != null) {
                 mTcpListener.onStarted(this, true);
             }
         }
@@ -163,7 +169,7 @@ public class CLIRListPreference extends ListPreference {
             }
             if (DBG) Log.d(LOG_TAG, "handleSetCallWaitingResponse: re get");
 
-            mPhone.getOutgoingCallerIdDisplay(obtainMessage(MESSAGE_GET_CLIR,
+            mQueryEngine.getOutgoingCallerIdDisplay(obtainMessage(MESSAGE_GET_CLIR,
                     MESSAGE_SET_CLIR, MESSAGE_SET_CLIR, ar.exception));
         }
     }
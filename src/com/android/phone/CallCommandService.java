@@ -58,6 +58,7 @@ class CallCommandService extends ICallCommandService.Stub {
      */
     @Override
     public void answerCall(int callId) {
+        final long traceStart = CallTracer.begin();
         try {
             if (mCallManager.hasActiveFgCall() && mCallManager.hasActiveBgCall()) {
                 PhoneUtils.answerAndEndActive(mCallManager,
@@ -70,6 +71,8 @@ class CallCommandService extends ICallCommandService.Stub {
             }
         } catch (Exception e) {
             Log.e(TAG, "Error during answerCall().", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_ANSWER, traceStart);
         }
     }
 
@@ -78,6 +81,7 @@ class CallCommandService extends ICallCommandService.Stub {
      */
     @Override
     public void rejectCall(Call call, boolean rejectWithMessage, String message) {
+        final long traceStart = CallTracer.begin();
         try {
             int callId = Call.INVALID_CALL_ID;
             String phoneNumber = "";
@@ -99,11 +103,14 @@ class CallCommandService extends ICallCommandService.Stub {
             }
         } catch (Exception e) {
             Log.e(TAG, "Error during rejectCall().", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_REJECT, traceStart);
         }
     }
 
     @Override
     public void disconnectCall(int callId) {
+        final long traceStart = CallTracer.begin();
         try {
             CallResult result = mCallModeler.getCallWithId(callId);
             if (DBG) Log.d(TAG, "disconnectCall " + result.getCall());
@@ -120,11 +127,14 @@ class CallCommandService extends ICallCommandService.Stub {
             }
         } catch (Exception e) {
             Log.e(TAG, "Error during disconnectCall().", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_DISCONNECT, traceStart);
         }
     }
 
     @Override
     public void separateCall(int callId) {
+        final long traceStart = CallTracer.begin();
         try {
             CallResult result = mCallModeler.getCallWithId(callId);
             if (DBG) Log.d(TAG, "disconnectCall " + result.getCall());
@@ -137,11 +147,14 @@ class CallCommandService extends ICallCommandService.Stub {
             }
         } catch (Exception e) {
             Log.e(TAG, "Error trying to separate call.", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_CALL_CONTROL, traceStart);
         }
     }
 
     @Override
     public void hold(int callId, boolean hold) {
+        final long traceStart = CallTracer.begin();
         try {
             CallResult result = mCallModeler.getCallWithId(callId);
             if (result != null) {
@@ -154,14 +167,18 @@ class CallCommandService extends ICallCommandService.Stub {
             }
         } catch (Exception e) {
             Log.e(TAG, "Error trying to place call on hold.", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_CALL_CONTROL, traceStart);
         }
     }
 
     @Override
     public void merge() {
+        final long traceStart = CallTracer.begin();
         if (PhoneUtils.okToMergeCalls(mCallManager)) {
             PhoneUtils.mergeCalls(mCallManager);
         }
+        CallTracer.end(CallTracer.STAGE_COMMAND_CALL_CONTROL, traceStart);
     }
 
     @Override
@@ -173,55 +190,73 @@ class CallCommandService extends ICallCommandService.Stub {
 
     @Override
     public void swap() {
+        final long traceStart = CallTracer.begin();
         try {
             PhoneUtils.swap();
         } catch (Exception e) {
             Log.e(TAG, "Error during swap().", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_CALL_CONTROL, traceStart);
         }
     }
 
     @Override
     public void mute(boolean onOff) {
+        final long traceStart = CallTracer.begin();
         try {
             PhoneUtils.setMute(onOff);
         } catch (Exception e) {
             Log.e(TAG, "Error during mute().", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_AUDIO, traceStart);
         }
     }
 
     @Override
     public void speaker(boolean onOff) {
+        final long traceStart = CallTracer.begin();
         try {
             PhoneUtils.turnOnSpeaker(mContext, onOff, true);
         } catch (Exception e) {
             Log.e(TAG, "Error during speaker().", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_AUDIO, traceStart);
         }
     }
 
     @Override
     public void playDtmfTone(char digit, boolean timedShortTone) {
+        final long traceStart = CallTracer.begin();
         try {
             mDtmfTonePlayer.playDtmfTone(digit, timedShortTone);
         } catch (Exception e) {
             Log.e(TAG, "Error playing DTMF tone.", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_DTMF, traceStart);
         }
     }
 
     @Override
     public void stopDtmfTone() {
+        final long traceStart = CallTracer.begin();
         try {
             mDtmfTonePlayer.stopDtmfTone();
         } catch (Exception e) {
             Log.e(TAG, "Error stopping DTMF tone.", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_DTMF, traceStart);
         }
     }
 
     @Override
     public void setAudioMode(int mode) {
+        final long traceStart = CallTracer.begin();
         try {
             mAudioRouter.setAudioMode(mode);
         } catch (Exception e) {
             Log.e(TAG, "Error setting the audio mode.", e);
+        } finally {
+            CallTracer.end(CallTracer.STAGE_COMMAND_AUDIO, traceStart);
         }
     }
 
@@ -253,4 +288,12 @@ class CallCommandService extends ICallCommandService.Stub {
         }
     }
 
+    @Override
+    public void setDeltaUpdatesEnabled(boolean enabled) {
+        final CallHandlerServiceProxy proxy =
+                PhoneGlobals.getInstance().getCallHandlerServiceProxy();
+        if (proxy != null) {
+            proxy.setDeltaUpdatesEnabled(enabled);
+        }
+    }
 }
@@ -35,6 +35,7 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
     private int mButtonClicked;
     private int mServiceClass;
     private MyHandler mHandler = new MyHandler();
+    private final SuppServiceQueryEngine mQueryEngine;
     int reason;
     Phone phone;
     CallForwardInfo callForwardInfo;
@@ -44,6 +45,7 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
         super(context, attrs);
 
         phone = PhoneGlobals.getPhone();
+        mQueryEngine = PhoneGlobals.getInstance().getSuppServiceQueryEngine();
         mSummaryOnTemplate = this.getSummaryOn();
 
         TypedArray a = context.obtainStyledAttributes(attrs,
@@ -64,12 +66,25 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
     void init(TimeConsumingPreferenceListener listener, boolean skipReading) {
         tcpListener = listener;
         if (!skipReading) {
-            phone.getCallForwardingOption(reason,
+            mQueryEngine.getCallForwardingOption(reason,
                     mHandler.obtainMessage(MyHandler.MESSAGE_GET_CF,
                             // unused in this case
                             CommandsInterface.CF_ACTION_DISABLE,
                             MyHandler.MESSAGE_GET_CF, null));
-            if (tcpListener != null) {
+
+            // Show the last value read, if any, while the network is asked again; the
+            // preference stays disabled until the answer comes.  Only block the screen
+            // when there is nothing to show yet.
+            CallForwardInfo cfInfoArray[] = mQueryEngine.getCachedCallForwardingOption(reason);
+            if (cfInfoArray != null) {
+                for (CallForwardInfo info : cfInfoArray) {
+                    if ((mServiceClass & info.serviceClass) != 0) {
+                        handleCallForwardResult(info);
+                    }
+                }
+                updateSummaryText();
+                setEnabled(false);
+            } else if (tcpListener != null) {
                 tcpListener.onStarted(this, true);
             }
         }
@@ -122,7 +137,7 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
 
                 // the interface of Phone.setCallForwardingOption has error:
                 // should be action, reason...
-                phone.setCallForwardingOption(action,
+                mQueryEngine.setCallForwardingOption(action,
                         reason,
                         number,
                         time,
@@ -258,7 +273,7 @@ public class CallForwardEditPreference extends EditPhoneNumberPreference {
                 // setEnabled(false);
             }
             if (DBG) Log.d(LOG_TAG, "handleSetCFResponse: re get");
-            phone.getCallForwardingOption(reason,
+            mQueryEngine.getCallForwardingOption(reason,
                     obtainMessage(MESSAGE_GET_CF, msg.arg1, MESSAGE_SET_CF, ar.exception));
         }
     }
@@ -33,6 +33,8 @@ import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.telephony.Connection;
 import com.android.internal.telephony.Connection.PostDialState;
@@ -43,6 +45,7 @@ import com.android.services.telephony.common.Call;
 import com.android.services.telephony.common.ICallHandlerService;
 import com.google.common.collect.Lists;
 
+import java.io.PrintWriter;
 import java.util.List;
 
 /**
@@ -59,6 +62,7 @@ public class CallHandlerServiceProxy extends Handler
     public static final int RETRY_DELAY_LONG_MILLIS = 30 * 1000; // 30 seconds
     private static final int BIND_RETRY_MSG = 1;
     private static final int BIND_TIME_OUT = 2;
+    private static final int FLUSH_UPDATES = 3;
     private static final int MAX_SHORT_DELAY_RETRY_COUNT = 5;
 
     private AudioRouter mAudioRouter;
@@ -68,12 +72,25 @@ public class CallHandlerServiceProxy extends Handler
     private boolean mFullUpdateOnConnect;
 
     private ICallHandlerService mCallHandlerServiceGuarded;  // Guarded by mServiceAndQueueLock
+    // Copies of the calls as last sent to the UI, used as the base for delta updates.
+    private boolean mDeltaUpdatesEnabled;                    // Guarded by mServiceAndQueueLock
+    private final SparseArray<Call> mLastSentCalls =
+            new SparseArray<Call>();                         // Guarded by mServiceAndQueueLock
     // Single queue to guarantee ordering
-    private List<QueueParams> mQueue;                        // Guarded by mServiceAndQueueLock
+    private PendingEvents mQueue;                            // Guarded by mServiceAndQueueLock
 
     private final Object mServiceAndQueueLock = new Object();
     private int mBindRetryCount = 0;
 
+    // Coalescing of onUpdate() bursts. Only touched from the main thread, apart from
+    // mPendingUpdates, which is also read by dump() and so is guarded by itself.
+    private final int mUpdateWindowMillis;
+    private final SparseArray<Call> mPendingUpdates = new SparseArray<Call>();
+    private long mLastUpdateSentTime;
+    private long mPendingUpdatesTraceStart;
+    private int mUpdatesMergedCount;
+    private int mUpdatesSentCount;
+
     @Override
     public void handleMessage(Message msg) {
         super.handleMessage(msg);
@@ -85,6 +102,9 @@ public class CallHandlerServiceProxy extends Handler
                 removeMessages(BIND_RETRY_MSG);
                 handleConnectRetry();
                 break;
+            case FLUSH_UPDATES:
+                flushPendingUpdates();
+                break;
             case BIND_TIME_OUT:
                 // Remove any pending messages since we're already performing the action.
                 // If the call to setupServiceConnection() fails, it will queue up another retry.
@@ -114,6 +134,8 @@ public class CallHandlerServiceProxy extends Handler
         mCallCommandService = callCommandService;
         mCallModeler = callModeler;
         mAudioRouter = audioRouter;
+        mUpdateWindowMillis = context.getResources().getInteger(
+                R.integer.config_call_update_coalesce_window_millis);
 
         mAudioRouter.addAudioModeListener(this);
         mCallModeler.addListener(this);
@@ -121,6 +143,9 @@ public class CallHandlerServiceProxy extends Handler
 
     @Override
     public void onDisconnect(Call call) {
+        // Disconnects must be seen after any update for the call that is still pending.
+        flushPendingUpdates();
+
         // Wake up in case the screen was off.
         wakeUpScreen();
         synchronized (mServiceAndQueueLock) {
@@ -149,7 +174,11 @@ public class CallHandlerServiceProxy extends Handler
             }
             synchronized (mServiceAndQueueLock) {
                 if (mCallHandlerServiceGuarded != null) {
+                    final long binderStart = CallTracer.begin();
                     mCallHandlerServiceGuarded.onDisconnect(call);
+                    CallTracer.end(CallTracer.STAGE_PROXY_BINDER, binderStart);
+                    CallTracer.end(CallTracer.STAGE_EVENT_TO_UI, CallTracer.getEventStart());
+                    mLastSentCalls.remove(call.getCallId());
                 }
             }
             if (!mCallModeler.hasLiveCall()) {
@@ -162,6 +191,8 @@ public class CallHandlerServiceProxy extends Handler
 
     @Override
     public void onIncoming(Call call) {
+        flushPendingUpdates();
+
         // for new incoming calls, reset the retry count.
         resetConnectRetryCount();
 
@@ -187,8 +218,14 @@ public class CallHandlerServiceProxy extends Handler
             // must refactor call method to accept proper call object.
             synchronized (mServiceAndQueueLock) {
                 if (mCallHandlerServiceGuarded != null) {
+                    final long binderStart = CallTracer.begin();
                     mCallHandlerServiceGuarded.onIncoming(call,
                             RejectWithTextMessageManager.loadCannedResponses());
+                    CallTracer.end(CallTracer.STAGE_PROXY_BINDER, binderStart);
+                    CallTracer.end(CallTracer.STAGE_EVENT_TO_UI, CallTracer.getEventStart());
+                    if (mDeltaUpdatesEnabled) {
+                        mLastSentCalls.put(call.getCallId(), new Call(call));
+                    }
                 }
             }
         } catch (Exception e) {
@@ -198,6 +235,66 @@ public class CallHandlerServiceProxy extends Handler
 
     @Override
     public void onUpdate(List<Call> calls) {
+        if (mUpdateWindowMillis <= 0) {
+            dispatchUpdate(calls, CallTracer.getEventStart());
+            return;
+        }
+
+        // Only the latest state of each call matters to the UI, so updates arriving within the
+        // window are merged by call id and sent together. The first update after a quiet period
+        // goes out right away so that single transitions are not delayed.
+        synchronized (mPendingUpdates) {
+            for (int i = 0; i < calls.size(); i++) {
+                final Call call = calls.get(i);
+                if (mPendingUpdates.get(call.getCallId()) != null) {
+                    mUpdatesMergedCount++;
+                }
+                mPendingUpdates.put(call.getCallId(), call);
+            }
+        }
+        // Merged updates are traced from the earliest event that contributed to them.
+        if (mPendingUpdatesTraceStart == 0) {
+            mPendingUpdatesTraceStart = CallTracer.getEventStart();
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastUpdateSentTime >= mUpdateWindowMillis) {
+            flushPendingUpdates();
+        } else if (!hasMessages(FLUSH_UPDATES)) {
+            sendEmptyMessageAtTime(FLUSH_UPDATES, mLastUpdateSentTime + mUpdateWindowMillis);
+        }
+    }
+
+    /**
+     * Sends all updates held back by the coalescing window as a single onUpdate().
+     */
+    private void flushPendingUpdates() {
+        removeMessages(FLUSH_UPDATES);
+        final List<Call> calls;
+        synchronized (mPendingUpdates) {
+            final int size = mPendingUpdates.size();
+            if (size == 0) {
+                return;
+            }
+
+            calls = Lists.newArrayListWithCapacity(size);
+            for (int i = 0; i < size; i++) {
+                calls.add(mPendingUpdates.valueAt(i));
+            }
+            mPendingUpdates.clear();
+        }
+        mLastUpdateSentTime = SystemClock.uptimeMillis();
+
+        final long traceStart = mPendingUpdatesTraceStart;
+        mPendingUpdatesTraceStart = 0;
+        dispatchUpdate(calls, traceStart);
+    }
+
+    /**
+     * @param traceStart The start of the CallTracer span covering this update, or 0.
+     */
+    private void dispatchUpdate(List<Call> calls, long traceStart) {
+        mUpdatesSentCount++;
         synchronized (mServiceAndQueueLock) {
             if (mCallHandlerServiceGuarded == null) {
                 if (DBG) {
@@ -208,17 +305,23 @@ public class CallHandlerServiceProxy extends Handler
                 return;
             }
         }
-        processUpdate(calls);
+        processUpdate(calls, traceStart);
     }
 
-    private void processUpdate(List<Call> calls) {
+    private void processUpdate(List<Call> calls, long traceStart) {
         if (DBG) {
             Log.d(TAG, "onUpdate: " + calls.toString());
         }
         try {
             synchronized (mServiceAndQueueLock) {
                 if (mCallHandlerServiceGuarded != null) {
-                    mCallHandlerServiceGuarded.onUpdate(calls);
+                    final List<Call> sent = mDeltaUpdatesEnabled ? toDeltas(calls) : calls;
+                    if (!sent.isEmpty()) {
+                        final long binderStart = CallTracer.begin();
+                        mCallHandlerServiceGuarded.onUpdate(sent);
+                        CallTracer.end(CallTracer.STAGE_PROXY_BINDER, binderStart);
+                    }
+                    CallTracer.end(CallTracer.STAGE_EVENT_TO_UI, traceStart);
                 }
             }
             if (!mCallModeler.hasLiveCall()) {
@@ -234,11 +337,49 @@ public class CallHandlerServiceProxy extends Handler
         }
     }
 
+    /**
+     * Converts the calls into deltas against the copies last sent to the UI. Calls the UI has
+     * not seen yet are sent in full; calls that did not change are left out.
+     */
+    private List<Call> toDeltas(List<Call> calls) {
+        final List<Call> deltas = Lists.newArrayListWithCapacity(calls.size());
+        for (int i = 0; i < calls.size(); i++) {
+            final Call call = calls.get(i);
+            final Call lastSent = mLastSentCalls.get(call.getCallId());
+            if (lastSent == null) {
+                deltas.add(call);
+                mLastSentCalls.put(call.getCallId(), new Call(call));
+            } else {
+                final Call delta = Call.createDelta(lastSent, call);
+                if (delta.getFields() != 0) {
+                    lastSent.applyDelta(delta);
+                    deltas.add(delta);
+                }
+            }
+
+            if (call.getState() == Call.State.IDLE) {
+                mLastSentCalls.remove(call.getCallId());
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Called by the UI through ICallCommandService once it is able to apply Call deltas.
+     */
+    /* package */ void setDeltaUpdatesEnabled(boolean enabled) {
+        synchronized (mServiceAndQueueLock) {
+            if (DBG) Log.d(TAG, "setDeltaUpdatesEnabled: " + enabled);
+            mDeltaUpdatesEnabled = enabled && mCallHandlerServiceGuarded != null;
+            mLastSentCalls.clear();
+        }
+    }
 
     @Override
     public void onPostDialAction(Connection.PostDialState state, int callId, String remainingChars,
             char currentChar) {
         if (state != PostDialState.WAIT) return;
+        flushPendingUpdates();
         try {
             synchronized (mServiceAndQueueLock) {
                 if (mCallHandlerServiceGuarded == null) {
@@ -493,6 +634,8 @@ public class CallHandlerServiceProxy extends Handler
             if (mCallHandlerServiceGuarded != null) {
                 Log.d(TAG, "Unbinding service.");
                 mCallHandlerServiceGuarded = null;
+                mDeltaUpdatesEnabled = false;
+                mLastSentCalls.clear();
                 mContext.unbindService(mConnection);
             }
             mConnection = null;
@@ -507,6 +650,11 @@ public class CallHandlerServiceProxy extends Handler
         synchronized (mServiceAndQueueLock) {
             mCallHandlerServiceGuarded = callHandlerService;
 
+            // A (re)connected UI has no copies to apply deltas to. It re-enables them through
+            // ICallCommandService once it has received full snapshots.
+            mDeltaUpdatesEnabled = false;
+            mLastSentCalls.clear();
+
             // Before we send any updates, we need to set up the initial service calls.
             makeInitialServiceCalls();
 
@@ -514,7 +662,7 @@ public class CallHandlerServiceProxy extends Handler
 
             if (mFullUpdateOnConnect) {
                 mFullUpdateOnConnect = false;
-                onUpdate(mCallModeler.getFullList());
+                dispatchUpdate(mCallModeler.getFullList(), 0);
             }
         }
     }
@@ -543,50 +691,92 @@ public class CallHandlerServiceProxy extends Handler
         }
     }
 
-    private List<QueueParams> getQueue() {
+    private PendingEvents getQueue() {
         if (mQueue == null) {
-            mQueue = Lists.newArrayList();
+            mQueue = new PendingEvents();
         }
         return mQueue;
     }
 
     private void enqueueDisconnect(Call call) {
-        getQueue().add(new QueueParams(QueueParams.METHOD_DISCONNECT, new Call(call)));
+        getQueue().addEvent(QueueParams.METHOD_DISCONNECT, new Call(call));
     }
 
     private void enqueueIncoming(Call call) {
-        getQueue().add(new QueueParams(QueueParams.METHOD_INCOMING, new Call(call)));
+        getQueue().addEvent(QueueParams.METHOD_INCOMING, new Call(call));
     }
 
     private void enqueueUpdate(List<Call> calls) {
-        final List<Call> copy = Lists.newArrayList();
-        for (Call call : calls) {
-            copy.add(new Call(call));
+        final PendingEvents queue = getQueue();
+        for (int i = 0; i < calls.size(); i++) {
+            queue.addUpdate(calls.get(i));
         }
-        getQueue().add(new QueueParams(QueueParams.METHOD_UPDATE, copy));
     }
 
     private void processQueue() {
         synchronized (mServiceAndQueueLock) {
             if (mQueue != null) {
-                for (QueueParams params : mQueue) {
+                final int size = mQueue.size();
+                for (int i = 0; i < size; i++) {
+                    // Calls that were already around before this event are brought up to date
+                    // first, so that the UI sees the events in the order they happened.
+                    final List<Call> earlier = mQueue.takeUpdatesBefore(i);
+                    if (!earlier.isEmpty()) {
+                        processUpdate(earlier, 0);
+                    }
+
+                    final QueueParams params = mQueue.get(i);
                     switch (params.mMethod) {
                         case QueueParams.METHOD_INCOMING:
-                            processIncoming((Call) params.mArg);
-                            break;
-                        case QueueParams.METHOD_UPDATE:
-                            processUpdate((List<Call>) params.mArg);
+                            final Call incoming = mQueue.takeIncoming(params.mCall);
+                            final int state = incoming.getState();
+                            if (state == Call.State.INCOMING
+                                    || state == Call.State.CALL_WAITING) {
+                                processIncoming(incoming);
+                            } else {
+                                // Answered or ended while the UI was unbound; it no longer
+                                // needs to ring, so only its latest state is sent.
+                                processUpdate(Lists.newArrayList(incoming), 0);
+                            }
                             break;
                         case QueueParams.METHOD_DISCONNECT:
-                            processDisconnect((Call) params.mArg);
+                            processDisconnect(params.mCall);
                             break;
                         default:
                             throw new IllegalArgumentException("Method type " + params.mMethod +
                                     " not recognized.");
                     }
                 }
+
+                // Calls that only showed up after the last event.
+                final List<Call> updates = mQueue.takeUpdatesBefore(size);
+                if (!updates.isEmpty()) {
+                    processUpdate(updates, 0);
+                }
                 mQueue.clear();
-                mQueue = null;
+            }
+        }
+    }
+
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("CallHandlerServiceProxy:");
+        pw.println("  update window: " + mUpdateWindowMillis + "ms");
+        pw.println("  updates sent: " + mUpdatesSentCount);
+        pw.println("  call updates merged: " + mUpdatesMergedCount);
+        final StringBuilder pending = new StringBuilder();
+        synchronized (mPendingUpdates) {
+            pending.append(mPendingUpdates.size());
+            for (int i = 0; i < mPendingUpdates.size(); i++) {
+                pending.append(i == 0 ? " (call " : ", ").append(mPendingUpdates.keyAt(i));
+            }
+            if (mPendingUpdates.size() > 0) {
+                pending.append(')');
+            }
+        }
+        pw.println("  call updates pending: " + pending);
+        synchronized (mServiceAndQueueLock) {
+            if (mQueue != null) {
+                mQueue.dump(pw);
             }
         }
     }
@@ -596,15 +786,132 @@ public class CallHandlerServiceProxy extends Handler
      */
     private static class QueueParams {
         private static final int METHOD_INCOMING = 1;
-        private static final int METHOD_UPDATE = 2;
-        private static final int METHOD_DISCONNECT = 3;
+        private static final int METHOD_DISCONNECT = 2;
+
+        private int mMethod;
+        private Call mCall;
+    }
 
-        private final int mMethod;
-        private final Object mArg;
+    /**
+     * Events held while the in-call UI is not bound.
+     *
+     * Incoming and disconnect events are kept in order and are never dropped. They are held in
+     * an array of reusable slots that doubles whenever it is full, so there is no bound on it
+     * other than the number of calls that come and go before the UI binds; in practice that is
+     * a handful, and the high water mark is shown in the dump.
+     *
+     * Updates are only kept as the latest state per call id, since intermediate states are of
+     * no use to a UI that has not seen them. Each call's update remembers how many events were
+     * queued before the call was first updated, and goes out just before the first event queued
+     * after that, so a call placed on hold is still seen before the call waiting that follows.
+     * An incoming event is replayed with the latest state of its call instead of the copy taken
+     * when it rang. A disconnect drops any pending update for the same call so the call is not
+     * brought back. Updates hold the live Call objects rather than copies; CallModeler keeps
+     * updating those objects so they always carry the latest state.
+     */
+    private static class PendingEvents {
+        private static final int INITIAL_CAPACITY = 8;
+
+        private QueueParams[] mEvents = new QueueParams[INITIAL_CAPACITY];
+        private int mSize;
+        private final SparseArray<Call> mUpdates = new SparseArray<Call>();
+        // Number of events queued before the first update of each call in mUpdates.
+        private final SparseIntArray mUpdateEvents = new SparseIntArray();
+
+        private int mEventHighWaterMark;
+        private int mUpdateHighWaterMark;
+        private int mSupersededUpdates;
+
+        void addEvent(int method, Call call) {
+            if (mSize == mEvents.length) {
+                // Events can not be dropped. The array only grows past its initial size when a
+                // large number of calls come and go while the UI stays unbound.
+                Log.w(TAG, "Pending call event queue full at " + mSize + " events, growing.");
+                final QueueParams[] events = new QueueParams[mEvents.length * 2];
+                System.arraycopy(mEvents, 0, events, 0, mSize);
+                mEvents = events;
+            }
+
+            if (mEvents[mSize] == null) {
+                mEvents[mSize] = new QueueParams();
+            }
+            mEvents[mSize].mMethod = method;
+            mEvents[mSize].mCall = call;
+            mSize++;
+            mEventHighWaterMark = Math.max(mEventHighWaterMark, mSize);
+
+            if (method == QueueParams.METHOD_DISCONNECT) {
+                removeUpdate(call.getCallId());
+            }
+        }
+
+        void addUpdate(Call call) {
+            if (mUpdates.get(call.getCallId()) != null) {
+                mSupersededUpdates++;
+            } else {
+                mUpdateEvents.put(call.getCallId(), mSize);
+            }
+            mUpdates.put(call.getCallId(), call);
+            mUpdateHighWaterMark = Math.max(mUpdateHighWaterMark, mUpdates.size());
+        }
+
+        private void removeUpdate(int callId) {
+            mUpdates.remove(callId);
+            mUpdateEvents.delete(callId);
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        QueueParams get(int i) {
+            return mEvents[i];
+        }
+
+        /**
+         * Removes and returns the updates of the calls first updated before event {@code i}.
+         */
+        List<Call> takeUpdatesBefore(int i) {
+            final List<Call> updates = Lists.newArrayList();
+            for (int j = 0; j < mUpdates.size(); j++) {
+                if (mUpdateEvents.get(mUpdates.keyAt(j)) <= i) {
+                    updates.add(mUpdates.valueAt(j));
+                }
+            }
+            for (int j = 0; j < updates.size(); j++) {
+                removeUpdate(updates.get(j).getCallId());
+            }
+            return updates;
+        }
+
+        /**
+         * Returns the call to replay for an incoming event: the latest update of the call if
+         * one is pending, which is then no longer pending, or else the copy queued with the
+         * event.
+         */
+        Call takeIncoming(Call queued) {
+            final Call latest = mUpdates.get(queued.getCallId());
+            if (latest == null) {
+                return queued;
+            }
+            removeUpdate(queued.getCallId());
+            return latest;
+        }
+
+        void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mEvents[i].mCall = null;
+            }
+            mSize = 0;
+            mUpdates.clear();
+            mUpdateEvents.clear();
+        }
 
-        private QueueParams(int method, Object arg) {
-            mMethod = method;
-            this.mArg = arg;
+        void dump(PrintWriter pw) {
+            pw.println("  pending events: " + mSize + " (high water " + mEventHighWaterMark + ")");
+            pw.println("  pending call updates: " + mUpdates.size() + " (high water "
+                    + mUpdateHighWaterMark + ")");
+            pw.println("  superseded call updates: " + mSupersededUpdates);
         }
     }
 }
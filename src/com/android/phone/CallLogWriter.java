@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.DataUsageFeedback;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.telephony.CallerInfo;
+import com.android.internal.telephony.PhoneConstants;
+import com.google.common.collect.Lists;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Writes call log entries in batches on a background thread.
+ *
+ * Entries logged within FLUSH_DELAY_MILLIS of the first pending one (e.g. the calls of a
+ * conference, or everything torn down by a radio loss) go into the call log with a single
+ * applyBatch() instead of one insert each.  Until then they are kept in a small journal file,
+ * so that they are written on the next start if the process dies in between.  A batch that fails
+ * is retried after RETRY_DELAY_MILLIS, doubling up to MAX_RETRY_DELAY_MILLIS, until it goes in.
+ *
+ * The rows are built the same way as {@link Calls#addCall}, which this replaces.
+ */
+class CallLogWriter {
+    private static final String LOG_TAG = CallLogWriter.class.getSimpleName();
+    private static final boolean DBG =
+            (PhoneGlobals.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
+
+    private static final String JOURNAL_FILE = "call_log_journal";
+    private static final int JOURNAL_VERSION = 1;
+
+    // Upper bound on how long an entry waits before it is written.
+    private static final int FLUSH_DELAY_MILLIS = 500;
+    // Write right away once this many entries are pending.
+    private static final int MAX_BATCH_SIZE = 20;
+
+    // Delay before retrying a failed batch, doubled after each further failure.
+    private static final int RETRY_DELAY_MILLIS = 5 * 1000;
+    private static final int MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    // Same limit as Calls.addCall(); older entries are removed.
+    private static final int MAX_CALL_LOG_SIZE = 500;
+
+    private static final int ADD_ENTRY = 1;
+    private static final int FLUSH = 2;
+
+    /**
+     * One call log row, with what it needs from the CallerInfo.
+     */
+    static class Entry {
+        final String number;
+        final boolean hasCallerInfo;
+        final int presentation;
+        final int callType;
+        final long start;
+        final long duration;
+        final String cachedName;
+        final int cachedNumberType;
+        final String cachedNumberLabel;
+        final long personId;
+        final String normalizedNumber;
+        final String callerInfoNumber;
+
+        Entry(CallerInfo ci, String number, int presentation, int callType, long start,
+                long duration) {
+            this(number, ci != null, presentation, callType, start, duration,
+                    ci != null ? ci.name : null,
+                    ci != null ? ci.numberType : 0,
+                    ci != null ? ci.numberLabel : null,
+                    ci != null ? ci.person_id : 0,
+                    ci != null ? ci.normalizedNumber : null,
+                    ci != null ? ci.phoneNumber : null);
+        }
+
+        private Entry(String number, boolean hasCallerInfo, int presentation, int callType,
+                long start, long duration, String cachedName, int cachedNumberType,
+                String cachedNumberLabel, long personId, String normalizedNumber,
+                String callerInfoNumber) {
+            this.number = number;
+            this.hasCallerInfo = hasCallerInfo;
+            this.presentation = presentation;
+            this.callType = callType;
+            this.start = start;
+            this.duration = duration;
+            this.cachedName = cachedName;
+            this.cachedNumberType = cachedNumberType;
+            this.cachedNumberLabel = cachedNumberLabel;
+            this.personId = personId;
+            this.normalizedNumber = normalizedNumber;
+            this.callerInfoNumber = callerInfoNumber;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            writeString(out, number);
+            out.writeBoolean(hasCallerInfo);
+            out.writeInt(presentation);
+            out.writeInt(callType);
+            out.writeLong(start);
+            out.writeLong(duration);
+            writeString(out, cachedName);
+            out.writeInt(cachedNumberType);
+            writeString(out, cachedNumberLabel);
+            out.writeLong(personId);
+            writeString(out, normalizedNumber);
+            writeString(out, callerInfoNumber);
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            return new Entry(readString(in), in.readBoolean(), in.readInt(), in.readInt(),
+                    in.readLong(), in.readLong(), readString(in), in.readInt(), readString(in),
+                    in.readLong(), readString(in), readString(in));
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) {
+                out.writeUTF(s);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final File mJournal;
+    private final Handler mHandler;
+
+    // Delay of the scheduled retry of a failed batch, or 0 when the last batch went in.
+    private volatile int mRetryDelayMillis;
+
+    // Only touched on the writer thread.
+    private final ArrayList<Entry> mPending = Lists.newArrayList();
+    private final ArrayList<Entry> mRecovered = Lists.newArrayList();
+
+    // Statistics, written on the writer thread and read by dump().
+    private volatile int mEntriesWritten;
+    private volatile int mBatchesWritten;
+    private volatile int mEntriesRecovered;
+    private volatile int mWriteFailures;
+
+    CallLogWriter(Context context) {
+        this(context.getContentResolver(), new File(context.getFilesDir(), JOURNAL_FILE),
+                startThread());
+    }
+
+    /* package */ CallLogWriter(ContentResolver resolver, File journal, Looper looper) {
+        mResolver = resolver;
+        mJournal = journal;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case ADD_ENTRY:
+                        onAddEntry((Entry) msg.obj);
+                        break;
+                    case FLUSH:
+                        flush();
+                        break;
+                }
+            }
+        };
+
+        // Anything left over from a previous process goes out first.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                recoverJournal();
+            }
+        });
+    }
+
+    private static Looper startThread() {
+        final HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        return thread.getLooper();
+    }
+
+    /**
+     * Queues a call log entry.  It is written within FLUSH_DELAY_MILLIS.
+     */
+    void addEntry(Entry entry) {
+        mHandler.obtainMessage(ADD_ENTRY, entry).sendToTarget();
+    }
+
+    /**
+     * Writes the pending entries without waiting for the batch window or a retry.
+     */
+    /* package */ void flushNow() {
+        mHandler.sendEmptyMessage(FLUSH);
+    }
+
+    /* package */ int getRetryDelayMillis() {
+        return mRetryDelayMillis;
+    }
+
+    private void onAddEntry(Entry entry) {
+        mPending.add(entry);
+        appendToJournal(entry);
+
+        if (mPending.size() >= MAX_BATCH_SIZE) {
+            flush();
+        } else if (!mHandler.hasMessages(FLUSH)) {
+            mHandler.sendEmptyMessageDelayed(FLUSH, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    private void flush() {
+        mHandler.removeMessages(FLUSH);
+        if (mPending.isEmpty() && mRecovered.isEmpty()) {
+            return;
+        }
+
+        final ContentResolver resolver = mResolver;
+        final ArrayList<ContentProviderOperation> ops = Lists.newArrayList();
+        final ArrayList<Entry> written = Lists.newArrayList();
+
+        // Entries recovered from the journal may have been written just before the process
+        // died, before the journal could be cleared.
+        for (int i = 0; i < mRecovered.size(); i++) {
+            final Entry entry = mRecovered.get(i);
+            if (!isLogged(resolver, entry)) {
+                ops.add(ContentProviderOperation.newInsert(Calls.CONTENT_URI)
+                        .withValues(toContentValues(entry)).build());
+                written.add(entry);
+            }
+        }
+        for (int i = 0; i < mPending.size(); i++) {
+            final Entry entry = mPending.get(i);
+            ops.add(ContentProviderOperation.newInsert(Calls.CONTENT_URI)
+                    .withValues(toContentValues(entry)).build());
+            written.add(entry);
+        }
+
+        if (!ops.isEmpty()) {
+            // Trim the call log like Calls.addCall() does after every insert.
+            ops.add(ContentProviderOperation.newDelete(Calls.CONTENT_URI)
+                    .withSelection("_id IN (SELECT _id FROM calls ORDER BY "
+                            + Calls.DEFAULT_SORT_ORDER + " LIMIT -1 OFFSET " + MAX_CALL_LOG_SIZE
+                            + ")", null)
+                    .build());
+
+            final long start = SystemClock.uptimeMillis();
+            try {
+                resolver.applyBatch(CallLog.AUTHORITY, ops);
+            } catch (Exception e) {
+                // Keep the journal, and retry later.  Part of the batch may have been written,
+                // so the entries are checked again like recovered ones.
+                mWriteFailures++;
+                mRecovered.addAll(mPending);
+                mPending.clear();
+                mRetryDelayMillis = (mRetryDelayMillis == 0) ? RETRY_DELAY_MILLIS
+                        : Math.min(mRetryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+                Log.e(LOG_TAG, "Failed to write " + written.size() + " call log entries,"
+                        + " retrying in " + mRetryDelayMillis + "ms", e);
+                mHandler.sendEmptyMessageDelayed(FLUSH, mRetryDelayMillis);
+                return;
+            }
+            mEntriesWritten += written.size();
+            mBatchesWritten++;
+            if (DBG) {
+                Log.d(LOG_TAG, "Wrote " + written.size() + " call log entries in "
+                        + (SystemClock.uptimeMillis() - start) + "ms");
+            }
+        }
+
+        mRetryDelayMillis = 0;
+        mRecovered.clear();
+        mPending.clear();
+        if (!mJournal.delete() && mJournal.exists()) {
+            Log.w(LOG_TAG, "Unable to clear " + mJournal);
+        }
+
+        for (int i = 0; i < written.size(); i++) {
+            updateDataUsageStatIfNeeded(resolver, written.get(i));
+        }
+    }
+
+    /**
+     * Builds the row the same way as {@link Calls#addCall}.
+     */
+    private static ContentValues toContentValues(Entry entry) {
+        final ContentValues values = new ContentValues(10);
+
+        String number = entry.number;
+        String cachedName = entry.cachedName;
+        int numberPresentation = Calls.PRESENTATION_ALLOWED;
+        if (entry.presentation == PhoneConstants.PRESENTATION_RESTRICTED) {
+            numberPresentation = Calls.PRESENTATION_RESTRICTED;
+        } else if (entry.presentation == PhoneConstants.PRESENTATION_PAYPHONE) {
+            numberPresentation = Calls.PRESENTATION_PAYPHONE;
+        } else if (TextUtils.isEmpty(number)
+                || entry.presentation == PhoneConstants.PRESENTATION_UNKNOWN) {
+            numberPresentation = Calls.PRESENTATION_UNKNOWN;
+        }
+        if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
+            number = "";
+            cachedName = "";
+        }
+
+        values.put(Calls.NUMBER, number);
+        values.put(Calls.NUMBER_PRESENTATION, Integer.valueOf(numberPresentation));
+        values.put(Calls.TYPE, Integer.valueOf(entry.callType));
+        values.put(Calls.DATE, Long.valueOf(entry.start));
+        values.put(Calls.DURATION, Long.valueOf(entry.duration / 1000));
+        values.put(Calls.NEW, Integer.valueOf(1));
+        if (entry.callType == Calls.MISSED_TYPE) {
+            values.put(Calls.IS_READ, Integer.valueOf(0));
+        }
+        if (entry.hasCallerInfo) {
+            values.put(Calls.CACHED_NAME, cachedName);
+            values.put(Calls.CACHED_NUMBER_TYPE, entry.cachedNumberType);
+            values.put(Calls.CACHED_NUMBER_LABEL, entry.cachedNumberLabel);
+        }
+        return values;
+    }
+
+    private static boolean isLogged(ContentResolver resolver, Entry entry) {
+        final Cursor cursor = resolver.query(Calls.CONTENT_URI, new String[] { Calls._ID },
+                Calls.DATE + "=? AND " + Calls.TYPE + "=?",
+                new String[] { String.valueOf(entry.start), String.valueOf(entry.callType) },
+                null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Lets the contacts provider know that the contact was called, as {@link Calls#addCall}
+     * does.  This is a query and an update per entry, so it is only done for known contacts.
+     */
+    private static void updateDataUsageStatIfNeeded(ContentResolver resolver, Entry entry) {
+        if (entry.personId <= 0) {
+            return;
+        }
+
+        final Cursor cursor;
+        if (entry.normalizedNumber != null) {
+            cursor = resolver.query(Phone.CONTENT_URI, new String[] { Phone._ID },
+                    Phone.CONTACT_ID + " =? AND " + Phone.NORMALIZED_NUMBER + " =?",
+                    new String[] { String.valueOf(entry.personId), entry.normalizedNumber },
+                    null);
+        } else {
+            final String phoneNumber =
+                    entry.callerInfoNumber != null ? entry.callerInfoNumber : entry.number;
+            cursor = resolver.query(Uri.withAppendedPath(Phone.CONTENT_FILTER_URI,
+                    Uri.encode(phoneNumber)), new String[] { Phone._ID },
+                    Phone.CONTACT_ID + " =?", new String[] { String.valueOf(entry.personId) },
+                    null);
+        }
+        if (cursor == null) {
+            return;
+        }
+        try {
+            if (cursor.getCount() > 0 && cursor.moveToFirst()) {
+                final Uri feedbackUri = DataUsageFeedback.FEEDBACK_URI.buildUpon()
+                        .appendPath(cursor.getString(0))
+                        .appendQueryParameter(DataUsageFeedback.USAGE_TYPE,
+                                DataUsageFeedback.USAGE_TYPE_CALL)
+                        .build();
+                resolver.update(feedbackUri, new ContentValues(), null, null);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void appendToJournal(Entry entry) {
+        final boolean isNew = !mJournal.exists();
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mJournal, true);
+            final DataOutputStream out = new DataOutputStream(fos);
+            if (isNew) {
+                out.writeInt(JOURNAL_VERSION);
+            }
+            entry.writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            // The entry is still written with the batch; it just won't survive a crash.
+            Log.w(LOG_TAG, "Unable to journal call log entry", e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void recoverJournal() {
+        if (!mJournal.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mJournal));
+            final int version = in.readInt();
+            if (version != JOURNAL_VERSION) {
+                Log.w(LOG_TAG, "Dropping call log journal of version " + version);
+            } else {
+                while (true) {
+                    mRecovered.add(Entry.readFrom(in));
+                }
+            }
+        } catch (EOFException e) {
+            // End of the journal; a partially written last entry is dropped.
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to read call log journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        Log.i(LOG_TAG, "Recovered " + mRecovered.size() + " call log entries");
+        mEntriesRecovered += mRecovered.size();
+        // Entries appended from now on must not follow a partial record.
+        if (!mJournal.delete()) {
+            Log.w(LOG_TAG, "Unable to clear " + mJournal);
+        }
+        for (int i = 0; i < mRecovered.size(); i++) {
+            appendToJournal(mRecovered.get(i));
+        }
+        flush();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("CallLogWriter:");
+        pw.println("  call log entries written: " + mEntriesWritten + " in " + mBatchesWritten
+                + " provider transactions");
+        pw.println("  entries recovered from journal: " + mEntriesRecovered
+                + ", failed batches: " + mWriteFailures
+                + (mRetryDelayMillis > 0 ? ", retrying in " + mRetryDelayMillis + "ms" : ""));
+    }
+}
@@ -21,7 +21,6 @@ import com.android.internal.telephony.Connection;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.TelephonyCapabilities;
-import com.android.phone.common.CallLogAsync;
 
 import android.net.Uri;
 import android.os.SystemProperties;
@@ -30,6 +29,8 @@ import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.PrintWriter;
+
 /**
  * Helper class for interacting with the call log.
  */
@@ -40,11 +41,19 @@ class CallLogger {
     private static final boolean VDBG = (PhoneGlobals.DBG_LEVEL >= 2);
 
     private PhoneGlobals mApplication;
-    private CallLogAsync mCallLog;
+    private CallLogWriter mCallLogWriter;
+
+    // On some devices, to avoid accidental redialing of
+    // emergency numbers, we *never* log emergency calls to
+    // the Call Log.  (This behavior is set on a per-product
+    // basis, based on carrier requirements.)
+    private final boolean mOkToLogEmergencyNumber;
 
-    public CallLogger(PhoneGlobals application, CallLogAsync callLogAsync) {
+    public CallLogger(PhoneGlobals application, CallLogWriter callLogWriter) {
         mApplication = application;
-        mCallLog = callLogAsync;
+        mCallLogWriter = callLogWriter;
+        mOkToLogEmergencyNumber = application.getResources().getBoolean(
+                R.bool.allow_emergency_numbers_in_call_log);
     }
 
     /**
@@ -108,19 +117,10 @@ class CallLogger {
      */
     public void logCall(CallerInfo ci, String number, int presentation, int callType, long start,
                         long duration) {
-        final boolean isEmergencyNumber = PhoneNumberUtils.isLocalEmergencyNumber(number,
-                mApplication);
-
-        // On some devices, to avoid accidental redialing of
-        // emergency numbers, we *never* log emergency calls to
-        // the Call Log.  (This behavior is set on a per-product
-        // basis, based on carrier requirements.)
-        final boolean okToLogEmergencyNumber =
-            mApplication.getResources().getBoolean(
-                        R.bool.allow_emergency_numbers_in_call_log);
-
-        // Don't log emergency numbers if the device doesn't allow it,
-        boolean isOkToLogThisCall = !isEmergencyNumber || okToLogEmergencyNumber;
+        // Don't log emergency numbers if the device doesn't allow it.  (Only
+        // check the number when it matters.)
+        boolean isOkToLogThisCall = mOkToLogEmergencyNumber
+                || !PhoneNumberUtils.isLocalEmergencyNumber(number, mApplication);
 
         if (isOkToLogThisCall) {
             if (DBG) {
@@ -128,12 +128,17 @@ class CallLogger {
                     + "," + presentation + ", " + callType + ", " + start + ", " + duration);
             }
 
-            CallLogAsync.AddCallArgs args = new CallLogAsync.AddCallArgs(mApplication, ci, number,
-                    presentation, callType, start, duration);
-            mCallLog.addCall(args);
+            mCallLogWriter.addEntry(new CallLogWriter.Entry(ci, number, presentation, callType,
+                    start, duration));
         }
     }
 
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("CallLogger:");
+        pw.println("  emergency numbers logged: " + mOkToLogEmergencyNumber);
+        mCallLogWriter.dump(pw);
+    }
+
     /**
      * Get the caller info.
      *
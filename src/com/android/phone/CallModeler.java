@@ -23,6 +23,7 @@ import android.os.SystemProperties;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.telephony.CallManager;
 import com.android.internal.telephony.Connection;
@@ -46,7 +47,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -91,8 +91,14 @@ public class CallModeler extends Handler {
     private final CallGatewayManager mCallGatewayManager;
     private final HashMap<Connection, Call> mCallMap = Maps.newHashMap();
     private final HashMap<Connection, Call> mConfCallMap = Maps.newHashMap();
+    // Index of call id to the connection that keys it in mCallMap or mConfCallMap.
+    private final SparseArray<Connection> mCallIdIndex = new SparseArray<Connection>();
     private final AtomicInteger mNextCallId = new AtomicInteger(CALL_ID_START_VALUE);
     private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private final HashMap<Connection, ConnectionSnapshot> mConnectionSnapshots =
+            Maps.newHashMap();
+    // Number of entries in mConnectionSnapshots for each phone.
+    private final HashMap<Phone, Integer> mSnapshotCounts = Maps.newHashMap();
     private Connection mCdmaIncomingConnection;
     private Connection mCdmaOutgoingConnection;
 
@@ -107,12 +113,13 @@ public class CallModeler extends Handler {
 
     @Override
     public void handleMessage(Message msg) {
+        final long start = CallTracer.begin();
         switch(msg.what) {
             case CallStateMonitor.PHONE_NEW_RINGING_CONNECTION:
                 // We let the CallNotifier handle the new ringing connection first. When the custom
                 // ringtone and send_to_voicemail settings are retrieved, CallNotifier will directly
                 // call CallModeler's onNewRingingConnection.
-                break;
+                return;
             case CallStateMonitor.PHONE_DISCONNECT:
                 onDisconnect((Connection) ((AsyncResult) msg.obj).result);
                 break;
@@ -125,8 +132,9 @@ public class CallModeler extends Handler {
                 onPostDialChars((AsyncResult) msg.obj, (char) msg.arg1);
                 break;
             default:
-                break;
+                return;
         }
+        CallTracer.end(CallTracer.STAGE_MODELER, start);
     }
 
     public void addListener(Listener listener) {
@@ -146,18 +154,24 @@ public class CallModeler extends Handler {
     }
 
     public CallResult getCallWithId(int callId) {
-        // max 8 connections, so this should be fast even through we are traversing the entire map.
-        for (Entry<Connection, Call> entry : mCallMap.entrySet()) {
-            if (entry.getValue().getCallId() == callId) {
-                return new CallResult(entry.getValue(), entry.getKey());
-            }
+        final Connection connection = mCallIdIndex.get(callId);
+        if (connection == null) {
+            return null;
         }
 
-        for (Entry<Connection, Call> entry : mConfCallMap.entrySet()) {
-            if (entry.getValue().getCallId() == callId) {
-                return new CallResult(entry.getValue(), entry.getKey());
-            }
+        // A connection can key both a regular call and the conference call it is the main
+        // connection for, so check which of the two owns this id.
+        Call call = mCallMap.get(connection);
+        if (call != null && call.getCallId() == callId) {
+            return new CallResult(call, connection);
         }
+
+        call = mConfCallMap.get(connection);
+        if (call != null && call.getCallId() == callId) {
+            return new CallResult(call, connection);
+        }
+
+        Log.w(TAG, "Stale call id index entry for " + callId);
         return null;
     }
 
@@ -292,6 +306,7 @@ public class CallModeler extends Handler {
     /* package */ Call onNewRingingConnection(Connection conn) {
         Log.i(TAG, "onNewRingingConnection");
         final Call call = getCallFromMap(mCallMap, conn, true);
+        removeSnapshot(conn);
 
         if (call != null) {
             updateCallFromConnection(call, conn, false);
@@ -308,6 +323,7 @@ public class CallModeler extends Handler {
     private void onDisconnect(Connection conn) {
         Log.i(TAG, "onDisconnect");
         final Call call = getCallFromMap(mCallMap, conn, false);
+        removeSnapshot(conn);
 
         if (call != null) {
             final boolean wasConferenced = call.getState() == State.CONFERENCED;
@@ -324,7 +340,7 @@ public class CallModeler extends Handler {
                 onPhoneStateChanged(null);
             }
 
-            mCallMap.remove(conn);
+            removeCallFromMap(mCallMap, conn);
         }
 
         mCallManager.clearDisconnected();
@@ -337,7 +353,16 @@ public class CallModeler extends Handler {
     private void onPhoneStateChanged(AsyncResult r) {
         Log.i(TAG, "onPhoneStateChanged: ");
         final List<Call> updatedCalls = Lists.newArrayList();
-        doUpdate(false, updatedCalls);
+
+        // Precise call state changes are reported per Phone and are frequently redundant (several
+        // registrants fire for one transition). If nothing we model changed for the Phone that
+        // sent the event, skip the full rescan entirely.
+        final Phone phone = (r != null && r.result instanceof Phone) ? (Phone) r.result : null;
+        if (phone != null && isUnchangedSinceLastUpdate(phone)) {
+            if (DBG) Log.d(TAG, "No connection changes for " + phone.getPhoneName());
+        } else {
+            doUpdate(false, updatedCalls);
+        }
 
         if (updatedCalls.size() > 0) {
             for (int i = 0; i < mListeners.size(); ++i) {
@@ -371,6 +396,11 @@ public class CallModeler extends Handler {
         orphanedConnections.addAll(mCallMap.keySet());
         orphanedConnections.addAll(mConfCallMap.keySet());
 
+        // Snapshots are rebuilt from scratch on every full scan so that they only ever describe
+        // connections telephony still reports.
+        mConnectionSnapshots.clear();
+        mSnapshotCounts.clear();
+
         // Cycle through all the Connections on all the Calls. Update our Call objects
         // to reflect any new state and send the updated Call objects to the handler service.
         for (com.android.internal.telephony.Call telephonyCall : telephonyCalls) {
@@ -382,6 +412,9 @@ public class CallModeler extends Handler {
                     orphanedConnections.remove(connection);
                 }
 
+                addSnapshot(connection, new ConnectionSnapshot(connection,
+                        mCallGatewayManager.getGatewayInfo(connection)));
+
                 // We only send updates for live calls which are not incoming (ringing).
                 // Disconnected and incoming calls are handled by onDisconnect and
                 // onNewRingingConnection.
@@ -432,19 +465,100 @@ public class CallModeler extends Handler {
                 call.setState(Call.State.IDLE);
                 out.add(call);
 
-                mCallMap.remove(orphanedConnection);
+                removeCallFromMap(mCallMap, orphanedConnection);
             }
 
             if (mConfCallMap.containsKey(orphanedConnection)) {
-                final Call call = mCallMap.get(orphanedConnection);
+                final Call call = mConfCallMap.get(orphanedConnection);
                 call.setState(Call.State.IDLE);
                 out.add(call);
 
-                mConfCallMap.remove(orphanedConnection);
+                removeCallFromMap(mConfCallMap, orphanedConnection);
+            }
+        }
+    }
+
+    private void addSnapshot(Connection connection, ConnectionSnapshot snapshot) {
+        removeSnapshot(connection);
+        mConnectionSnapshots.put(connection, snapshot);
+        final Integer count = mSnapshotCounts.get(snapshot.phone);
+        mSnapshotCounts.put(snapshot.phone, count == null ? 1 : count + 1);
+    }
+
+    private void removeSnapshot(Connection connection) {
+        final ConnectionSnapshot snapshot = mConnectionSnapshots.remove(connection);
+        if (snapshot != null) {
+            final int count = mSnapshotCounts.get(snapshot.phone);
+            if (count == 1) {
+                mSnapshotCounts.remove(snapshot.phone);
+            } else {
+                mSnapshotCounts.put(snapshot.phone, count - 1);
             }
         }
     }
 
+    /**
+     * Returns true if the connections owned by the given phone are identical to what was
+     * recorded during the last full update. In that case a full update would not change any of
+     * our Call objects. Only the connections of the phone that sent the event are looked at.
+     *
+     * The capabilities of a call also depend on the calls of the other phones, through the
+     * PhoneUtils.okTo*() checks. Those are not compared here: on a device without a CDMA phone
+     * they only depend on the state of the connections of every phone, and a change there is
+     * reported by an event of its own phone, which then takes the full update path.
+     *
+     * Devices with a CDMA phone always take the full update path since their call model depends
+     * on state (3way dialing, call waiting menus, ECM, redialing) that is not visible through
+     * the connections. So does a phone with a ringing call: whether it can be answered with a
+     * text message depends on the default SMS application, which is not recorded.
+     */
+    private boolean isUnchangedSinceLastUpdate(Phone phone) {
+        final Phone defaultPhone = mCallManager.getDefaultPhone();
+        if (phone.getPhoneType() == PhoneConstants.PHONE_TYPE_CDMA ||
+                (defaultPhone != null &&
+                        defaultPhone.getPhoneType() == PhoneConstants.PHONE_TYPE_CDMA) ||
+                mCdmaOutgoingConnection != null ||
+                (phone.getRingingCall() != null && phone.getRingingCall().isRinging())) {
+            return false;
+        }
+
+        int seen = 0;
+        seen = matchSnapshots(phone.getRingingCall(), seen);
+        if (seen < 0) return false;
+        seen = matchSnapshots(phone.getForegroundCall(), seen);
+        if (seen < 0) return false;
+        seen = matchSnapshots(phone.getBackgroundCall(), seen);
+        if (seen < 0) return false;
+
+        // Any connection we know about for this phone that telephony no longer reports has to go
+        // through the orphan cleanup of the full update.
+        final Integer known = mSnapshotCounts.get(phone);
+        return (known == null ? 0 : known) == seen;
+    }
+
+    /**
+     * Compares every connection of the telephony call against its stored snapshot.
+     *
+     * @return The running count of matched connections, or -1 if any connection changed or is
+     *     not yet known.
+     */
+    private int matchSnapshots(com.android.internal.telephony.Call telephonyCall, int seen) {
+        if (telephonyCall == null) {
+            return seen;
+        }
+        final List<Connection> connections = telephonyCall.getConnections();
+        for (int i = 0; i < connections.size(); i++) {
+            final Connection connection = connections.get(i);
+            final ConnectionSnapshot snapshot = mConnectionSnapshots.get(connection);
+            if (snapshot == null ||
+                    !snapshot.matches(connection, mCallGatewayManager.getGatewayInfo(connection))) {
+                return -1;
+            }
+            seen++;
+        }
+        return seen;
+    }
+
     /**
      * Checks to see if the connection is the first connection in a conference call.
      * If it is a conference call, we will create a new Conference Call object or
@@ -484,7 +598,7 @@ public class CallModeler extends Handler {
             // Kill it!
             if (oldConfCall != null) {
                 if (DBG) Log.d(TAG, "Cleaning up an old conference call: " + oldConfCall);
-                mConfCallMap.remove(connection);
+                removeCallFromMap(mConfCallMap, connection);
                 oldConfCall.setState(State.IDLE);
                 changed = true;
 
@@ -872,11 +986,22 @@ public class CallModeler extends Handler {
             } else if (createIfMissing) {
                 call = createNewCall();
                 map.put(conn, call);
+                mCallIdIndex.put(call.getCallId(), conn);
             }
         }
         return call;
     }
 
+    /**
+     * Removes the call for the connection from the map and from the call id index.
+     */
+    private void removeCallFromMap(HashMap<Connection, Call> map, Connection conn) {
+        final Call call = map.remove(conn);
+        if (call != null) {
+            mCallIdIndex.remove(call.getCallId());
+        }
+    }
+
     /**
      * Creates a brand new connection for the call.
      */
@@ -909,6 +1034,60 @@ public class CallModeler extends Handler {
                 char c);
     }
 
+    /**
+     * Immutable record of the Connection properties that updateCallFromConnection() reads,
+     * along with the gateway info of the connection, which it looks up elsewhere. Two equal
+     * snapshots for the same connection of a phone other than CDMA produce the same Call.
+     */
+    private static final class ConnectionSnapshot {
+        final Phone phone;
+        final com.android.internal.telephony.Call owner;
+        final com.android.internal.telephony.Call.State state;
+        final boolean alive;
+        final boolean multiparty;
+        final int ownerSize;
+        final String address;
+        final int numberPresentation;
+        final String cnapName;
+        final int cnapNamePresentation;
+        final long connectTime;
+        final Connection.DisconnectCause disconnectCause;
+        // CallGatewayManager hands out the same object until the gateway data is cleared.
+        final RawGatewayInfo gatewayInfo;
+
+        ConnectionSnapshot(Connection connection, RawGatewayInfo gatewayInfo) {
+            owner = connection.getCall();
+            phone = owner != null ? owner.getPhone() : null;
+            multiparty = owner != null && owner.isMultiparty();
+            ownerSize = owner != null ? owner.getConnections().size() : 0;
+            state = connection.getState();
+            alive = connection.isAlive();
+            address = connection.getAddress();
+            numberPresentation = connection.getNumberPresentation();
+            cnapName = connection.getCnapName();
+            cnapNamePresentation = connection.getCnapNamePresentation();
+            connectTime = connection.getConnectTime();
+            disconnectCause = connection.getDisconnectCause();
+            this.gatewayInfo = gatewayInfo;
+        }
+
+        boolean matches(Connection connection, RawGatewayInfo gatewayInfo) {
+            final com.android.internal.telephony.Call call = connection.getCall();
+            return owner == call &&
+                    multiparty == (call != null && call.isMultiparty()) &&
+                    ownerSize == (call != null ? call.getConnections().size() : 0) &&
+                    state == connection.getState() &&
+                    alive == connection.isAlive() &&
+                    TextUtils.equals(address, connection.getAddress()) &&
+                    numberPresentation == connection.getNumberPresentation() &&
+                    TextUtils.equals(cnapName, connection.getCnapName()) &&
+                    cnapNamePresentation == connection.getCnapNamePresentation() &&
+                    connectTime == connection.getConnectTime() &&
+                    disconnectCause == connection.getDisconnectCause() &&
+                    this.gatewayInfo == gatewayInfo;
+        }
+    }
+
     /**
      * Result class for accessing a call by connection.
      */
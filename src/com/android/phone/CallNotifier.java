@@ -41,6 +41,7 @@ import android.net.Uri;
 import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.SystemVibrator;
 import android.os.Vibrator;
@@ -52,6 +53,8 @@ import android.telephony.TelephonyManager;
 import android.util.EventLog;
 import android.util.Log;
 
+import java.io.PrintWriter;
+
 /**
  * Phone app module that listens for phone state changes and various other
  * events from the telephony layer, and triggers any resulting UI behavior
@@ -121,6 +124,17 @@ public class CallNotifier extends Handler
     // Event used to indicate a query timeout.
     private static final int RINGER_CUSTOM_RINGTONE_QUERY_TIMEOUT = 100;
 
+    // The incoming call that was presented from CallerInfoCache without waiting for its
+    // CallerInfo query, and when that query was started.  Only touched on the main thread.
+    private Connection mFastPathConnection;
+    private long mFastPathQueryStartTime;
+
+    // Per-call statistics of the incoming call query, reported by dump().
+    private int mFastPathCount;              // calls presented from CallerInfoCache
+    private int mFastPathTimeoutAvoidedCount; // ... whose query outlasted RINGTONE_QUERY_WAIT_TIME
+    private int mQueryCompletedCount;        // calls that waited for the query to complete
+    private int mQueryTimeoutCount;          // calls that waited for the query to time out
+
     // Events generated internally:
     private static final int PHONE_MWI_CHANGED = 21;
     private static final int CALLWAITING_CALLERINFO_DISPLAY_DONE = 22;
@@ -525,14 +539,11 @@ public class CallNotifier extends Handler
      * Helper method to manage the start of incoming call queries
      */
     private void startIncomingCallQuery(Connection c) {
-        // TODO: cache the custom ringer object so that subsequent
-        // calls will not need to do this query work.  We can keep
-        // the MRU ringtones in memory.  We'll still need to hit
-        // the database to get the callerinfo to act as a key,
-        // but at least we can save the time required for the
-        // Media player setup.  The only issue with this is that
-        // we may need to keep an eye on the resources the Media
-        // player uses to keep these ringtones around.
+        // The Ringer keeps the default ringtone and the most used custom
+        // ringtones from CallerInfoCache prepared (see RingtoneCache), so
+        // ringing does not wait for Media player setup.  Callers found in
+        // CallerInfoCache are presented right away; for everyone else we
+        // still wait for the callerinfo query to act as a key.
 
         // make sure we're in a state where we can be ready to
         // query a ringtone uri.
@@ -551,11 +562,33 @@ public class CallNotifier extends Handler
             PhoneUtils.CallerInfoToken cit = PhoneUtils.startGetCallerInfo(
                     mApplication, c, this, c);
 
+            // CallerInfoCache holds the ringtone and "send to voicemail" settings of every
+            // contact that has one, so a hit there is all we need to decide how to present
+            // the call.  (A miss may still be a contact with default settings, which is why
+            // we wait for the query in that case.)
+            final CallerInfoCache.CacheEntry entry = cit.isFinal ? null
+                    : mApplication.callerInfoCache.getCacheEntry(c.getAddress());
+
             // if this has already been queried then just ring, otherwise
             // we wait for the alloted time before ringing.
             if (cit.isFinal) {
                 if (VDBG) log("- CallerInfo already up to date, using available data");
                 onQueryComplete(0, c, cit.currentInfo);
+            } else if (entry != null) {
+                if (VDBG) log("- Found in CallerInfoCache, not waiting for the query.");
+
+                // The query keeps running to fill in the display info, but it must not act
+                // on the call again when it completes.
+                synchronized (mCallerInfoQueryStateGuard) {
+                    mCallerInfoQueryState = CALLERINFO_QUERY_READY;
+                }
+                mFastPathConnection = c;
+                mFastPathQueryStartTime = SystemClock.elapsedRealtime();
+                mFastPathCount++;
+
+                if (!applyCacheEntry(c, entry)) {
+                    onCustomRingQueryComplete(c);
+                }
             } else {
                 if (VDBG) log("- Starting query, posting timeout message.");
 
@@ -807,6 +840,18 @@ public class CallNotifier extends Handler
                     ((Long) cookie).longValue());
         } else if (cookie instanceof Connection) {
             final Connection c = (Connection) cookie;
+            if (c == mFastPathConnection) {
+                // The call was already presented using CallerInfoCache (see
+                // startIncomingCallQuery()); only record how long we would have waited.
+                final long elapsed = SystemClock.elapsedRealtime() - mFastPathQueryStartTime;
+                if (elapsed > RINGTONE_QUERY_WAIT_TIME) {
+                    mFastPathTimeoutAvoidedCount++;
+                }
+                if (DBG) log("CallerInfo query for cached caller completed in " + elapsed + "ms");
+                mFastPathConnection = null;
+                return;
+            }
+
             if (VDBG) log("CallerInfo query complete (for CallNotifier), "
                     + "updating state for incoming call..");
 
@@ -822,6 +867,7 @@ public class CallNotifier extends Handler
             }
             //if we're in the right state
             if (isQueryExecutionTimeOK) {
+                mQueryCompletedCount++;
 
                 // send directly to voicemail.
                 if (ci.shouldSendToVoicemail) {
@@ -864,23 +910,14 @@ public class CallNotifier extends Handler
         // This method is intentionally verbose for now to detect possible bad side-effect for it.
         // TODO: Remove the verbose log when it looks stable and reliable enough.
 
+        mQueryTimeoutCount++;
 
         if (c != null) {
             final CallerInfoCache.CacheEntry entry =
                     mApplication.callerInfoCache.getCacheEntry(c.getAddress());
             if (entry != null) {
-                if (entry.sendToVoicemail) {
-                    log("send to voicemail flag detected (in fallback cache). hanging up.");
-                    if (mCM.getFirstActiveRingingCall().getLatestConnection() == c) {
-                        PhoneUtils.hangupRingingCall(mCM.getFirstActiveRingingCall());
-                        return;
-                    }
-                }
-
-                if (entry.customRingtone != null) {
-                    log("custom ringtone found (in fallback cache), setting up ringer: "
-                            + entry.customRingtone);
-                    this.mRinger.setCustomRingtoneUri(Uri.parse(entry.customRingtone));
+                if (applyCacheEntry(c, entry)) {
+                    return;
                 }
             } else {
                 // In this case we call onCustomRingQueryComplete(), just
@@ -894,6 +931,30 @@ public class CallNotifier extends Handler
         onCustomRingQueryComplete(c);
     }
 
+    /**
+     * Applies the settings found in CallerInfoCache to the incoming call: hangs it up if it
+     * should go straight to voicemail, or sets up the Ringer with the custom ringtone.
+     *
+     * @return true if the call was hung up, in which case it must not ring.
+     */
+    private boolean applyCacheEntry(Connection c, CallerInfoCache.CacheEntry entry) {
+        if (entry.sendToVoicemail) {
+            log("send to voicemail flag detected (in fallback cache). hanging up.");
+            final Call ringingCall = mCM.getFirstActiveRingingCall();
+            if (ringingCall != null && ringingCall.getLatestConnection() == c) {
+                PhoneUtils.hangupRingingCall(ringingCall);
+                return true;
+            }
+        }
+
+        if (entry.customRingtone != null) {
+            log("custom ringtone found (in fallback cache), setting up ringer: "
+                    + entry.customRingtone);
+            mRinger.setCustomRingtoneUri(Uri.parse(entry.customRingtone));
+        }
+        return false;
+    }
+
     private void onDisconnect(AsyncResult r) {
         if (VDBG) log("onDisconnect()...  CallManager state: " + mCM.getState());
 
@@ -1159,6 +1220,8 @@ public class CallNotifier extends Handler
     private void onCfiChanged(boolean visible) {
         if (VDBG) log("onCfiChanged(): " + visible);
         mApplication.notificationMgr.updateCfi(visible);
+        // Whatever the call settings screens last read about forwarding may be stale now.
+        mApplication.getSuppServiceQueryEngine().invalidateCallForwarding();
     }
 
     /**
@@ -1845,6 +1908,14 @@ public class CallNotifier extends Handler
         PhoneUtils.setMute(muteState);
     }
 
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("CallNotifier:");
+        pw.println("  incoming calls presented from CallerInfoCache: " + mFastPathCount
+                + " (query timeout avoided: " + mFastPathTimeoutAvoidedCount + ")");
+        pw.println("  incoming calls waiting for CallerInfo query: completed: "
+                + mQueryCompletedCount + ", timed out: " + mQueryTimeoutCount);
+    }
+
     private void log(String msg) {
         Log.d(LOG_TAG, msg);
     }
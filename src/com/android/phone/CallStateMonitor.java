@@ -19,11 +19,13 @@ package com.android.phone;
 import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 
 import com.android.internal.telephony.CallManager;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -36,6 +38,12 @@ import java.util.List;
  * It works as an inverse multiplexor for all classes wanted Call State updates
  * so that there exists only one channel to the telephony layer.
  *
+ * Every listener gets its own copy of each message.  Listeners whose handler runs on this
+ * monitor's looper (the main thread) are called directly, in the order they were added.  A
+ * listener that is not time critical can instead create its handler on its own HandlerThread;
+ * it then gets its copies posted to that thread and no longer delays the others.  The time
+ * each listener spends per event type is kept for {@link #dump}.
+ *
  * TODO: Add manual phone state checks (getState(), etc.).
  */
 class CallStateMonitor extends Handler {
@@ -61,13 +69,61 @@ class CallStateMonitor extends Handler {
     // Other events from call manager
     public static final int EVENT_OTA_PROVISION_CHANGE = 20;
 
+    private static final int EVENT_COUNT = EVENT_OTA_PROVISION_CHANGE + 1;
+
     private CallManager callManager;
-    private ArrayList<Handler> registeredHandlers;
+    // Only changed on this monitor's thread, which also iterates it without locking; changes
+    // are made holding its lock so that dump() can copy it from a binder thread.
+    private final ArrayList<Listener> registeredHandlers;
+
+    /**
+     * A registered handler and the time spent in it, per event type.
+     */
+    private static class Listener {
+        final Handler handler;
+        final boolean direct;
+        // Guarded by this; updated from the handler's thread.
+        final int[] counts = new int[EVENT_COUNT];
+        final long[] totalNanos = new long[EVENT_COUNT];
+        final long[] maxNanos = new long[EVENT_COUNT];
+
+        Listener(Handler handler, boolean direct) {
+            this.handler = handler;
+            this.direct = direct;
+        }
+
+        void dispatch(Message msg) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            handler.handleMessage(msg);
+            record(msg.what, SystemClock.elapsedRealtimeNanos() - start);
+        }
+
+        synchronized void record(int what, long nanos) {
+            if (what < 0 || what >= EVENT_COUNT) {
+                return;
+            }
+            counts[what]++;
+            totalNanos[what] += nanos;
+            maxNanos[what] = Math.max(maxNanos[what], nanos);
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  " + handler.getClass().getName() + (direct ? "" : " (own thread)"));
+            for (int what = 0; what < EVENT_COUNT; what++) {
+                if (counts[what] == 0) {
+                    continue;
+                }
+                pw.println(String.format("    event %-2d n=%-5d avg=%.3fms max=%.3fms total=%.1fms",
+                        what, counts[what], totalNanos[what] / 1e6 / counts[what],
+                        maxNanos[what] / 1e6, totalNanos[what] / 1e6));
+            }
+        }
+    }
 
     // Events generated internally:
     public CallStateMonitor(CallManager callManager) {
         this.callManager = callManager;
-        registeredHandlers = new ArrayList<Handler>();
+        registeredHandlers = new ArrayList<Listener>();
 
         registerForNotifications();
     }
@@ -92,12 +148,26 @@ class CallStateMonitor extends Handler {
         callManager.registerForPostDialCharacter(this, PHONE_ON_DIAL_CHARS, null);
     }
 
+    /**
+     * Adds a handler to receive all call state events.  A handler running on another looper
+     * than this monitor's gets them posted to it instead of being called directly.  Must be
+     * called on this monitor's thread.  The messages are recycled once handled, so a handler
+     * must not keep them, only their contents.
+     */
     public void addListener(Handler handler) {
-        if (handler != null && !registeredHandlers.contains(handler)) {
-            if (DBG) {
-                Log.d(LOG_TAG, "Adding Handler: " + handler);
+        if (handler == null) {
+            return;
+        }
+        for (Listener listener : registeredHandlers) {
+            if (listener.handler == handler) {
+                return;
             }
-            registeredHandlers.add(handler);
+        }
+        if (DBG) {
+            Log.d(LOG_TAG, "Adding Handler: " + handler);
+        }
+        synchronized (registeredHandlers) {
+            registeredHandlers.add(new Listener(handler, handler.getLooper() == getLooper()));
         }
     }
 
@@ -107,9 +177,31 @@ class CallStateMonitor extends Handler {
             Log.d(LOG_TAG, "handleMessage(" + msg.what + ")");
         }
 
-        for (Handler handler : registeredHandlers) {
-            handler.handleMessage(msg);
+        final long start = CallTracer.begin();
+        if (start != 0) {
+            CallTracer.record(CallTracer.STAGE_MONITOR_QUEUE,
+                    (SystemClock.uptimeMillis() - msg.getWhen()) * 1000000L);
+        }
+        CallTracer.setEventStart(start);
+
+        for (final Listener listener : registeredHandlers) {
+            final Message copy = Message.obtain(msg);
+            if (listener.direct) {
+                listener.dispatch(copy);
+                copy.recycle();
+            } else {
+                listener.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.dispatch(copy);
+                        copy.recycle();
+                    }
+                });
+            }
         }
+
+        CallTracer.setEventStart(0);
+        CallTracer.end(CallTracer.STAGE_MONITOR_DISPATCH, start);
     }
 
     /**
@@ -138,4 +230,14 @@ class CallStateMonitor extends Handler {
         registerForNotifications();
     }
 
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("CallStateMonitor: time spent in each listener, per event");
+        final ArrayList<Listener> listeners;
+        synchronized (registeredHandlers) {
+            listeners = new ArrayList<Listener>(registeredHandlers);
+        }
+        for (Listener listener : listeners) {
+            listener.dump(pw);
+        }
+    }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency tracing for the call pipeline.
+ *
+ * Spans cover a telephony event from the moment CallStateMonitor receives it, through
+ * CallModeler, to the binder call that hands the result to the in-call UI; and a command from
+ * the in-call UI from the moment CallCommandService receives it until the telephony action
+ * returns.  Finished spans go into a fixed size ring buffer which only keeps the most recent
+ * ones, and {@link #dump} reports their p50/p99 per stage.
+ *
+ * Tracing is off unless the debug.phone.calltrace property is set at startup, and can be
+ * switched at runtime through the TelephonyDebugService dump:
+ *   adb shell dumpsys activity service com.android.phone/.TelephonyDebugService calltrace on
+ * When off, {@link #begin} returns 0 without reading the clock and {@link #end} ignores it.
+ */
+final class CallTracer {
+    // Time a CallStateMonitor event waited in the main thread's message queue.
+    static final int STAGE_MONITOR_QUEUE = 0;
+    // CallStateMonitor fanning an event out to all of its listeners.
+    static final int STAGE_MONITOR_DISPATCH = 1;
+    // CallModeler handling an event.
+    static final int STAGE_MODELER = 2;
+    // The binder call to the in-call UI.
+    static final int STAGE_PROXY_BINDER = 3;
+    // From CallStateMonitor receiving an event until its result has been sent to the in-call UI.
+    static final int STAGE_EVENT_TO_UI = 4;
+    // From CallCommandService receiving a command until the telephony action returns.
+    static final int STAGE_COMMAND_ANSWER = 5;
+    static final int STAGE_COMMAND_REJECT = 6;
+    static final int STAGE_COMMAND_DISCONNECT = 7;
+    static final int STAGE_COMMAND_CALL_CONTROL = 8;
+    static final int STAGE_COMMAND_AUDIO = 9;
+    static final int STAGE_COMMAND_DTMF = 10;
+
+    private static final String[] STAGE_NAMES = {
+        "monitor.queue",
+        "monitor.dispatch",
+        "modeler",
+        "proxy.binder",
+        "event-to-ui",
+        "command.answer",
+        "command.reject",
+        "command.disconnect",
+        "command.call-control",
+        "command.audio",
+        "command.dtmf",
+    };
+
+    // Must be a power of two.
+    private static final int BUFFER_SIZE = 4096;
+
+    // Each span is packed into a single long so that writers never need a lock and a reader
+    // never sees half of a span: the stage + 1 in the top byte, the duration in nanoseconds in
+    // the rest.  0 marks a slot that was never written.
+    private static final int STAGE_SHIFT = 56;
+    private static final long DURATION_MASK = (1L << STAGE_SHIFT) - 1;
+
+    private static final AtomicLongArray sSpans = new AtomicLongArray(BUFFER_SIZE);
+    private static final AtomicInteger sNextSpan = new AtomicInteger();
+
+    private static volatile boolean sEnabled =
+            SystemProperties.getBoolean("debug.phone.calltrace", false);
+
+    // Start of the CallStateMonitor event currently being dispatched, or 0.  Main thread only.
+    private static long sEventStart;
+
+    /** This class is never instantiated. */
+    private CallTracer() {
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns the start time of a span, or 0 if tracing is off.
+     */
+    static long begin() {
+        return sEnabled ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    /**
+     * Records the span of the given stage which started at {@code start}, as returned by
+     * {@link #begin}.  Does nothing if the span was never started.
+     */
+    static void end(int stage, long start) {
+        if (start != 0 && sEnabled) {
+            record(stage, SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    /**
+     * Marks the start, or with 0 the end, of the dispatch of a CallStateMonitor event.
+     */
+    static void setEventStart(long start) {
+        sEventStart = start;
+    }
+
+    /**
+     * Returns the start of the CallStateMonitor event currently being dispatched, or 0 if
+     * called outside of a dispatch or with tracing off.  Usable as the start of a span.
+     */
+    static long getEventStart() {
+        return sEventStart;
+    }
+
+    /* package */ static void record(int stage, long durationNanos) {
+        final long duration = Math.min(Math.max(durationNanos, 0), DURATION_MASK);
+        final int slot = sNextSpan.getAndIncrement() & (BUFFER_SIZE - 1);
+        sSpans.lazySet(slot, ((long) (stage + 1) << STAGE_SHIFT) | duration);
+    }
+
+    /* package */ static void reset() {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            sSpans.set(i, 0);
+        }
+    }
+
+    /**
+     * Returns the durations recorded for each stage, in nanoseconds and sorted.
+     */
+    /* package */ static long[][] snapshot() {
+        final long[] spans = new long[BUFFER_SIZE];
+        final int[] counts = new int[STAGE_NAMES.length];
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            spans[i] = sSpans.get(i);
+            if (spans[i] != 0) {
+                counts[(int) (spans[i] >>> STAGE_SHIFT) - 1]++;
+            }
+        }
+
+        final long[][] durations = new long[STAGE_NAMES.length][];
+        for (int stage = 0; stage < durations.length; stage++) {
+            durations[stage] = new long[counts[stage]];
+            counts[stage] = 0;
+        }
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            if (spans[i] != 0) {
+                final int stage = (int) (spans[i] >>> STAGE_SHIFT) - 1;
+                durations[stage][counts[stage]++] = spans[i] & DURATION_MASK;
+            }
+        }
+        for (long[] stageDurations : durations) {
+            Arrays.sort(stageDurations);
+        }
+        return durations;
+    }
+
+    /**
+     * Returns the given percentile of sorted durations, using the nearest rank.
+     */
+    /* package */ static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(sorted.length * percent / 100.0);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    static void dump(PrintWriter pw) {
+        pw.println("CallTracer: " + (sEnabled ? "on" : "off"));
+        final long[][] durations = snapshot();
+        for (int stage = 0; stage < durations.length; stage++) {
+            final long[] sorted = durations[stage];
+            if (sorted.length == 0) {
+                continue;
+            }
+            pw.println(String.format("  %-22s n=%-5d p50=%.3fms p99=%.3fms max=%.3fms",
+                    STAGE_NAMES[stage], sorted.length,
+                    percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6,
+                    sorted[sorted.length - 1] / 1e6));
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.android.phone;
 
 import com.android.internal.telephony.CommandException;
-import com.android.internal.telephony.Phone;
 
 import static com.android.phone.TimeConsumingPreferenceActivity.RESPONSE_ERROR;
 
@@ -13,20 +12,18 @@ import android.preference.CheckBoxPreference;
 import android.util.AttributeSet;
 import android.util.Log;
 
-import com.android.internal.telephony.Phone;
-
 public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
     private static final String LOG_TAG = "CallWaitingCheckBoxPreference";
     private final boolean DBG = (PhoneGlobals.DBG_LEVEL >= 2);
 
     private final MyHandler mHandler = new MyHandler();
-    private final Phone mPhone;
+    private final SuppServiceQueryEngine mQueryEngine;
     private TimeConsumingPreferenceListener mTcpListener;
 
     public CallWaitingCheckBoxPreference(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
 
-        mPhone = PhoneGlobals.getPhone();
+        mQueryEngine = PhoneGlobals.getInstance().getSuppServiceQueryEngine();
     }
 
     public CallWaitingCheckBoxPreference(Context context, AttributeSet attrs) {
@@ -41,9 +38,16 @@ public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
         mTcpListener = listener;
 
         if (!skipReading) {
-            mPhone.getCallWaiting(mHandler.obtainMessage(MyHandler.MESSAGE_GET_CALL_WAITING,
+            mQueryEngine.getCallWaiting(mHandler.obtainMessage(
+                    MyHandler.MESSAGE_GET_CALL_WAITING,
                     MyHandler.MESSAGE_GET_CALL_WAITING, MyHandler.MESSAGE_GET_CALL_WAITING));
-            if (mTcpListener != null) {
+
+            // Show the last value read while the network is asked again.
+            int[] cwArray = mQueryEngine.getCachedCallWaiting();
+            if (cwArray != null) {
+                handleGetCallWaitingResult(cwArray);
+                setEnabled(false);
+            } else if (mTcpListener != null) {
                 mTcpListener.onStarted(this, true);
             }
         }
@@ -53,13 +57,25 @@ public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
     protected void onClick() {
         super.onClick();
 
-        mPhone.setCallWaiting(isChecked(),
+        mQueryEngine.setCallWaiting(isChecked(),
                 mHandler.obtainMessage(MyHandler.MESSAGE_SET_CALL_WAITING));
         if (mTcpListener != null) {
             mTcpListener.onStarted(this, false);
         }
     }
 
+    private void handleGetCallWaitingResult(int[] cwArray) {
+        // If cwArray[0] is = 1, then cwArray[1] must follow,
+        // with the TS 27.007 service class bit vector of services
+        // for which call waiting is enabled.
+        try {
+            setChecked(((cwArray[0] == 1) && ((cwArray[1] & 0x01) == 0x01)));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Log.e(LOG_TAG, "handleGetCallWaitingResponse: improper result: err ="
+                    + e.getMessage());
+        }
+    }
+
     private class MyHandler extends Handler {
         static final int MESSAGE_GET_CALL_WAITING = 0;
         static final int MESSAGE_SET_CALL_WAITING = 1;
@@ -103,16 +119,7 @@ public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
                 if (DBG) {
                     Log.d(LOG_TAG, "handleGetCallWaitingResponse: CW state successfully queried.");
                 }
-                int[] cwArray = (int[])ar.result;
-                // If cwArray[0] is = 1, then cwArray[1] must follow,
-                // with the TS 27.007 service class bit vector of services
-                // for which call waiting is enabled.
-                try {
-                    setChecked(((cwArray[0] == 1) && ((cwArray[1] & 0x01) == 0x01)));
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    Log.e(LOG_TAG, "handleGetCallWaitingResponse: improper result: err ="
-                            + e.getMessage());
-                }
+                handleGetCallWaitingResult((int[])ar.result);
             }
         }
 
@@ -127,7 +134,7 @@ public class CallWaitingCheckBoxPreference extends CheckBoxPreference {
             }
             if (DBG) Log.d(LOG_TAG, "handleSetCallWaitingResponse: re get");
 
-            mPhone.getCallWaiting(obtainMessage(MESSAGE_GET_CALL_WAITING,
+            mQueryEngine.getCallWaiting(obtainMessage(MESSAGE_GET_CALL_WAITING,
                     MESSAGE_SET_CALL_WAITING, MESSAGE_SET_CALL_WAITING, ar.exception));
         }
     }
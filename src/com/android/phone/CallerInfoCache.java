@@ -21,17 +21,26 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.ContactsContract.CommonDataKinds.Callable;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 
 /**
@@ -65,18 +74,41 @@ public class CallerInfoCache {
         Data.DATA1,                  // 0
         Phone.NORMALIZED_NUMBER,     // 1
         Data.CUSTOM_RINGTONE,        // 2
-        Data.SEND_TO_VOICEMAIL       // 3
+        Data.SEND_TO_VOICEMAIL,      // 3
+        Data.CONTACT_ID              // 4
     };
 
     private static final int INDEX_NUMBER            = 0;
     private static final int INDEX_NORMALIZED_NUMBER = 1;
     private static final int INDEX_CUSTOM_RINGTONE   = 2;
     private static final int INDEX_SEND_TO_VOICEMAIL = 3;
+    private static final int INDEX_CONTACT_ID        = 4;
 
     private static final String SELECTION = "("
             + "(" + Data.CUSTOM_RINGTONE + " IS NOT NULL OR " + Data.SEND_TO_VOICEMAIL + "=1)"
             + " AND " + Data.DATA1 + " IS NOT NULL)";
 
+    // Incremental refreshes read every row of the contacts changed since the last sync, including
+    // rows which no longer have a custom ringtone or the voicemail flag, so that those can be
+    // dropped from the cache.
+    private static final String INCREMENTAL_SELECTION = "("
+            + Data.CONTACT_LAST_UPDATED_TIMESTAMP + ">? AND " + Data.DATA1 + " IS NOT NULL)";
+
+    // Contacts changed since the last sync, to find those that no longer have any number.
+    private static final String[] CHANGED_CONTACTS_PROJECTION = new String[] {
+        Contacts._ID
+    };
+
+    private static final String CHANGED_CONTACTS_SELECTION =
+            Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?";
+
+    private static final String[] DELETED_PROJECTION = new String[] {
+        DeletedContacts.CONTACT_ID
+    };
+
+    private static final String DELETED_SELECTION =
+            DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?";
+
     public static class CacheEntry {
         public final String customRingtone;
         public final boolean sendToVoicemail;
@@ -91,10 +123,33 @@ public class CallerInfoCache {
         }
     }
 
+    /**
+     * One cacheable Data row, remembered so that incremental refreshes can recompute the entry of
+     * a number without querying the rows of unchanged contacts again.
+     */
+    private static class CachedRow {
+        final long contactId;
+        final String key;
+        final String customRingtone;
+        final boolean sendToVoicemail;
+
+        CachedRow(long contactId, String key, String customRingtone, boolean sendToVoicemail) {
+            this.contactId = contactId;
+            this.key = key;
+            this.customRingtone = customRingtone;
+            this.sendToVoicemail = sendToVoicemail;
+        }
+    }
+
     private class CacheAsyncTask extends AsyncTask<Void, Void, Void> {
 
+        private final boolean mFullRefresh;
         private PowerManager.WakeLock mWakeLock;
 
+        CacheAsyncTask(boolean fullRefresh) {
+            mFullRefresh = fullRefresh;
+        }
+
         /**
          * Call {@link PowerManager.WakeLock#acquire} and call {@link AsyncTask#execute(Object...)},
          * guaranteeing the lock is held during the asynchronous task.
@@ -110,8 +165,14 @@ public class CallerInfoCache {
 
         @Override
         protected Void doInBackground(Void... params) {
-            if (DBG) log("Start refreshing cache.");
-            refreshCacheEntry();
+            if (DBG) log("Start refreshing cache. full: " + mFullRefresh);
+            synchronized (mRefreshLock) {
+                if (mFullRefresh || mLastSyncTime == 0) {
+                    refreshCacheEntry();
+                } else {
+                    refreshChangedCacheEntries();
+                }
+            }
             return null;
         }
 
@@ -120,6 +181,12 @@ public class CallerInfoCache {
             if (VDBG) log("CacheAsyncTask#onPostExecute()");
             super.onPostExecute(result);
             releaseWakeLock();
+
+            // Let the Ringer prepare the custom ringtones callers are most likely to need.
+            final PhoneGlobals app = PhoneGlobals.getInstanceIfPrimary();
+            if (app != null && app.getRinger() != null) {
+                app.getRinger().prewarmRingtones(getCustomRingtones());
+            }
         }
 
         @Override
@@ -150,7 +217,29 @@ public class CallerInfoCache {
      * {@link #getCacheEntry(String)} access to the newer one every time when the object is
      * being replaced.
      */
-    private volatile HashMap<String, CacheEntry> mNumberToEntry;
+    private volatile NumberIndex mNumberToEntry;
+
+    /**
+     * Everything below is only touched by the refresh tasks while holding mRefreshLock.
+     *
+     * The rows behind mNumberToEntry, indexed by contact and by cache key, and the wall clock
+     * time of the query the cache was last synced with. Contacts updated or deleted after that
+     * time are re-read by an incremental refresh.
+     */
+    private final Object mRefreshLock = new Object();
+    private final HashMap<Long, ArrayList<CachedRow>> mRowsByContact =
+            new HashMap<Long, ArrayList<CachedRow>>();
+    private final HashMap<String, ArrayList<CachedRow>> mRowsByKey =
+            new HashMap<String, ArrayList<CachedRow>>();
+    private long mLastSyncTime;
+
+    // Refresh statistics, written by the refresh task and read by dump().
+    private volatile long mLastFullRefreshMillis;
+    private volatile int mLastFullRefreshRows;
+    private volatile long mLastIncrementalRefreshMillis;
+    private volatile int mLastIncrementalRefreshRows;
+    private volatile int mFullRefreshCount;
+    private volatile int mIncrementalRefreshCount;
 
     /**
      * Used to remember if the previous task is finished or not. Should be set to null when done.
@@ -168,17 +257,28 @@ public class CallerInfoCache {
 
     private CallerInfoCache(Context context) {
         mContext = context;
-        mNumberToEntry = new HashMap<String, CacheEntry>();
+        mNumberToEntry = new NumberIndex(new HashMap<String, CacheEntry>());
     }
 
     /* package */ void startAsyncCache() {
-        if (DBG) log("startAsyncCache");
+        startAsyncCache(true);
+    }
+
+    /**
+     * Starts refreshing the cache in the background.
+     *
+     * @param fullRefresh If true, all contacts are re-read, which also serves as a consistency
+     *     pass. Otherwise only contacts changed or deleted since the last refresh are read, falling
+     *     back to a full refresh when the cache has not been filled yet.
+     */
+    /* package */ void startAsyncCache(boolean fullRefresh) {
+        if (DBG) log("startAsyncCache: " + fullRefresh);
 
         if (mCacheAsyncTask != null) {
             Log.w(LOG_TAG, "Previous cache task is remaining.");
             mCacheAsyncTask.cancel(true);
         }
-        mCacheAsyncTask = new CacheAsyncTask();
+        mCacheAsyncTask = new CacheAsyncTask(fullRefresh);
         mCacheAsyncTask.acquireWakeLockAndExecute();
     }
 
@@ -190,6 +290,7 @@ public class CallerInfoCache {
 
         Intent intent = new Intent(CallerInfoCacheUpdateReceiver.ACTION_UPDATE_CALLER_INFO_CACHE);
         intent.setClass(mContext, CallerInfoCacheUpdateReceiver.class);
+        intent.putExtra(CallerInfoCacheUpdateReceiver.EXTRA_FULL_REFRESH, true);
         PendingIntent pendingIntent =
                 PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
         AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
@@ -202,12 +303,13 @@ public class CallerInfoCache {
     private void refreshCacheEntry() {
         if (VDBG) log("refreshCacheEntry() started");
 
-        // There's no way to know which part of the database was updated. Also we don't want
-        // to block incoming calls asking for the cache. So this method just does full query
-        // and replaces the older cache with newer one. To refrain from blocking incoming calls,
-        // it keeps older one as much as it can, and replaces it with newer one inside a very small
-        // synchronized block.
+        // This full query is the consistency pass; refreshChangedCacheEntries() handles the
+        // contacts changed since. To refrain from blocking incoming calls, it keeps older cache
+        // as much as it can, and replaces it with newer one with a single volatile write.
 
+        final long startTime = SystemClock.elapsedRealtime();
+        final long syncTime = System.currentTimeMillis();
+        int rows = 0;
         Cursor cursor = null;
         try {
             cursor = mContext.getContentResolver().query(Callable.CONTENT_URI,
@@ -217,38 +319,15 @@ public class CallerInfoCache {
                 // cache here again, and replace it with older one.
                 final HashMap<String, CacheEntry> newNumberToEntry =
                         new HashMap<String, CacheEntry>(cursor.getCount());
+                mRowsByContact.clear();
+                mRowsByKey.clear();
 
                 while (cursor.moveToNext()) {
-                    final String number = cursor.getString(INDEX_NUMBER);
-                    String normalizedNumber = cursor.getString(INDEX_NORMALIZED_NUMBER);
-                    if (normalizedNumber == null) {
-                        // There's no guarantee normalized numbers are available every time and
-                        // it may become null sometimes. Try formatting the original number.
-                        normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-                    }
-                    final String customRingtone = cursor.getString(INDEX_CUSTOM_RINGTONE);
-                    final boolean sendToVoicemail = cursor.getInt(INDEX_SEND_TO_VOICEMAIL) == 1;
-
-                    if (PhoneNumberUtils.isUriNumber(number)) {
-                        // SIP address case
-                        putNewEntryWhenAppropriate(
-                                newNumberToEntry, number, customRingtone, sendToVoicemail);
-                    } else {
-                        // PSTN number case
-                        // Each normalized number may or may not have full content of the number.
-                        // Contacts database may contain +15001234567 while a dialed number may be
-                        // just 5001234567. Also we may have inappropriate country
-                        // code in some cases (e.g. when the location of the device is inconsistent
-                        // with the device's place). So to avoid confusion we just rely on the last
-                        // 7 digits here. It may cause some kind of wrong behavior, which is
-                        // unavoidable anyway in very rare cases..
-                        final int length = normalizedNumber.length();
-                        final String key = length > 7
-                                ? normalizedNumber.substring(length - 7, length)
-                                        : normalizedNumber;
-                        putNewEntryWhenAppropriate(
-                                newNumberToEntry, key, customRingtone, sendToVoicemail);
-                    }
+                    rows++;
+                    final CachedRow row = readRow(cursor);
+                    addRow(row);
+                    putNewEntryWhenAppropriate(
+                            newNumberToEntry, row.key, row.customRingtone, row.sendToVoicemail);
                 }
 
                 if (VDBG) {
@@ -258,7 +337,8 @@ public class CallerInfoCache {
                     }
                 }
 
-                mNumberToEntry = newNumberToEntry;
+                mNumberToEntry = new NumberIndex(newNumberToEntry);
+                mLastSyncTime = syncTime;
 
                 if (DBG) {
                     log("Caching entries are done. Total: " + newNumberToEntry.size());
@@ -277,7 +357,181 @@ public class CallerInfoCache {
             }
         }
 
-        if (VDBG) log("refreshCacheEntry() ended");
+        mLastFullRefreshMillis = SystemClock.elapsedRealtime() - startTime;
+        mLastFullRefreshRows = rows;
+        mFullRefreshCount++;
+        if (DBG) log("Full refresh took " + mLastFullRefreshMillis + "ms for " + rows + " rows");
+    }
+
+    /**
+     * Re-reads only the contacts updated or deleted since the last sync, and publishes a copy of
+     * the current map with the affected numbers recomputed.
+     */
+    private void refreshChangedCacheEntries() {
+        if (VDBG) log("refreshChangedCacheEntries() started");
+
+        final long startTime = SystemClock.elapsedRealtime();
+        final long syncTime = System.currentTimeMillis();
+        final String[] selectionArgs = new String[] { String.valueOf(mLastSyncTime) };
+        final HashSet<String> affectedKeys = new HashSet<String>();
+        int rows = 0;
+
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(DeletedContacts.CONTENT_URI,
+                    DELETED_PROJECTION, DELETED_SELECTION, selectionArgs, null);
+            if (cursor == null) {
+                Log.w(LOG_TAG, "deleted contacts cursor is null");
+                return;
+            }
+            while (cursor.moveToNext()) {
+                rows++;
+                removeContact(cursor.getLong(0), affectedKeys);
+            }
+            cursor.close();
+
+            cursor = mContext.getContentResolver().query(Callable.CONTENT_URI,
+                    PROJECTION, INCREMENTAL_SELECTION, selectionArgs, null);
+            if (cursor == null) {
+                // Deleted contacts were already dropped from the rows but not from the published
+                // cache; let the next refresh rebuild everything.
+                Log.w(LOG_TAG, "cursor is null");
+                mLastSyncTime = 0;
+                return;
+            }
+
+            // A changed contact is re-read in full, so first forget everything it had.
+            final HashSet<Long> seenContacts = new HashSet<Long>();
+            while (cursor.moveToNext()) {
+                rows++;
+                final CachedRow row = readRow(cursor);
+                if (seenContacts.add(row.contactId)) {
+                    removeContact(row.contactId, affectedKeys);
+                }
+                if (row.customRingtone != null || row.sendToVoicemail) {
+                    addRow(row);
+                    affectedKeys.add(row.key);
+                }
+            }
+            cursor.close();
+            cursor = null;
+
+            // A changed contact whose numbers were all removed has no rows above, but its old
+            // ones are still here.  Only worth a query if any cached contact was left unseen.
+            if (!seenContacts.containsAll(mRowsByContact.keySet())) {
+                cursor = mContext.getContentResolver().query(Contacts.CONTENT_URI,
+                        CHANGED_CONTACTS_PROJECTION, CHANGED_CONTACTS_SELECTION, selectionArgs,
+                        null);
+                if (cursor == null) {
+                    Log.w(LOG_TAG, "changed contacts cursor is null");
+                    mLastSyncTime = 0;
+                    return;
+                }
+                while (cursor.moveToNext()) {
+                    rows++;
+                    final long contactId = cursor.getLong(0);
+                    if (!seenContacts.contains(contactId)) {
+                        removeContact(contactId, affectedKeys);
+                    }
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        if (!affectedKeys.isEmpty()) {
+            final HashMap<String, CacheEntry> newNumberToEntry =
+                    new HashMap<String, CacheEntry>(mNumberToEntry.getEntries());
+            for (String key : affectedKeys) {
+                newNumberToEntry.remove(key);
+                final ArrayList<CachedRow> keyRows = mRowsByKey.get(key);
+                if (keyRows != null) {
+                    for (int i = 0; i < keyRows.size(); i++) {
+                        final CachedRow row = keyRows.get(i);
+                        putNewEntryWhenAppropriate(newNumberToEntry, key, row.customRingtone,
+                                row.sendToVoicemail);
+                    }
+                }
+            }
+            mNumberToEntry = new NumberIndex(newNumberToEntry);
+        }
+        mLastSyncTime = syncTime;
+
+        mLastIncrementalRefreshMillis = SystemClock.elapsedRealtime() - startTime;
+        mLastIncrementalRefreshRows = rows;
+        mIncrementalRefreshCount++;
+        if (DBG) {
+            log("Incremental refresh took " + mLastIncrementalRefreshMillis + "ms for " + rows
+                    + " rows, " + affectedKeys.size() + " numbers affected");
+        }
+    }
+
+    private static CachedRow readRow(Cursor cursor) {
+        final String number = cursor.getString(INDEX_NUMBER);
+        final String customRingtone = cursor.getString(INDEX_CUSTOM_RINGTONE);
+        final boolean sendToVoicemail = cursor.getInt(INDEX_SEND_TO_VOICEMAIL) == 1;
+        final long contactId = cursor.getLong(INDEX_CONTACT_ID);
+
+        if (PhoneNumberUtils.isUriNumber(number)) {
+            // SIP address case
+            return new CachedRow(contactId, number, customRingtone, sendToVoicemail);
+        }
+
+        // PSTN number case
+        String normalizedNumber = cursor.getString(INDEX_NORMALIZED_NUMBER);
+        if (normalizedNumber == null) {
+            // There's no guarantee normalized numbers are available every time and
+            // it may become null sometimes. Try formatting the original number.
+            normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+        }
+        // Each normalized number may or may not have full content of the number.
+        // Contacts database may contain +15001234567 while a dialed number may be
+        // just 5001234567. Also we may have inappropriate country
+        // code in some cases (e.g. when the location of the device is inconsistent
+        // with the device's place). So to avoid confusion we just rely on the last
+        // 7 digits here. It may cause some kind of wrong behavior, which is
+        // unavoidable anyway in very rare cases..
+        final int length = normalizedNumber.length();
+        final String key = length > 7
+                ? normalizedNumber.substring(length - 7, length)
+                        : normalizedNumber;
+        return new CachedRow(contactId, key, customRingtone, sendToVoicemail);
+    }
+
+    private void addRow(CachedRow row) {
+        ArrayList<CachedRow> contactRows = mRowsByContact.get(row.contactId);
+        if (contactRows == null) {
+            contactRows = new ArrayList<CachedRow>(1);
+            mRowsByContact.put(row.contactId, contactRows);
+        }
+        contactRows.add(row);
+
+        ArrayList<CachedRow> keyRows = mRowsByKey.get(row.key);
+        if (keyRows == null) {
+            keyRows = new ArrayList<CachedRow>(1);
+            mRowsByKey.put(row.key, keyRows);
+        }
+        keyRows.add(row);
+    }
+
+    private void removeContact(long contactId, HashSet<String> affectedKeys) {
+        final ArrayList<CachedRow> contactRows = mRowsByContact.remove(contactId);
+        if (contactRows == null) {
+            return;
+        }
+        for (int i = 0; i < contactRows.size(); i++) {
+            final CachedRow row = contactRows.get(i);
+            final ArrayList<CachedRow> keyRows = mRowsByKey.get(row.key);
+            if (keyRows != null) {
+                keyRows.remove(row);
+                if (keyRows.isEmpty()) {
+                    mRowsByKey.remove(row.key);
+                }
+            }
+            affectedKeys.add(row.key);
+        }
     }
 
     private void putNewEntryWhenAppropriate(HashMap<String, CacheEntry> newNumberToEntry,
@@ -305,30 +559,200 @@ public class CallerInfoCache {
      * an exception)
      */
     public CacheEntry getCacheEntry(String number) {
-        if (mNumberToEntry == null) {
+        final NumberIndex index = mNumberToEntry;
+        if (index == null) {
             // Very unusual state. This implies the cache isn't ready during the request, while
             // it should be prepared on the boot time (i.e. a way before even the first request).
             Log.w(LOG_TAG, "Fallback cache isn't ready.");
             return null;
         }
 
-        CacheEntry entry;
+        if (VDBG) log("Trying to lookup " + number);
+        final CacheEntry entry = index.get(number);
+        if (VDBG) log("Obtained " + entry);
+        return entry;
+    }
+
+    /**
+     * Returns the distinct custom ringtones in the cache, the most used ones first.
+     */
+    /* package */ List<Uri> getCustomRingtones() {
+        final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for (CacheEntry entry : mNumberToEntry.getEntries().values()) {
+            if (entry.customRingtone != null && !entry.sendToVoicemail) {
+                final Integer count = counts.get(entry.customRingtone);
+                counts.put(entry.customRingtone, count == null ? 1 : count + 1);
+            }
+        }
+
+        final ArrayList<Entry<String, Integer>> sorted =
+                new ArrayList<Entry<String, Integer>>(counts.entrySet());
+        Collections.sort(sorted, new Comparator<Entry<String, Integer>>() {
+            @Override
+            public int compare(Entry<String, Integer> lhs, Entry<String, Integer> rhs) {
+                return rhs.getValue() - lhs.getValue();
+            }
+        });
+
+        final List<Uri> uris = new ArrayList<Uri>(sorted.size());
+        for (Entry<String, Integer> entry : sorted) {
+            uris.add(Uri.parse(entry.getKey()));
+        }
+        return uris;
+    }
+
+    /**
+     * Returns the key a number is cached under: a full SIP address, or the last 7 digits of the
+     * normalized PSTN number.
+     */
+    private static String getKey(String number) {
         if (PhoneNumberUtils.isUriNumber(number)) {
-            if (VDBG) log("Trying to lookup " + number);
+            return number;
+        }
+        final String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+        final int length = normalizedNumber.length();
+        return (length > 7 ? normalizedNumber.substring(length - 7, length) : normalizedNumber);
+    }
 
-            entry = mNumberToEntry.get(number);
-        } else {
-            final String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-            final int length = normalizedNumber.length();
-            final String key =
-                    (length > 7 ? normalizedNumber.substring(length - 7, length)
-                            : normalizedNumber);
-            if (VDBG) log("Trying to lookup " + key);
+    /**
+     * Immutable lookup structure over the cache entries.
+     *
+     * Keys made only of digits, which covers almost every PSTN number, are packed into an int
+     * (digits plus their count, so "0012345" and "12345" stay distinct) and stored in an open
+     * addressing table. {@link #get} computes that packed key by walking the incoming number
+     * backwards, so the common lookup costs one probe and no allocation whatever the formatting
+     * of the number. SIP addresses, keys holding a '+' and numbers with keypad letters go
+     * through the string map as before.
+     */
+    /* package */ static class NumberIndex {
+        private static final int KEY_DIGITS = 7;
+        private static final int NO_PACKED_KEY = 0;
+
+        private final HashMap<String, CacheEntry> mEntries;
+        private final int[] mPackedKeys;
+        private final CacheEntry[] mPackedEntries;
+        private final int mMask;
 
-            entry = mNumberToEntry.get(key);
+        /* package */ NumberIndex(HashMap<String, CacheEntry> entries) {
+            mEntries = entries;
+
+            int capacity = 16;
+            while (capacity < entries.size() * 2) {
+                capacity <<= 1;
+            }
+            mPackedKeys = new int[capacity];
+            mPackedEntries = new CacheEntry[capacity];
+            mMask = capacity - 1;
+
+            for (Entry<String, CacheEntry> entry : entries.entrySet()) {
+                final int packed = packKey(entry.getKey());
+                if (packed == NO_PACKED_KEY) {
+                    continue;
+                }
+                int slot = hash(packed) & mMask;
+                while (mPackedKeys[slot] != NO_PACKED_KEY) {
+                    slot = (slot + 1) & mMask;
+                }
+                mPackedKeys[slot] = packed;
+                mPackedEntries[slot] = entry.getValue();
+            }
         }
-        if (VDBG) log("Obtained " + entry);
-        return entry;
+
+        /* package */ CacheEntry get(String number) {
+            if (number == null) {
+                return null;
+            }
+            if (!PhoneNumberUtils.isUriNumber(number)) {
+                final int packed = packNumber(number);
+                if (packed != NO_PACKED_KEY) {
+                    int slot = hash(packed) & mMask;
+                    int key;
+                    while ((key = mPackedKeys[slot]) != NO_PACKED_KEY) {
+                        if (key == packed) {
+                            return mPackedEntries[slot];
+                        }
+                        slot = (slot + 1) & mMask;
+                    }
+                    return null;
+                }
+            }
+            return mEntries.get(getKey(number));
+        }
+
+        /* package */ HashMap<String, CacheEntry> getEntries() {
+            return mEntries;
+        }
+
+        /* package */ int size() {
+            return mEntries.size();
+        }
+
+        /**
+         * Packs a cache key made of 1 to 7 digits, or returns NO_PACKED_KEY.
+         */
+        private static int packKey(String key) {
+            final int length = key.length();
+            if (length == 0 || length > KEY_DIGITS) {
+                return NO_PACKED_KEY;
+            }
+            int value = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = key.charAt(i);
+                if (c < '0' || c > '9') {
+                    return NO_PACKED_KEY;
+                }
+                value = value * 10 + (c - '0');
+            }
+            return pack(value, length);
+        }
+
+        /**
+         * Computes the packed form of getKey(number) for a PSTN number without allocating, or
+         * returns NO_PACKED_KEY when the key would not be all digits.
+         */
+        private static int packNumber(String number) {
+            int value = 0;
+            int scale = 1;
+            int digits = 0;
+            for (int i = number.length() - 1; i >= 0; i--) {
+                final char c = number.charAt(i);
+                final int digit = Character.digit(c, 10);
+                if (digit != -1) {
+                    if (digits < KEY_DIGITS) {
+                        value += digit * scale;
+                        scale *= 10;
+                        digits++;
+                    }
+                } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                    // normalizeNumber() converts keypad letters anywhere in the number.
+                    return NO_PACKED_KEY;
+                } else if (i == 0 && c == '+' && digits < KEY_DIGITS) {
+                    // A short number keeps its leading '+' in the key.
+                    return NO_PACKED_KEY;
+                }
+            }
+            return digits == 0 ? NO_PACKED_KEY : pack(value, digits);
+        }
+
+        private static int pack(int value, int digits) {
+            return value * 8 + digits;
+        }
+
+        private static int hash(int key) {
+            final int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("CallerInfoCache:");
+        final NumberIndex index = mNumberToEntry;
+        pw.println("  entries: " + (index != null ? index.size() : 0));
+        pw.println("  full refreshes: " + mFullRefreshCount + ", last took "
+                + mLastFullRefreshMillis + "ms for " + mLastFullRefreshRows + " rows");
+        pw.println("  incremental refreshes: " + mIncrementalRefreshCount + ", last took "
+                + mLastIncrementalRefreshMillis + "ms for " + mLastIncrementalRefreshRows
+                + " rows");
     }
 
     private static void log(String msg) {
@@ -26,7 +26,8 @@ import android.util.Log;
  * BroadcastReceiver responsible for (periodic) update of {@link CallerInfoCache}.
  *
  * This broadcast can be sent from Contacts edit screen, implying relevant settings have changed
- * and the cache may become obsolete.
+ * and the cache may become obsolete. Such updates only re-read the changed contacts; the periodic
+ * alarm sets {@link #EXTRA_FULL_REFRESH} to rebuild the whole cache.
  */
 public class CallerInfoCacheUpdateReceiver extends BroadcastReceiver {
     private static final String LOG_TAG = CallerInfoCacheUpdateReceiver.class.getSimpleName();
@@ -36,10 +37,13 @@ public class CallerInfoCacheUpdateReceiver extends BroadcastReceiver {
     public static final String ACTION_UPDATE_CALLER_INFO_CACHE =
             "com.android.phone.UPDATE_CALLER_INFO_CACHE";
 
+    /* package */ static final String EXTRA_FULL_REFRESH = "full_refresh";
+
     @Override
     public void onReceive(Context context, Intent intent) {
         if (DBG) log("CallerInfoCacheUpdateReceiver#onReceive(). Intent: " + intent);
-        PhoneGlobals.getInstance().callerInfoCache.startAsyncCache();
+        PhoneGlobals.getInstance().callerInfoCache.startAsyncCache(
+                intent.getBooleanExtra(EXTRA_FULL_REFRESH, false));
     }
 
     private static void log(String msg) {
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.util.Log;
+
+/**
+ * Table of +CLCC indexes for the live connections, keyed by connection creation time.
+ *
+ * A connection keeps its index for as long as it lives.  New connections get the lowest free
+ * indexes, the earliest created one first.  Indexes are only (re)assigned by {@link #commit},
+ * which BluetoothPhoneService calls when answering AT+CLCC, so the table a headset sees is the
+ * same as if it had been computed from scratch for that request.  In between, the set of live
+ * connections is replaced on every call state change with {@link #clearLive} and
+ * {@link #addLive}.
+ *
+ * Everything is kept in preallocated arrays; a request that follows no change only reads them.
+ */
+class ClccIndex<T> {
+    private static final String LOG_TAG = "ClccIndex";
+
+    private final int mCapacity;
+
+    // The committed table, indexed by CLCC index (0 based).
+    private final boolean[] mUsed;
+    private final long[] mTimes;
+    private final Object[] mEntries;
+
+    // The live connections as last reported, in no particular order.
+    private final long[] mLiveTimes;
+    private final Object[] mLiveEntries;
+    private int mLiveCount;
+    private boolean mDirty;
+
+    // Scratch space for commit().
+    private final boolean[] mWasUsed;
+    private final boolean[] mLiveIndexed;
+
+    ClccIndex(int capacity) {
+        mCapacity = capacity;
+        mUsed = new boolean[capacity];
+        mTimes = new long[capacity];
+        mEntries = new Object[capacity];
+        mWasUsed = new boolean[capacity];
+        // More connections than indexes cannot get one, but are still accepted here.
+        mLiveTimes = new long[capacity * 2];
+        mLiveEntries = new Object[capacity * 2];
+        mLiveIndexed = new boolean[capacity * 2];
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Starts a new report of the live connections.
+     */
+    void clearLive() {
+        for (int i = 0; i < mLiveCount; i++) {
+            mLiveEntries[i] = null;
+        }
+        mLiveCount = 0;
+        mDirty = true;
+    }
+
+    void addLive(long createTime, T entry) {
+        if (mLiveCount == mLiveTimes.length) {
+            Log.w(LOG_TAG, "Too many connections, ignoring " + createTime);
+            return;
+        }
+        mLiveTimes[mLiveCount] = createTime;
+        mLiveEntries[mLiveCount] = entry;
+        mLiveCount++;
+    }
+
+    /**
+     * Brings the table up to date with the live connections: frees the indexes of connections
+     * that went away, and assigns indexes to new ones.
+     */
+    void commit() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+
+        // Keep the indexes of the connections we already know about.
+        for (int i = 0; i < mCapacity; i++) {
+            mWasUsed[i] = mUsed[i];
+            mUsed[i] = false;
+            mEntries[i] = null;
+        }
+        for (int j = 0; j < mLiveCount; j++) {
+            mLiveIndexed[j] = false;
+            for (int i = 0; i < mCapacity; i++) {
+                if (mWasUsed[i] && mTimes[i] == mLiveTimes[j]) {
+                    mUsed[i] = true;
+                    mEntries[i] = mLiveEntries[j];
+                    mLiveIndexed[j] = true;
+                    break;
+                }
+            }
+        }
+
+        // Hand out the lowest free indexes to the new connections, earliest first.
+        int free = 0;
+        while (true) {
+            int earliest = -1;
+            for (int j = 0; j < mLiveCount; j++) {
+                if (!mLiveIndexed[j]
+                        && (earliest < 0 || mLiveTimes[j] < mLiveTimes[earliest])) {
+                    earliest = j;
+                }
+            }
+            if (earliest < 0) {
+                break;
+            }
+            while (free < mCapacity && mUsed[free]) {
+                free++;
+            }
+            if (free == mCapacity) {
+                Log.w(LOG_TAG, "No CLCC index left for " + mLiveTimes[earliest]);
+                break;
+            }
+            mUsed[free] = true;
+            mTimes[free] = mLiveTimes[earliest];
+            mEntries[free] = mLiveEntries[earliest];
+            mLiveIndexed[earliest] = true;
+        }
+    }
+
+    /**
+     * Returns the connection at the given CLCC index (0 based) as of the last
+     * {@link #commit}, or null if the index is free.
+     */
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        return mUsed[index] ? (T) mEntries[index] : null;
+    }
+
+    /**
+     * Returns the creation time of the connection at the given CLCC index (0 based).
+     */
+    long getTime(int index) {
+        return mTimes[index];
+    }
+}
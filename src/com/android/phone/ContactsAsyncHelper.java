@@ -16,10 +16,11 @@
 
 package com.android.phone;
 
-import android.app.Notification;
 import android.content.ContentUris;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
@@ -27,17 +28,28 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Contacts;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.internal.telephony.CallerInfo;
 import com.android.internal.telephony.Connection;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Helper class for loading contacts photo asynchronously.
+ *
+ * Loaded photos are kept in two memory-bounded LRU caches keyed by contact uri, one for the
+ * full photo and one for the notification icon, which is decoded straight at its own size.
+ * A request for a uri that is already being loaded waits for that load instead of starting
+ * another one.  The caches are dropped whenever the contacts change.
  */
 public class ContactsAsyncHelper {
 
@@ -66,6 +78,36 @@ public class ContactsAsyncHelper {
     // constants
     private static final int EVENT_LOAD_IMAGE = 1;
 
+    private static final int MAX_PHOTO_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_ICON_CACHE_BYTES = 1024 * 1024;
+
+    private static final class BitmapCache extends LruCache<Uri, Bitmap> {
+        BitmapCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(Uri uri, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    }
+
+    private static final BitmapCache sPhotoCache = new BitmapCache(MAX_PHOTO_CACHE_BYTES);
+    private static final BitmapCache sIconCache = new BitmapCache(MAX_ICON_CACHE_BYTES);
+
+    /** Requests waiting for a load in progress, by uri.  Guarded by itself. */
+    private static final HashMap<Uri, ArrayList<WorkerArgs>> sPendingRequests =
+            new HashMap<Uri, ArrayList<WorkerArgs>>();
+
+    // Stats, guarded by sPendingRequests.
+    private static boolean sObservingContacts;
+    private static int sHits;
+    private static int sMisses;
+    private static int sMerged;
+    private static int sDecodes;
+    private static long sTotalDecodeNanos;
+    private static long sMaxDecodeNanos;
+
     private final Handler mResultHandler = new Handler() {
         /** Called when loading is done. */
         @Override
@@ -99,6 +141,7 @@ public class ContactsAsyncHelper {
     }
 
     private static final class WorkerArgs {
+        public int token;
         public Context context;
         public Uri uri;
         public Drawable photo;
@@ -212,89 +255,180 @@ public class ContactsAsyncHelper {
 
             switch (msg.arg1) {
                 case EVENT_LOAD_IMAGE:
-                    InputStream inputStream = null;
-                    try {
-                        try {
-                            inputStream = Contacts.openContactPhotoInputStream(
-                                    args.context.getContentResolver(), args.uri, true);
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, "Error opening photo input stream", e);
-                        }
-
-                        if (inputStream != null) {
-                            args.photo = Drawable.createFromStream(inputStream,
-                                    args.uri.toString());
-
-                            // This assumes Drawable coming from contact database is usually
-                            // BitmapDrawable and thus we can have (down)scaled version of it.
-                            args.photoIcon = getPhotoIconWhenAppropriate(args.context, args.photo);
-
-                            if (DBG) {
-                                Log.d(LOG_TAG, "Loading image: " + msg.arg1 +
-                                        " token: " + msg.what + " image URI: " + args.uri);
-                            }
-                        } else {
-                            args.photo = null;
-                            args.photoIcon = null;
-                            if (DBG) {
-                                Log.d(LOG_TAG, "Problem with image: " + msg.arg1 +
-                                        " token: " + msg.what + " image URI: " + args.uri +
-                                        ", using default image.");
+                    Bitmap photo = sPhotoCache.get(args.uri);
+                    Bitmap photoIcon = sIconCache.get(args.uri);
+                    if (photo == null || photoIcon == null) {
+                        photo = null;
+                        photoIcon = null;
+                        byte[] data = readPhoto(args.context, args.uri);
+                        if (data != null) {
+                            final long start = SystemClock.elapsedRealtimeNanos();
+                            photo = decodePhoto(args.context, data, 0);
+                            if (photo != null) {
+                                final int iconSize = args.context.getResources()
+                                        .getDimensionPixelSize(R.dimen.notification_icon_size);
+                                // A photo no larger than the icon serves as the icon as is.
+                                if (Math.max(photo.getWidth(), photo.getHeight()) <= iconSize) {
+                                    photoIcon = photo;
+                                } else {
+                                    photoIcon = decodePhoto(args.context, data, iconSize);
+                                }
                             }
+                            recordDecode(SystemClock.elapsedRealtimeNanos() - start);
                         }
-                    } finally {
-                        if (inputStream != null) {
-                            try {
-                                inputStream.close();
-                            } catch (IOException e) {
-                                Log.e(LOG_TAG, "Unable to close input stream.", e);
+                        if (photo != null) {
+                            sPhotoCache.put(args.uri, photo);
+                            if (photoIcon != null) {
+                                sIconCache.put(args.uri, photoIcon);
                             }
                         }
+                        if (DBG) {
+                            Log.d(LOG_TAG, "Loading image: " + msg.arg1 +
+                                    " token: " + msg.what + " image URI: " + args.uri +
+                                    (photo == null ? ", using default image." : ""));
+                        }
+                    }
+
+                    final ArrayList<WorkerArgs> requests;
+                    synchronized (sPendingRequests) {
+                        requests = sPendingRequests.remove(args.uri);
+                    }
+                    for (WorkerArgs request : requests) {
+                        sendResult(request, photo, photoIcon);
                     }
                     break;
                 default:
             }
-
-            // send the reply to the enclosing class.
-            Message reply = ContactsAsyncHelper.this.mResultHandler.obtainMessage(msg.what);
-            reply.arg1 = msg.arg1;
-            reply.obj = msg.obj;
-            reply.sendToTarget();
         }
 
         /**
-         * Returns a Bitmap object suitable for {@link Notification}'s large icon. This might
-         * return null when the given Drawable isn't BitmapDrawable, or if the system fails to
-         * create a scaled Bitmap for the Drawable.
+         * Returns the encoded photo of the contact, or null if it has none.
          */
-        private Bitmap getPhotoIconWhenAppropriate(Context context, Drawable photo) {
-            if (!(photo instanceof BitmapDrawable)) {
+        private byte[] readPhoto(Context context, Uri uri) {
+            InputStream inputStream = null;
+            try {
+                inputStream = Contacts.openContactPhotoInputStream(
+                        context.getContentResolver(), uri, true);
+                if (inputStream == null) {
+                    return null;
+                }
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[16 * 1024];
+                int count;
+                while ((count = inputStream.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toByteArray();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Error reading photo input stream", e);
                 return null;
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Unable to close input stream.", e);
+                    }
+                }
             }
-            int iconSize = context.getResources()
-                    .getDimensionPixelSize(R.dimen.notification_icon_size);
-            Bitmap orgBitmap = ((BitmapDrawable) photo).getBitmap();
-            int orgWidth = orgBitmap.getWidth();
-            int orgHeight = orgBitmap.getHeight();
-            int longerEdge = orgWidth > orgHeight ? orgWidth : orgHeight;
-            // We want downscaled one only when the original icon is too big.
-            if (longerEdge > iconSize) {
-                float ratio = ((float) longerEdge) / iconSize;
-                int newWidth = (int) (orgWidth / ratio);
-                int newHeight = (int) (orgHeight / ratio);
-                // If the longer edge is much longer than the shorter edge, the latter may
-                // become 0 which will cause a crash.
-                if (newWidth <= 0 || newHeight <= 0) {
-                    Log.w(LOG_TAG, "Photo icon's width or height become 0.");
+        }
+
+        /**
+         * Decodes the photo so that its longer edge is at most {@code maxSize} pixels, or at
+         * its own size for 0.  Downscaling happens while decoding, using subsampling for the
+         * powers of two and the decoder's density scaling for the rest, so only a bitmap of
+         * the final size is ever allocated.
+         */
+        private Bitmap decodePhoto(Context context, byte[] data, int maxSize) {
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            if (maxSize > 0) {
+                opts.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+                final int longerEdge = Math.max(opts.outWidth, opts.outHeight);
+                final int shorterEdge = Math.min(opts.outWidth, opts.outHeight);
+                if (shorterEdge <= 0) {
                     return null;
                 }
-
-                // It is sure ratio >= 1.0f in any case and thus the newly created Bitmap
-                // should be smaller than the original.
-                return Bitmap.createScaledBitmap(orgBitmap, newWidth, newHeight, true);
-            } else {
-                return orgBitmap;
+                opts.inJustDecodeBounds = false;
+                if (longerEdge > maxSize) {
+                    // If the longer edge is much longer than the shorter edge, the latter may
+                    // become 0, which would crash.
+                    if ((long) shorterEdge * maxSize / longerEdge <= 0) {
+                        Log.w(LOG_TAG, "Photo icon's width or height become 0.");
+                        return null;
+                    }
+                    int sampleSize = 1;
+                    while (longerEdge / (sampleSize * 2) >= maxSize) {
+                        sampleSize *= 2;
+                    }
+                    opts.inSampleSize = sampleSize;
+                    opts.inScaled = true;
+                    opts.inDensity = longerEdge / sampleSize;
+                    opts.inTargetDensity = maxSize;
+                }
             }
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            if (bitmap != null) {
+                // The density scaling above leaves its target as the bitmap's density.
+                bitmap.setDensity(context.getResources().getDisplayMetrics().densityDpi);
+            }
+            return bitmap;
+        }
+    }
+
+    private static void recordDecode(long nanos) {
+        synchronized (sPendingRequests) {
+            sDecodes++;
+            sTotalDecodeNanos += nanos;
+            sMaxDecodeNanos = Math.max(sMaxDecodeNanos, nanos);
+        }
+    }
+
+    /**
+     * Hands the result of a load to the request's listener on the thread which started it.
+     */
+    private static void sendResult(WorkerArgs args, Bitmap photo, Bitmap photoIcon) {
+        // Each listener gets its own Drawable, since Drawables carry state.
+        args.photo = (photo != null)
+                ? new BitmapDrawable(args.context.getResources(), photo) : null;
+        args.photoIcon = photoIcon;
+
+        // send the reply to the enclosing class.
+        Message reply = sInstance.mResultHandler.obtainMessage(args.token);
+        reply.arg1 = EVENT_LOAD_IMAGE;
+        reply.obj = args;
+        reply.sendToTarget();
+    }
+
+    /**
+     * Drops the cached photos when the contacts change, since any of them may be stale.
+     */
+    private static void observeContacts(Context context) {
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                Contacts.CONTENT_URI, true, new ContentObserver(sThreadHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        if (DBG) Log.d(LOG_TAG, "Contacts changed, dropping cached photos");
+                        sPhotoCache.evictAll();
+                        sIconCache.evictAll();
+                    }
+                });
+    }
+
+    static void dump(PrintWriter pw) {
+        synchronized (sPendingRequests) {
+            final int requests = sHits + sMisses + sMerged;
+            pw.println("ContactsAsyncHelper:");
+            pw.println("  photo cache: " + sPhotoCache.size() / 1024 + "/"
+                    + sPhotoCache.maxSize() / 1024 + "KB, icon cache: "
+                    + sIconCache.size() / 1024 + "/" + sIconCache.maxSize() / 1024 + "KB");
+            pw.println("  requests: " + requests + ", hits: " + sHits + ", merged: " + sMerged
+                    + ", misses: " + sMisses
+                    + (requests == 0 ? "" : ", hit ratio: " + (sHits + sMerged) * 100 / requests
+                            + "%"));
+            pw.println(String.format("  decodes: %d, avg=%.3fms max=%.3fms", sDecodes,
+                    sDecodes == 0 ? 0 : sTotalDecodeNanos / 1e6 / sDecodes,
+                    sMaxDecodeNanos / 1e6));
         }
     }
 
@@ -337,11 +471,43 @@ public class ContactsAsyncHelper {
 
         // setup arguments
         WorkerArgs args = new WorkerArgs();
+        args.token = token;
         args.cookie = cookie;
         args.context = context;
         args.uri = personUri;
         args.listener = listener;
 
+        synchronized (sPendingRequests) {
+            if (!sObservingContacts) {
+                sObservingContacts = true;
+                observeContacts(context);
+            }
+
+            // Join a load of the same photo that is already under way.
+            ArrayList<WorkerArgs> pending = sPendingRequests.get(personUri);
+            if (pending != null) {
+                if (DBG) Log.d(LOG_TAG, "Joining the load in progress of " + personUri);
+                sMerged++;
+                pending.add(args);
+                return;
+            }
+
+            // Answer right away if both versions of the photo are cached.
+            Bitmap photo = sPhotoCache.get(personUri);
+            Bitmap photoIcon = sIconCache.get(personUri);
+            if (photo != null && photoIcon != null) {
+                if (DBG) Log.d(LOG_TAG, "Cached image: " + personUri);
+                sHits++;
+                sendResult(args, photo, photoIcon);
+                return;
+            }
+
+            sMisses++;
+            pending = new ArrayList<WorkerArgs>();
+            pending.add(args);
+            sPendingRequests.put(personUri, pending);
+        }
+
         // setup message arguments
         Message msg = sThreadHandler.obtainMessage(token);
         msg.arg1 = EVENT_LOAD_IMAGE;
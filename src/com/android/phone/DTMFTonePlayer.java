@@ -16,13 +16,13 @@
 
 package com.android.phone;
 
-import com.google.common.collect.ImmutableMap;
-
-import android.content.Context;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.ToneGenerator;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -32,10 +32,9 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.services.telephony.common.Call;
 
-import java.util.LinkedList;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
 
 /**
  * Playing DTMF tones through the CallManager.
@@ -47,22 +46,25 @@ public class DTMFTonePlayer implements CallModeler.Listener {
     private static final int DTMF_SEND_CNF = 100;
     private static final int DTMF_STOP = 101;
 
-    /** Hash Map to map a character to a tone*/
-    private static final Map<Character, Integer> mToneMap =
-            ImmutableMap.<Character, Integer>builder()
-                    .put('1', ToneGenerator.TONE_DTMF_1)
-                    .put('2', ToneGenerator.TONE_DTMF_2)
-                    .put('3', ToneGenerator.TONE_DTMF_3)
-                    .put('4', ToneGenerator.TONE_DTMF_4)
-                    .put('5', ToneGenerator.TONE_DTMF_5)
-                    .put('6', ToneGenerator.TONE_DTMF_6)
-                    .put('7', ToneGenerator.TONE_DTMF_7)
-                    .put('8', ToneGenerator.TONE_DTMF_8)
-                    .put('9', ToneGenerator.TONE_DTMF_9)
-                    .put('0', ToneGenerator.TONE_DTMF_0)
-                    .put('#', ToneGenerator.TONE_DTMF_P)
-                    .put('*', ToneGenerator.TONE_DTMF_S)
-                    .build();
+    private static final int NO_TONE = -1;
+
+    /** Maps a character to a tone, indexed by the character; NO_TONE if there is none. */
+    private static final int[] TONE_MAP = new int['9' + 1];
+    static {
+        Arrays.fill(TONE_MAP, NO_TONE);
+        TONE_MAP['1'] = ToneGenerator.TONE_DTMF_1;
+        TONE_MAP['2'] = ToneGenerator.TONE_DTMF_2;
+        TONE_MAP['3'] = ToneGenerator.TONE_DTMF_3;
+        TONE_MAP['4'] = ToneGenerator.TONE_DTMF_4;
+        TONE_MAP['5'] = ToneGenerator.TONE_DTMF_5;
+        TONE_MAP['6'] = ToneGenerator.TONE_DTMF_6;
+        TONE_MAP['7'] = ToneGenerator.TONE_DTMF_7;
+        TONE_MAP['8'] = ToneGenerator.TONE_DTMF_8;
+        TONE_MAP['9'] = ToneGenerator.TONE_DTMF_9;
+        TONE_MAP['0'] = ToneGenerator.TONE_DTMF_0;
+        TONE_MAP['#'] = ToneGenerator.TONE_DTMF_P;
+        TONE_MAP['*'] = ToneGenerator.TONE_DTMF_S;
+    }
 
     private final CallManager mCallManager;
     private final CallModeler mCallModeler;
@@ -70,14 +72,45 @@ public class DTMFTonePlayer implements CallModeler.Listener {
     private ToneGenerator mToneGenerator;
     private boolean mLocalToneEnabled;
 
+    // The DTMF settings, kept up to date by mSettingsObserver so that key presses do not have
+    // to read them from the settings provider.
+    private volatile boolean mLocalToneSetting;
+    private volatile int mDtmfToneTypeSetting;
+
+    // Whether the calls allow dialing DTMF tones, updated on every call change.
+    private volatile boolean mOkToDialDtmfTones;
+
     // indicates that we are using automatically shortened DTMF tones
     boolean mShortTone;
 
+    // Guards the burst DTMF state below.
+    private final Object mDTMFQueueLock = new Object();
+
     // indicate if the confirmation from TelephonyFW is pending.
     private boolean mDTMFBurstCnfPending = false;
 
-    // Queue to queue the short dtmf characters.
-    private Queue<Character> mDTMFQueue = new LinkedList<Character>();
+    // Ring buffer of the short dtmf characters entered while a burst is pending.  They all go
+    // out as the next burst.
+    private char[] mDTMFQueue = new char[DTMF_QUEUE_INITIAL_CAPACITY];
+    private int mDTMFQueueHead;
+    private int mDTMFQueueSize;
+
+    // When the oldest character of the queue, and of the pending burst, was entered.
+    private long mDTMFQueuedTime;
+    private long mDTMFBurstQueuedTime;
+
+    // Burst statistics, reported by dump().
+    private int mDTMFBurstCount;
+    private int mDTMFBurstConfirmedCount;
+    private int mDTMFBurstDigitCount;
+    private int mDTMFBurstMaxDigits;
+    private long mDTMFBurstTotalWaitMillis;
+    private long mDTMFBurstMaxWaitMillis;
+
+    private static final int DTMF_QUEUE_INITIAL_CAPACITY = 16;
+
+    // The CDMA Send Burst DTMF message carries at most 255 digits.
+    private static final int DTMF_MAX_BURST_DIGITS = 255;
 
     //  Short Dtmf tone duration
     private static final int DTMF_DURATION_MS = 120;
@@ -102,10 +135,43 @@ public class DTMFTonePlayer implements CallModeler.Listener {
         }
     };
 
+    private final ContentObserver mSettingsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            refreshSettings();
+        }
+    };
+
     public DTMFTonePlayer(CallManager callManager, CallModeler callModeler) {
         mCallManager = callManager;
         mCallModeler = callModeler;
         mCallModeler.addListener(this);
+
+        final ContentResolver resolver = PhoneGlobals.getInstance().getContentResolver();
+        resolver.registerContentObserver(
+                Settings.System.getUriFor(Settings.System.DTMF_TONE_WHEN_DIALING), false,
+                mSettingsObserver);
+        resolver.registerContentObserver(
+                Settings.System.getUriFor(Settings.System.DTMF_TONE_TYPE_WHEN_DIALING), false,
+                mSettingsObserver);
+        refreshSettings();
+    }
+
+    private void refreshSettings() {
+        final PhoneGlobals app = PhoneGlobals.getInstance();
+        final ContentResolver resolver = app.getContentResolver();
+
+        // see if we need to play local tones.
+        if (app.getResources().getBoolean(R.bool.allow_local_dtmf_tones)) {
+            mLocalToneSetting = Settings.System.getInt(resolver,
+                    Settings.System.DTMF_TONE_WHEN_DIALING, 1) == 1;
+        } else {
+            mLocalToneSetting = false;
+        }
+        mDtmfToneTypeSetting = Settings.System.getInt(resolver,
+                Settings.System.DTMF_TONE_TYPE_WHEN_DIALING, Constants.DTMF_TONE_TYPE_NORMAL);
+        logD("refreshSettings: local tone " + mLocalToneSetting
+                + ", tone type " + mDtmfToneTypeSetting);
     }
 
     @Override
@@ -116,6 +182,7 @@ public class DTMFTonePlayer implements CallModeler.Listener {
 
     @Override
     public void onIncoming(Call call) {
+        mOkToDialDtmfTones = okToDialDtmfTones();
     }
 
     @Override
@@ -130,7 +197,7 @@ public class DTMFTonePlayer implements CallModeler.Listener {
         switch (state) {
             case STARTED:
                 stopLocalToneIfNeeded();
-                if (!mToneMap.containsKey(currentChar)) {
+                if (getTone(currentChar) == NO_TONE) {
                     return;
                 }
                 startLocalToneIfNeeded(currentChar);
@@ -161,17 +228,11 @@ public class DTMFTonePlayer implements CallModeler.Listener {
     public void startDialerSession() {
         logD("startDialerSession()... this = " + this);
 
-        // see if we need to play local tones.
-        if (PhoneGlobals.getInstance().getResources().getBoolean(R.bool.allow_local_dtmf_tones)) {
-            mLocalToneEnabled = Settings.System.getInt(
-                    PhoneGlobals.getInstance().getContentResolver(),
-                    Settings.System.DTMF_TONE_WHEN_DIALING, 1) == 1;
-        } else {
-            mLocalToneEnabled = false;
-        }
+        mLocalToneEnabled = mLocalToneSetting;
         logD("- startDialerSession: mLocalToneEnabled = " + mLocalToneEnabled);
 
-        // create the tone generator
+        // create the tone generator.  It is kept until the session stops, so that key presses
+        // do not pay for setting up its AudioTrack.
         // if the mToneGenerator creation fails, just continue without it.  It is
         // a local audio signal, and is not as important as the dtmf tone itself.
         if (mLocalToneEnabled) {
@@ -205,9 +266,10 @@ public class DTMFTonePlayer implements CallModeler.Listener {
         }
 
         mHandler.removeMessages(DTMF_SEND_CNF);
-        synchronized (mDTMFQueue) {
+        synchronized (mDTMFQueueLock) {
             mDTMFBurstCnfPending = false;
-            mDTMFQueue.clear();
+            mDTMFQueueHead = 0;
+            mDTMFQueueSize = 0;
         }
     }
 
@@ -216,11 +278,12 @@ public class DTMFTonePlayer implements CallModeler.Listener {
      */
     public void playDtmfTone(char c, boolean timedShortTone) {
         // Only play the tone if it exists.
-        if (!mToneMap.containsKey(c)) {
+        final int tone = getTone(c);
+        if (tone == NO_TONE) {
             return;
         }
 
-        if (!okToDialDtmfTones()) {
+        if (!mOkToDialDtmfTones) {
             return;
         }
 
@@ -236,7 +299,7 @@ public class DTMFTonePlayer implements CallModeler.Listener {
             stopDtmfTone();
         }
 
-        mShortTone = useShortDtmfTones(phone, phone.getContext());
+        mShortTone = useShortDtmfTones(phone);
         logD("startDtmfTone()...");
 
         // For Short DTMF we need to play the local tone for fixed duration
@@ -244,33 +307,41 @@ public class DTMFTonePlayer implements CallModeler.Listener {
             sendShortDtmfToNetwork(c);
         } else {
             // Pass as a char to be sent to network
-            logD("send long dtmf for " + c);
+            if (DBG) logD("send long dtmf for " + c);
             mCallManager.startDtmf(c);
 
             // If it is a timed tone, queue up the stop command in DTMF_DURATION_MS.
             if (timedShortTone) {
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(DTMF_STOP), DTMF_DURATION_MS);
+                mHandler.sendEmptyMessageDelayed(DTMF_STOP, DTMF_DURATION_MS);
             }
         }
 
-        startLocalToneIfNeeded(c);
+        startLocalTone(tone);
+    }
+
+    private static int getTone(char c) {
+        return c < TONE_MAP.length ? TONE_MAP[c] : NO_TONE;
     }
 
     /**
      * Sends the dtmf character over the network for short DTMF settings
      * When the characters are entered in quick succession,
-     * the characters are queued before sending over the network.
+     * the characters are queued before sending over the network, and
+     * everything queued goes out as a single burst once the pending
+     * burst is confirmed.
      */
     private void sendShortDtmfToNetwork(char dtmfDigit) {
-        synchronized (mDTMFQueue) {
+        synchronized (mDTMFQueueLock) {
+            final long now = SystemClock.uptimeMillis();
             if (mDTMFBurstCnfPending == true) {
                 // Insert the dtmf char to the queue
-                mDTMFQueue.add(new Character(dtmfDigit));
+                if (mDTMFQueueSize == 0) {
+                    mDTMFQueuedTime = now;
+                }
+                enqueueDtmf(dtmfDigit);
             } else {
                 String dtmfStr = Character.toString(dtmfDigit);
-                mCallManager.sendBurstDtmf(dtmfStr, 0, 0, mHandler.obtainMessage(DTMF_SEND_CNF));
-                // Set flag to indicate wait for Telephony confirmation.
-                mDTMFBurstCnfPending = true;
+                sendBurstDtmf(dtmfStr, now);
             }
         }
     }
@@ -279,17 +350,70 @@ public class DTMFTonePlayer implements CallModeler.Listener {
      * Handles Burst Dtmf Confirmation from the Framework.
      */
     void handleBurstDtmfConfirmation() {
-        Character dtmfChar = null;
-        synchronized (mDTMFQueue) {
+        synchronized (mDTMFQueueLock) {
             mDTMFBurstCnfPending = false;
-            if (!mDTMFQueue.isEmpty()) {
-                dtmfChar = mDTMFQueue.remove();
-                Log.i(LOG_TAG, "The dtmf character removed from queue" + dtmfChar);
+
+            final long wait = SystemClock.uptimeMillis() - mDTMFBurstQueuedTime;
+            mDTMFBurstConfirmedCount++;
+            mDTMFBurstTotalWaitMillis += wait;
+            mDTMFBurstMaxWaitMillis = Math.max(mDTMFBurstMaxWaitMillis, wait);
+
+            if (mDTMFQueueSize > 0) {
+                final long queuedTime = mDTMFQueuedTime;
+                final String dtmfStr = dequeueDtmfBurst();
+                Log.i(LOG_TAG, "The dtmf characters removed from queue: " + dtmfStr);
+                sendBurstDtmf(dtmfStr, queuedTime);
             }
         }
-        if (dtmfChar != null) {
-            sendShortDtmfToNetwork(dtmfChar);
+    }
+
+    /**
+     * Sends a burst and waits for its confirmation before sending the next one.
+     *
+     * @param queuedTime When the oldest character of the burst was entered.
+     */
+    private void sendBurstDtmf(String dtmfStr, long queuedTime) {
+        mCallManager.sendBurstDtmf(dtmfStr, 0, 0, mHandler.obtainMessage(DTMF_SEND_CNF));
+        // Set flag to indicate wait for Telephony confirmation.
+        mDTMFBurstCnfPending = true;
+        mDTMFBurstQueuedTime = queuedTime;
+
+        mDTMFBurstCount++;
+        mDTMFBurstDigitCount += dtmfStr.length();
+        mDTMFBurstMaxDigits = Math.max(mDTMFBurstMaxDigits, dtmfStr.length());
+    }
+
+    private void enqueueDtmf(char dtmfDigit) {
+        if (mDTMFQueueSize == mDTMFQueue.length) {
+            // Digits are never dropped, so grow instead.
+            final char[] queue = new char[mDTMFQueue.length * 2];
+            for (int i = 0; i < mDTMFQueueSize; i++) {
+                queue[i] = mDTMFQueue[(mDTMFQueueHead + i) % mDTMFQueue.length];
+            }
+            mDTMFQueue = queue;
+            mDTMFQueueHead = 0;
         }
+        mDTMFQueue[(mDTMFQueueHead + mDTMFQueueSize) % mDTMFQueue.length] = dtmfDigit;
+        mDTMFQueueSize++;
+    }
+
+    /**
+     * Removes up to {@link #DTMF_MAX_BURST_DIGITS} of the oldest queued characters.
+     */
+    private String dequeueDtmfBurst() {
+        final int count = Math.min(mDTMFQueueSize, DTMF_MAX_BURST_DIGITS);
+        final StringBuilder burst = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            burst.append(mDTMFQueue[(mDTMFQueueHead + i) % mDTMFQueue.length]);
+        }
+        mDTMFQueueHead = (mDTMFQueueHead + count) % mDTMFQueue.length;
+        mDTMFQueueSize -= count;
+        if (mDTMFQueueSize > 0) {
+            // The times of individual characters are not kept, so the leftovers are timed
+            // from here.
+            mDTMFQueuedTime = SystemClock.uptimeMillis();
+        }
+        return burst.toString();
     }
 
     public void stopDtmfTone() {
@@ -304,17 +428,21 @@ public class DTMFTonePlayer implements CallModeler.Listener {
      * tone.
      */
     private void startLocalToneIfNeeded(char c) {
+        startLocalTone(getTone(c));
+    }
+
+    private void startLocalTone(int tone) {
         if (mLocalToneEnabled) {
             synchronized (mToneGeneratorLock) {
                 if (mToneGenerator == null) {
-                    logD("startDtmfTone: mToneGenerator == null, tone: " + c);
+                    if (DBG) logD("startDtmfTone: mToneGenerator == null, tone: " + tone);
                 } else {
-                    logD("starting local tone " + c);
+                    if (DBG) logD("starting local tone " + tone);
                     int toneDuration = -1;
                     if (mShortTone) {
                         toneDuration = DTMF_DURATION_MS;
                     }
-                    mToneGenerator.startTone(mToneMap.get(c), toneDuration);
+                    mToneGenerator.startTone(tone, toneDuration);
                 }
             }
         }
@@ -363,15 +491,12 @@ public class DTMFTonePlayer implements CallModeler.Listener {
      * On GSM devices, we never use short tones.
      * On CDMA devices, it depends upon the settings.
      */
-    private static boolean useShortDtmfTones(Phone phone, Context context) {
+    private boolean useShortDtmfTones(Phone phone) {
         int phoneType = phone.getPhoneType();
         if (phoneType == PhoneConstants.PHONE_TYPE_GSM) {
             return false;
         } else if (phoneType == PhoneConstants.PHONE_TYPE_CDMA) {
-            int toneType = android.provider.Settings.System.getInt(
-                    context.getContentResolver(),
-                    Settings.System.DTMF_TONE_TYPE_WHEN_DIALING,
-                    Constants.DTMF_TONE_TYPE_NORMAL);
+            int toneType = mDtmfToneTypeSetting;
             if (toneType == Constants.DTMF_TONE_TYPE_NORMAL) {
                 return true;
             } else {
@@ -391,6 +516,7 @@ public class DTMFTonePlayer implements CallModeler.Listener {
      */
     private void checkCallState() {
         logD("checkCallState");
+        mOkToDialDtmfTones = okToDialDtmfTones();
         if (mCallModeler.hasOutstandingActiveOrDialingCall()) {
             startDialerSession();
         } else {
@@ -398,6 +524,20 @@ public class DTMFTonePlayer implements CallModeler.Listener {
         }
     }
 
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("DTMFTonePlayer:");
+        synchronized (mDTMFQueueLock) {
+            pw.println("  dtmf bursts sent: " + mDTMFBurstCount + ", digits: "
+                    + mDTMFBurstDigitCount + ", max digits per burst: " + mDTMFBurstMaxDigits);
+            if (mDTMFBurstConfirmedCount > 0) {
+                pw.println("  dtmf wait from queueing to confirmation: average "
+                        + (mDTMFBurstTotalWaitMillis / mDTMFBurstConfirmedCount) + "ms, max "
+                        + mDTMFBurstMaxWaitMillis + "ms");
+            }
+            pw.println("  dtmf digits queued: " + mDTMFQueueSize);
+        }
+    }
+
     /**
      * static logging method
      */
@@ -6,7 +6,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
-import android.preference.Preference;
 import android.preference.PreferenceScreen;
 import android.util.Log;
 import android.view.MenuItem;
@@ -14,8 +13,6 @@ import android.view.MenuItem;
 import com.android.internal.telephony.IccCardConstants;
 import com.android.internal.telephony.TelephonyIntents;
 
-import java.util.ArrayList;
-
 public class GsmUmtsAdditionalCallOptions extends
         TimeConsumingPreferenceActivity {
     private static final String LOG_TAG = "GsmUmtsAdditionalCallOptions";
@@ -27,9 +24,6 @@ public class GsmUmtsAdditionalCallOptions extends
     private CLIRListPreference mCLIRButton;
     private CallWaitingCheckBoxPreference mCWButton;
 
-    private final ArrayList<Preference> mPreferences = new ArrayList<Preference>();
-    private int mInitIndex= 0;
-
     private IntentFilter mIntentFilter;
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
@@ -65,17 +59,14 @@ public class GsmUmtsAdditionalCallOptions extends
         mCLIRButton = (CLIRListPreference) prefSet.findPreference(BUTTON_CLIR_KEY);
         mCWButton = (CallWaitingCheckBoxPreference) prefSet.findPreference(BUTTON_CW_KEY);
 
-        mPreferences.add(mCLIRButton);
-        mPreferences.add(mCWButton);
-
         mIntentFilter = new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
 
         if (icicle == null) {
             if (DBG) Log.d(LOG_TAG, "start to init ");
             mCLIRButton.init(this, false);
+            mCWButton.init(this, false);
         } else {
             if (DBG) Log.d(LOG_TAG, "restore stored states");
-            mInitIndex = mPreferences.size();
             mCLIRButton.init(this, true);
             mCWButton.init(this, true);
             int[] clirArray = icicle.getIntArray(mCLIRButton.getKey());
@@ -104,18 +95,6 @@ public class GsmUmtsAdditionalCallOptions extends
         }
     }
 
-    @Override
-    public void onFinished(Preference preference, boolean reading) {
-        if (mInitIndex < mPreferences.size()-1 && !isFinishing()) {
-            mInitIndex++;
-            Preference pref = mPreferences.get(mInitIndex);
-            if (pref instanceof CallWaitingCheckBoxPreference) {
-                ((CallWaitingCheckBoxPreference) pref).init(this, false);
-            }
-        }
-        super.onFinished(preference, reading);
-    }
-
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         final int itemId = item.getItemId();
@@ -10,7 +10,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.preference.Preference;
 import android.preference.PreferenceScreen;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.util.Log;
@@ -44,7 +43,6 @@ public class GsmUmtsCallForwardOptions extends TimeConsumingPreferenceActivity {
 
     private final ArrayList<CallForwardEditPreference> mPreferences =
             new ArrayList<CallForwardEditPreference> ();
-    private int mInitIndex= 0;
 
     private boolean mFirstResume;
     private Bundle mIcicle;
@@ -120,10 +118,12 @@ public class GsmUmtsCallForwardOptions extends TimeConsumingPreferenceActivity {
         if (mFirstResume) {
             if (mIcicle == null) {
                 if (DBG) Log.d(LOG_TAG, "start to init ");
-                mPreferences.get(mInitIndex).init(this, false);
+                // SuppServiceQueryEngine sends the queries on to the network together, as
+                // many at a time as the modem allows.
+                for (CallForwardEditPreference pref : mPreferences) {
+                    pref.init(this, false);
+                }
             } else {
-                mInitIndex = mPreferences.size();
-
                 for (CallForwardEditPreference pref : mPreferences) {
                     Bundle bundle = mIcicle.getParcelable(pref.getKey());
                     pref.setToggled(bundle.getBoolean(KEY_TOGGLE));
@@ -160,16 +160,6 @@ public class GsmUmtsCallForwardOptions extends TimeConsumingPreferenceActivity {
         }
     }
 
-    @Override
-    public void onFinished(Preference preference, boolean reading) {
-        if (mInitIndex < mPreferences.size()-1 && !isFinishing()) {
-            mInitIndex++;
-            mPreferences.get(mInitIndex).init(this, false);
-        }
-
-        super.onFinished(preference, reading);
-    }
-
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (DBG) Log.d(LOG_TAG, "onActivityResult: done");
@@ -26,15 +26,27 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Service code used to assist in querying the network for service
  * availability.   
+ *
+ * A successful scan result is kept for a while (see
+ * config_network_query_cache_ttl_millis) and handed straight to later
+ * queries for the same phone and radio technology, with its age, so that
+ * reopening the network list does not cost another multi-second modem scan.
+ * It is dropped when a network is selected or the radio is turned off, as
+ * the availability of the networks in it may have changed, and an explicit
+ * search by the user always scans again.
  */
 public class NetworkQueryService extends Service {
     // debug data
@@ -57,6 +69,25 @@ public class NetworkQueryService extends Service {
     
     /** local handle to the phone object */
     private Phone mPhone;
+
+    /** how long a scan result is handed out again, 0 for never */
+    private int mCacheTtlMillis;
+
+    // The last successful scan result, kept across instances of the
+    // service since it is unbound whenever the network list closes.
+    // Guarded by mCallbacks (all instances run on the main thread anyway).
+    private static List<OperatorInfo> sCachedResult;
+    private static String sCachedResultKey;
+    private static long sCachedResultTime;
+    // Bumped whenever the cached result is dropped, so that a scan started
+    // before that is not cached when it completes.
+    private static int sCacheGeneration;
+    private int mScanGeneration;
+
+    // Stats, for dump().
+    private static int sScansStarted;
+    private static int sScansJoined;
+    private static int sScansAvoided;
     
     /**
      * Class for clients to access.  Because we know this service always
@@ -105,10 +136,32 @@ public class NetworkQueryService extends Service {
          * one has not been started yet.  Ignore the new query request
          * if the query has been started already.  Either way, place the
          * callback object in the queue to be notified upon request 
-         * completion.
+         * completion.  Unless forceRefresh is set, a recent enough
+         * result is handed back instead of starting a query.
          */
-        public void startNetworkQuery(INetworkQueryServiceCallback cb) {
+        public void startNetworkQuery(INetworkQueryServiceCallback cb, boolean forceRefresh) {
             if (cb != null) {
+                List<OperatorInfo> cachedResult = null;
+                long age = 0;
+                synchronized (mCallbacks) {
+                    if (!forceRefresh && mState == QUERY_READY && sCachedResult != null
+                            && getCacheKey().equals(sCachedResultKey)) {
+                        age = SystemClock.elapsedRealtime() - sCachedResultTime;
+                        if (age < mCacheTtlMillis) {
+                            cachedResult = sCachedResult;
+                            sScansAvoided++;
+                        }
+                    }
+                }
+                if (cachedResult != null) {
+                    if (DBG) log("answering from a scan " + age + "ms old");
+                    try {
+                        cb.onQueryComplete(cachedResult, QUERY_OK, age);
+                    } catch (RemoteException e) {
+                    }
+                    return;
+                }
+
                 // register the callback to the list of callbacks.
                 synchronized (mCallbacks) {
                     mCallbacks.register(cb);
@@ -121,12 +174,15 @@ public class NetworkQueryService extends Service {
                             mPhone.getAvailableNetworks(
                                     mHandler.obtainMessage(EVENT_NETWORK_SCAN_COMPLETED));
                             mState = QUERY_IS_RUNNING;
+                            mScanGeneration = sCacheGeneration;
+                            sScansStarted++;
                             if (DBG) log("starting new query");
                             break;
                             
                         // do nothing if we're currently busy.
                         case QUERY_IS_RUNNING:
                             if (DBG) log("query already in progress");
+                            sScansJoined++;
                             break;
                         default:
                     }
@@ -158,6 +214,29 @@ public class NetworkQueryService extends Service {
     public void onCreate() {
         mState = QUERY_READY;
         mPhone = PhoneFactory.getDefaultPhone();
+        mCacheTtlMillis = getResources().getInteger(
+                R.integer.config_network_query_cache_ttl_millis);
+    }
+
+    /**
+     * Drops the cached scan result, for when the networks in it may no
+     * longer be available as listed: a network was selected or the radio
+     * was turned off.  Called on the main thread.
+     */
+    static void clearCachedResult() {
+        if (DBG && sCachedResult != null) log("dropping cached scan result");
+        sCachedResult = null;
+        sCachedResultKey = null;
+        sCacheGeneration++;
+    }
+
+    /**
+     * Returns what a scan result depends on besides time: the phone and
+     * its current radio technology.
+     */
+    private String getCacheKey() {
+        return mPhone.getPhoneName() + "/" + mPhone.getPhoneType() + "/"
+                + mPhone.getServiceState().getRilVoiceRadioTechnology();
     }
     
     /**
@@ -198,13 +277,20 @@ public class NetworkQueryService extends Service {
             // simple status integer will suffice.
             int exception = (ar.exception == null) ? QUERY_OK : QUERY_EXCEPTION;
             if (DBG) log("AsyncResult has exception " + exception);
+
+            if (exception == QUERY_OK && ar.result != null
+                    && mScanGeneration == sCacheGeneration) {
+                sCachedResult = (ArrayList<OperatorInfo>) ar.result;
+                sCachedResultKey = getCacheKey();
+                sCachedResultTime = SystemClock.elapsedRealtime();
+            }
             
             // Make the calls to all the registered callbacks.
             for (int i = (mCallbacks.beginBroadcast() - 1); i >= 0; i--) {
                 INetworkQueryServiceCallback cb = mCallbacks.getBroadcastItem(i); 
                 if (DBG) log("broadcasting results to " + cb.getClass().toString());
                 try {
-                    cb.onQueryComplete((ArrayList<OperatorInfo>) ar.result, exception);
+                    cb.onQueryComplete((ArrayList<OperatorInfo>) ar.result, exception, 0);
                 } catch (RemoteException e) {
                 }
             }
@@ -214,6 +300,18 @@ public class NetworkQueryService extends Service {
         }
     }
     
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        synchronized (mCallbacks) {
+            pw.println("NetworkQueryService:");
+            pw.println("  cache ttl: " + mCacheTtlMillis + "ms, cached result: "
+                    + (sCachedResult == null ? "none" : sCachedResult.size() + " operators, "
+                            + (SystemClock.elapsedRealtime() - sCachedResultTime) + "ms old"));
+            pw.println("  scans started: " + sScansStarted + ", joined: " + sScansJoined
+                    + ", avoided: " + sScansAvoided);
+        }
+    }
+
     private static void log(String msg) {
         Log.d(LOG_TAG, msg);
     }    
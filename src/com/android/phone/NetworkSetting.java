@@ -149,8 +149,8 @@ public class NetworkSetting extends PreferenceActivity
         public void onServiceConnected(ComponentName className, IBinder service) {
             if (DBG) log("connection created, binding local service.");
             mNetworkQueryService = ((NetworkQueryService.LocalBinder) service).getService();
-            // as soon as it is bound, run a query.
-            loadNetworksList();
+            // as soon as it is bound, run a query, or show a recent result.
+            loadNetworksList(false);
         }
 
         /** Handle the task of cleaning up the local binding */
@@ -167,8 +167,9 @@ public class NetworkSetting extends PreferenceActivity
     private final INetworkQueryServiceCallback mCallback = new INetworkQueryServiceCallback.Stub() {
 
         /** place the message on the looper queue upon query completion. */
-        public void onQueryComplete(List<OperatorInfo> networkInfoArray, int status) {
-            if (DBG) log("notifying message loop of query completion.");
+        public void onQueryComplete(List<OperatorInfo> networkInfoArray, int status,
+                long resultAgeMillis) {
+            if (DBG) log("notifying message loop of query completion, age " + resultAgeMillis);
             Message msg = mHandler.obtainMessage(EVENT_NETWORK_SCAN_COMPLETED,
                     status, 0, networkInfoArray);
             msg.sendToTarget();
@@ -180,7 +181,8 @@ public class NetworkSetting extends PreferenceActivity
         boolean handled = false;
 
         if (preference == mSearchButton) {
-            loadNetworksList();
+            // The user asked for a search, so do not show an earlier one.
+            loadNetworksList(true);
             handled = true;
         } else if (preference == mAutoSelect) {
             selectNetworkAutomatic();
@@ -193,6 +195,7 @@ public class NetworkSetting extends PreferenceActivity
 
             Message msg = mHandler.obtainMessage(EVENT_NETWORK_SELECTION_DONE);
             mPhone.selectNetworkManually(mNetworkMap.get(selectedCarrier), msg);
+            NetworkQueryService.clearCachedResult();
 
             displayNetworkSeletionInProgress(networkStr);
 
@@ -365,8 +368,8 @@ public class NetworkSetting extends PreferenceActivity
         }, 3000);
     }
 
-    private void loadNetworksList() {
-        if (DBG) log("load networks list...");
+    private void loadNetworksList(boolean forceRefresh) {
+        if (DBG) log("load networks list, forceRefresh=" + forceRefresh);
 
         if (mIsForeground) {
             showDialog(DIALOG_NETWORK_LIST_LOAD);
@@ -374,7 +377,7 @@ public class NetworkSetting extends PreferenceActivity
 
         // delegate query request to the service.
         try {
-            mNetworkQueryService.startNetworkQuery(mCallback);
+            mNetworkQueryService.startNetworkQuery(mCallback, forceRefresh);
         } catch (RemoteException e) {
         }
 
@@ -470,6 +473,7 @@ public class NetworkSetting extends PreferenceActivity
 
         Message msg = mHandler.obtainMessage(EVENT_AUTO_SELECT_DONE);
         mPhone.setNetworkSelectionModeAutomatic(msg);
+        NetworkQueryService.clearCachedResult();
     }
 
     private void log(String msg) {
@@ -34,6 +34,7 @@ import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
 import android.provider.CallLog.Calls;
@@ -58,6 +59,8 @@ import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.TelephonyCapabilities;
 
+import java.util.HashSet;
+
 /**
  * NotificationManager-related utility code for the Phone app.
  *
@@ -266,6 +269,7 @@ public class NotificationMgr {
 
         // instantiate query handler
         mQueryHandler = new QueryHandler(mContext.getContentResolver());
+        mQueryHandler.mStartTime = SystemClock.elapsedRealtime();
 
         // setup query spec, look for all Missed calls that are new.
         StringBuilder where = new StringBuilder("type=");
@@ -293,8 +297,10 @@ public class NotificationMgr {
      * Class used to run asynchronous queries to re-populate the notifications we care about.
      * There are really 3 steps to this:
      *  1. Find the list of missed calls
-     *  2. For each call, run a query to retrieve the caller's name.
-     *  3. For each caller, try obtaining photo.
+     *  2. Run a single query to retrieve the name of the most recent caller, which is the one
+     *     the collapsed notification shows.
+     *  3. If that was the only missed call, try obtaining the caller's photo.
+     * The notification is then posted once, for all of the missed calls.
      */
     private class QueryHandler extends AsyncQueryHandler
             implements ContactsAsyncHelper.OnImageLoadCompleteListener {
@@ -314,8 +320,13 @@ public class NotificationMgr {
              */
             public String type;
             public long date;
+            /** The number of new missed calls this notification stands for. */
+            public int count;
         }
 
+        /** When the restore started, to measure how long it takes. */
+        long mStartTime;
+
         public QueryHandler(ContentResolver cr) {
             super(cr);
         }
@@ -325,46 +336,50 @@ public class NotificationMgr {
          */
         @Override
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-            // TODO: it would be faster to use a join here, but for the purposes
-            // of this small record set, it should be ok.
-
             // Note that CursorJoiner is not useable here because the number
             // comparisons are not strictly equals; the comparisons happen in
             // the SQL function PHONE_NUMBERS_EQUAL, which is not available for
-            // the CursorJoiner.
-
-            // Executing our own query is also feasible (with a join), but that
-            // will require some work (possibly destabilizing) in Contacts
-            // Provider.
-
-            // At this point, we will execute subqueries on each row just as
-            // CallLogActivity.java does.
+            // the CursorJoiner.  We don't need to join anyway: a collapsed
+            // notification only shows the most recent caller.
             switch (token) {
                 case CALL_LOG_TOKEN:
                     if (DBG) log("call log query complete.");
 
-                    // initial call to retrieve the call list.
+                    // initial call to retrieve the call list, most recent first.
                     if (cursor != null) {
+                        NotificationInfo n = null;
+                        HashSet<String> callers = new HashSet<String>();
                         while (cursor.moveToNext()) {
-                            // for each call in the call log list, create
-                            // the notification object and query contacts
-                            NotificationInfo n = getNotificationInfo (cursor);
+                            if (n == null) {
+                                n = getNotificationInfo(cursor);
+                            }
+                            n.count++;
+                            callers.add(cursor.getString(
+                                    cursor.getColumnIndexOrThrow(Calls.NUMBER)));
+                        }
 
-                            if (DBG) log("query contacts for number: " + n.number);
+                        if (DBG) log("closing call log cursor.");
+                        cursor.close();
 
+                        if (n == null) {
+                            if (DBG) log("no new missed calls.");
+                        } else if (n.number != null) {
+                            if (DBG) {
+                                log(n.count + " missed calls from " + callers.size()
+                                        + " callers; query contacts for number: " + n.number);
+                            }
                             mQueryHandler.startQuery(CONTACT_TOKEN, n,
                                     Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, n.number),
                                     PHONES_PROJECTION, null, null, PhoneLookup.NUMBER);
+                        } else {
+                            notifyRestoredMissedCalls(n, null, null);
                         }
-
-                        if (DBG) log("closing call log cursor.");
-                        cursor.close();
                     }
                     break;
                 case CONTACT_TOKEN:
                     if (DBG) log("contact query complete.");
 
-                    // subqueries to get the caller name.
+                    // subquery to get the caller name.
                     if ((cursor != null) && (cookie != null)){
                         NotificationInfo n = (NotificationInfo) cookie;
 
@@ -381,7 +396,7 @@ public class NotificationMgr {
                             personUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, person_id);
                         }
 
-                        if (personUri != null) {
+                        if (personUri != null && n.count == 1) {
                             if (DBG) {
                                 log("Start obtaining picture for the missed call. Uri: "
                                         + personUri);
@@ -393,17 +408,21 @@ public class NotificationMgr {
                                     0, mContext, personUri, this, n);
                         } else {
                             if (DBG) {
-                                log("Failed to find Uri for obtaining photo."
-                                        + " Just send notification without it.");
+                                log("No photo to obtain (person: " + personUri + ", calls: "
+                                        + n.count + "). Just send notification without it.");
                             }
-                            // We couldn't find person Uri, so we're sure we cannot obtain a photo.
-                            // Call notifyMissedCall() right now.
-                            notifyMissedCall(n.name, n.number, n.presentation, n.type, null, null,
-                                    n.date);
+                            // Either we couldn't find person Uri, or the notification for
+                            // several calls won't show the photo anyway.
+                            notifyRestoredMissedCalls(n, null, null);
                         }
 
                         if (DBG) log("closing contact cursor.");
                         cursor.close();
+                    } else if (cookie != null) {
+                        // The contacts provider is unavailable; the missed calls are still
+                        // shown, just without the caller's name.
+                        if (DBG) log("contact query failed.");
+                        notifyRestoredMissedCalls((NotificationInfo) cookie, null, null);
                     }
                     break;
                 default:
@@ -414,8 +433,16 @@ public class NotificationMgr {
         public void onImageLoadComplete(
                 int token, Drawable photo, Bitmap photoIcon, Object cookie) {
             if (DBG) log("Finished loading image: " + photo);
-            NotificationInfo n = (NotificationInfo) cookie;
-            notifyMissedCall(n.name, n.number, n.presentation, n.type, photo, photoIcon, n.date);
+            notifyRestoredMissedCalls((NotificationInfo) cookie, photo, photoIcon);
+        }
+
+        private void notifyRestoredMissedCalls(NotificationInfo n, Drawable photo,
+                Bitmap photoIcon) {
+            notifyMissedCalls(n.count, n.name, n.number, n.presentation, n.type, photo,
+                    photoIcon, n.date);
+            final long now = SystemClock.elapsedRealtime();
+            Log.i(LOG_TAG, "Restored " + n.count + " missed calls in " + (now - mStartTime)
+                    + "ms, " + now + "ms after boot");
         }
 
         /**
@@ -474,6 +501,15 @@ public class NotificationMgr {
      */
     /* package */ void notifyMissedCall(String name, String number, int presentation, String type,
             Drawable photo, Bitmap photoIcon, long date) {
+        notifyMissedCalls(1, name, number, presentation, type, photo, photoIcon, date);
+    }
+
+    /**
+     * Adds {@code count} missed calls to the missed call notification, the most recent of
+     * which is described by the other parameters; see {@link #notifyMissedCall}.
+     */
+    private void notifyMissedCalls(int count, String name, String number, int presentation,
+            String type, Drawable photo, Bitmap photoIcon, long date) {
 
         // When the user clicks this notification, we go to the call log.
         final PendingIntent pendingCallLogIntent = PhoneGlobals.createPendingCallLogIntent(
@@ -498,8 +534,8 @@ public class NotificationMgr {
         // the text in the notification's line 1 and 2.
         String expandedText, callName;
 
-        // increment number of missed calls.
-        mNumberMissedCalls++;
+        // update the number of missed calls.
+        mNumberMissedCalls += count;
 
         // get the name for the ticker text
         // i.e. "Missed call from <caller name or number>"
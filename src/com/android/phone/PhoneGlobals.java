@@ -27,7 +27,6 @@ import android.bluetooth.IBluetoothHeadsetPhone;
 import android.content.ActivityNotFoundException;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
@@ -70,7 +69,6 @@ import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.TelephonyCapabilities;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.cdma.TtyIntent;
-import com.android.phone.common.CallLogAsync;
 import com.android.phone.OtaUtils.CdmaOtaScreenState;
 import com.android.phone.WiredHeadsetManager.WiredHeadsetListener;
 import com.android.server.sip.SipService;
@@ -185,6 +183,15 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
     private CallModeler callModeler;
     private CallStateMonitor callStateMonitor;
     private DTMFTonePlayer dtmfTonePlayer;
+    private CallLogger callLogger;
+    private SuppServiceQueryEngine suppServiceQueryEngine;
+    private PhoneStartup mStartup;
+
+    // Loaded by a background startup step and instantiated by the one after it.
+    private Class<?> mOemHookClass;
+    private Class<?> mSarManagerClass;
+    private DexClassLoader mSarManagerClassLoader;
+
     private IBluetoothHeadsetPhone mBluetoothPhone;
     private Ringer ringer;
     private WiredHeadsetManager wiredHeadsetManager;
@@ -388,7 +395,9 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
     public void onCreate() {
         if (VDBG) Log.v(LOG_TAG, "onCreate()...");
 
-        ContentResolver resolver = getContentResolver();
+        // Only what is needed before the first incoming call is created below; the rest is
+        // declared as startup steps that run once onCreate returns.
+        mStartup = new PhoneStartup();
 
         // Cache the "voice capable" flag.
         // This flag currently comes from a resource (which is
@@ -406,6 +415,7 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
 
             // Get the default phone
             phone = PhoneFactory.getDefaultPhone();
+            mStartup.mark("PhoneFactory");
 
             // Start TelephonyDebugService After the default phone is created.
             Intent intent = new Intent(this, TelephonyDebugService.class);
@@ -417,6 +427,7 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
             // Create the NotificationMgr singleton, which is used to display
             // status bar icons and control other status bar behavior.
             notificationMgr = NotificationMgr.init(this);
+            mStartup.mark("NotificationMgr");
 
             mHandler.sendEmptyMessage(EVENT_START_SIP_SERVICE);
 
@@ -431,9 +442,16 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
             if (BluetoothAdapter.getDefaultAdapter() != null) {
                 // Start BluetoothPhoneService even if device is not voice capable.
                 // The device can still support VOIP.
-                startService(new Intent(this, BluetoothPhoneService.class));
-                bindService(new Intent(this, BluetoothPhoneService.class),
-                            mBluetoothPhoneConnection, 0);
+                // mBluetoothPhone is only set once the service is connected anyway, so the
+                // binding does not have to hold up startup.
+                mStartup.defer("BluetoothPhoneService", new Runnable() {
+                    @Override
+                    public void run() {
+                        startService(new Intent(PhoneGlobals.this, BluetoothPhoneService.class));
+                        bindService(new Intent(PhoneGlobals.this, BluetoothPhoneService.class),
+                                mBluetoothPhoneConnection, 0);
+                    }
+                });
             } else {
                 // Device is not bluetooth capable
                 mBluetoothPhone = null;
@@ -458,8 +476,13 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
             mUpdateLock = new UpdateLock("phone");
 
             if (DBG) Log.d(LOG_TAG, "onCreate: mUpdateLock: " + mUpdateLock);
+            mStartup.mark("SystemServices");
+
+            callLogger = new CallLogger(this, new CallLogWriter(this));
+            mStartup.mark("CallLogger");
 
-            CallLogger callLogger = new CallLogger(this, new CallLogAsync());
+            suppServiceQueryEngine = new SuppServiceQueryEngine(this);
+            mStartup.mark("SuppServiceQueryEngine");
 
             callGatewayManager = CallGatewayManager.getInstance();
 
@@ -467,95 +490,61 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
             // to the telephony layer for user-initiated telephony functionality
             // (like making outgoing calls.)
             callController = CallController.init(this, callLogger, callGatewayManager);
+            mStartup.mark("CallController");
 
             // Create the CallerInfoCache singleton, which remembers custom ring tone and
             // send-to-voicemail settings.
             //
             // The asynchronous caching will start just after this call.
             callerInfoCache = CallerInfoCache.init(this);
+            mStartup.mark("CallerInfoCache");
 
             // Monitors call activity from the telephony layer
             callStateMonitor = new CallStateMonitor(mCM);
+            mStartup.mark("CallStateMonitor");
 
             // Creates call models for use with CallHandlerService.
             callModeler = new CallModeler(callStateMonitor, mCM, callGatewayManager);
+            mStartup.mark("CallModeler");
 
             // Plays DTMF Tones
             dtmfTonePlayer = new DTMFTonePlayer(mCM, callModeler);
+            mStartup.mark("DTMFTonePlayer");
 
             // Manages wired headset state
             wiredHeadsetManager = new WiredHeadsetManager(this);
             wiredHeadsetManager.addWiredHeadsetListener(this);
+            mStartup.mark("WiredHeadsetManager");
 
             // Bluetooth manager
             bluetoothManager = new BluetoothManager(this, mCM, callModeler);
+            mStartup.mark("BluetoothManager");
 
             ringer = Ringer.init(this, bluetoothManager);
+            mStartup.mark("Ringer");
 
             // Audio router
             audioRouter = new AudioRouter(this, bluetoothManager, wiredHeadsetManager, mCM);
+            mStartup.mark("AudioRouter");
 
             // Service used by in-call UI to control calls
             callCommandService = new CallCommandService(this, mCM, callModeler, dtmfTonePlayer,
                     audioRouter);
+            mStartup.mark("CallCommandService");
 
             // Sends call state to the UI
             callHandlerServiceProxy = new CallHandlerServiceProxy(this, callModeler,
                     callCommandService, audioRouter);
+            mStartup.mark("CallHandlerServiceProxy");
 
             phoneMgr = PhoneInterfaceManager.init(this, phone, callHandlerServiceProxy, callModeler,
                     dtmfTonePlayer);
+            mStartup.mark("PhoneInterfaceManager");
 
-            try {
-                if (getResources().getBoolean(R.bool.config_usage_oem_hooks_supported)) {
-                    if (DBG) {
-                        Log.d(LOG_TAG, "**********************************"
-                                + " OEMHookInterfaceCreator loading *****************"
-                                + "*********************************************");
-                    }
-                    DexClassLoader classLoader = new DexClassLoader(
-                            getResources().getString(R.string.config_oem_hook_jar_file),
-                            new ContextWrapper(phone.getContext()).getCacheDir().getAbsolutePath(),
-                            null, ClassLoader.getSystemClassLoader());
-                    classLoader.loadClass( getResources().getString(
-                            R.string.config_oem_hook_class_name)).getConstructor().newInstance();
-                } else {
-                    if (DBG) Log.d(LOG_TAG, "#######################################"
-                            + " NO OEM Hooks ############################################");
-                }
-            } catch (Resources.NotFoundException ex) {
-                Log.e(LOG_TAG, "Resource reading Failed!");
-            } catch (ClassNotFoundException ex) {
-                Log.e(LOG_TAG, "OEM Hook class loading failed");
-            } catch (Exception ex) {
-                Log.e(LOG_TAG, "OEM Hook class creation Failed!");
-            }
-
-            try {
-                if (getResources().getBoolean(R.bool.config_usage_sar_manager_supported)) {
-                    if (DBG) {
-                        Log.d(LOG_TAG, "**********************************"
-                                + " SarManagerCreator loading *****************"
-                                + "*********************************************");
-                    }
-                    DexClassLoader classLoader = new DexClassLoader(
-                            getResources().getString(R.string.config_sar_manager_jar_file),
-                            new ContextWrapper(phone.getContext()).getCacheDir().getAbsolutePath(),
-                            null, ClassLoader.getSystemClassLoader());
-                    classLoader.loadClass( getResources().getString(
-                            R.string.config_sar_manager_class_name)).getConstructor(
-                              DexClassLoader.class).newInstance(classLoader);
-                } else {
-                    if (DBG) Log.d(LOG_TAG, "#######################################"
-                            + " NO SAR Manager ############################################");
-                }
-            } catch (Resources.NotFoundException ex) {
-                Log.e(LOG_TAG, "Resource reading Failed!");
-            } catch (ClassNotFoundException ex) {
-                Log.e(LOG_TAG, "SAR Manager class loading failed");
-            } catch (Exception ex) {
-                Log.e(LOG_TAG, "SAR Manager class creation Failed!");
-            }
+            // Loading the OEM jars runs dexopt on them the first time, so it is done off the main
+            // thread.  The objects are still created on the main thread, after onCreate.
+            declareOemHookSteps();
+            declareSarManagerSteps();
 
             // Create the CallNotifer singleton, which handles
             // asynchronous events from the telephony layer (like
@@ -563,6 +552,7 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
             // in.)
             notifier = CallNotifier.init(this, phone, ringer, callLogger, callStateMonitor,
                     bluetoothManager, callModeler);
+            mStartup.mark("CallNotifier");
 
             // register for ICC status
             IccCard sim = phone.getIccCard();
@@ -611,6 +601,7 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
             mediaButtonIntentFilter.setPriority(1);
             //
             registerReceiver(mMediaButtonReceiver, mediaButtonIntentFilter);
+            mStartup.mark("Registrations");
             // register the component so it gets priority for calls
             AudioManager am = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
             am.registerMediaButtonEventReceiverForCalls(new ComponentName(this.getPackageName(),
@@ -620,22 +611,32 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
             PreferenceManager.setDefaultValues(this, R.xml.network_setting, false);
 
             PreferenceManager.setDefaultValues(this, R.xml.call_feature_setting, false);
+            mStartup.mark("PreferenceDefaults");
 
             // Make sure the audio mode (along with some
             // audio-mode-related state of our own) is initialized
             // correctly, given the current state of the phone.
             PhoneUtils.setAudioMode(mCM);
+            mStartup.mark("AudioMode");
         }
 
+        // The OTA objects are plain holders, read directly by OtaUtils and the in-call UI as
+        // soon as an OTASP call can start, so they stay on the critical path.
         if (TelephonyCapabilities.supportsOtasp(phone)) {
             cdmaOtaProvisionData = new OtaUtils.CdmaOtaProvisionData();
             cdmaOtaConfigData = new OtaUtils.CdmaOtaConfigData();
             cdmaOtaScreenState = new OtaUtils.CdmaOtaScreenState();
             cdmaOtaInCallScreenUiState = new OtaUtils.CdmaOtaInCallScreenUiState();
+            mStartup.mark("OtaData");
         }
 
         // XXX pre-load the SimProvider so that it's ready
-        resolver.getType(Uri.parse("content://icc/adn"));
+        mStartup.background("SimProviderPreload", new Runnable() {
+            @Override
+            public void run() {
+                getContentResolver().getType(Uri.parse("content://icc/adn"));
+            }
+        });
 
         // start with the default value to set the mute state.
         mShouldRestoreMuteOnInCallResume = false;
@@ -664,8 +665,99 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
                                       CallFeaturesSetting.HAC_VAL_ON :
                                       CallFeaturesSetting.HAC_VAL_OFF);
         }
+        mStartup.mark("TtyHac");
+
+        mStartup.finishCriticalPath();
    }
 
+    private void declareOemHookSteps() {
+        if (!getResources().getBoolean(R.bool.config_usage_oem_hooks_supported)) {
+            if (DBG) Log.d(LOG_TAG, "#######################################"
+                    + " NO OEM Hooks ############################################");
+            return;
+        }
+        mStartup.background("OemHookLoad", new Runnable() {
+            @Override
+            public void run() {
+                if (DBG) {
+                    Log.d(LOG_TAG, "**********************************"
+                            + " OEMHookInterfaceCreator loading *****************"
+                            + "*********************************************");
+                }
+                try {
+                    DexClassLoader classLoader = new DexClassLoader(
+                            getResources().getString(R.string.config_oem_hook_jar_file),
+                            new ContextWrapper(phone.getContext()).getCacheDir().getAbsolutePath(),
+                            null, ClassLoader.getSystemClassLoader());
+                    mOemHookClass = classLoader.loadClass(getResources().getString(
+                            R.string.config_oem_hook_class_name));
+                } catch (Resources.NotFoundException ex) {
+                    Log.e(LOG_TAG, "Resource reading Failed!");
+                } catch (ClassNotFoundException ex) {
+                    Log.e(LOG_TAG, "OEM Hook class loading failed");
+                } catch (Exception ex) {
+                    Log.e(LOG_TAG, "OEM Hook class loading Failed!", ex);
+                }
+            }
+        });
+        mStartup.defer("OemHook", new Runnable() {
+            @Override
+            public void run() {
+                if (mOemHookClass == null) return;
+                try {
+                    mOemHookClass.getConstructor().newInstance();
+                } catch (Exception ex) {
+                    Log.e(LOG_TAG, "OEM Hook class creation Failed!");
+                }
+            }
+        }, "OemHookLoad");
+    }
+
+    private void declareSarManagerSteps() {
+        if (!getResources().getBoolean(R.bool.config_usage_sar_manager_supported)) {
+            if (DBG) Log.d(LOG_TAG, "#######################################"
+                    + " NO SAR Manager ############################################");
+            return;
+        }
+        mStartup.background("SarManagerLoad", new Runnable() {
+            @Override
+            public void run() {
+                if (DBG) {
+                    Log.d(LOG_TAG, "**********************************"
+                            + " SarManagerCreator loading *****************"
+                            + "*********************************************");
+                }
+                try {
+                    DexClassLoader classLoader = new DexClassLoader(
+                            getResources().getString(R.string.config_sar_manager_jar_file),
+                            new ContextWrapper(phone.getContext()).getCacheDir().getAbsolutePath(),
+                            null, ClassLoader.getSystemClassLoader());
+                    mSarManagerClass = classLoader.loadClass(getResources().getString(
+                            R.string.config_sar_manager_class_name));
+                    mSarManagerClassLoader = classLoader;
+                } catch (Resources.NotFoundException ex) {
+                    Log.e(LOG_TAG, "Resource reading Failed!");
+                } catch (ClassNotFoundException ex) {
+                    Log.e(LOG_TAG, "SAR Manager class loading failed");
+                } catch (Exception ex) {
+                    Log.e(LOG_TAG, "SAR Manager class loading Failed!", ex);
+                }
+            }
+        });
+        mStartup.defer("SarManager", new Runnable() {
+            @Override
+            public void run() {
+                if (mSarManagerClass == null) return;
+                try {
+                    mSarManagerClass.getConstructor(DexClassLoader.class)
+                            .newInstance(mSarManagerClassLoader);
+                } catch (Exception ex) {
+                    Log.e(LOG_TAG, "SAR Manager class creation Failed!");
+                }
+            }
+        }, "SarManagerLoad");
+    }
+
     /**
      * Returns the singleton instance of the PhoneApp.
      */
@@ -715,6 +807,30 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
         return callModeler;
     }
 
+    /* package */ CallHandlerServiceProxy getCallHandlerServiceProxy() {
+        return callHandlerServiceProxy;
+    }
+
+    /* package */ CallStateMonitor getCallStateMonitor() {
+        return callStateMonitor;
+    }
+
+    /* package */ CallLogger getCallLogger() {
+        return callLogger;
+    }
+
+    /* package */ PhoneStartup getStartup() {
+        return mStartup;
+    }
+
+    /* package */ SuppServiceQueryEngine getSuppServiceQueryEngine() {
+        return suppServiceQueryEngine;
+    }
+
+    /* package */ DTMFTonePlayer getDtmfTonePlayer() {
+        return dtmfTonePlayer;
+    }
+
     /* package */ CallManager getCallManager() {
         return mCM;
     }
@@ -1252,6 +1368,10 @@ public class PhoneGlobals extends ContextWrapper implements WiredHeadsetListener
         if (ss != null) {
             int state = ss.getState();
             notificationMgr.updateNetworkSelection(state);
+            if (state == ServiceState.STATE_POWER_OFF) {
+                // The networks seen before the radio went off may be gone when it is back.
+                NetworkQueryService.clearCachedResult();
+            }
         }
     }
 
@@ -34,6 +34,7 @@ import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.telephony.NeighboringCellInfo;
 import android.telephony.CellInfo;
@@ -56,6 +57,7 @@ import com.android.internal.util.HexDump;
 import com.android.internal.telephony.uicc.IccIoResult;
 import com.android.internal.telephony.uicc.IccUtils;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -85,6 +87,17 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
     private static final int EVENT_CLOSE_CHANNEL_DONE = 12;
     private static final int CMD_SIM_IO = 13;
     private static final int EVENT_SIM_IO_DONE = 14;
+    private static final int CMD_COUNT = 15;
+
+    // How long a binder thread waits for a request to the main thread before giving up.
+    // Requests that need a round trip to the modem or the SIM get longer.
+    private static final long REQUEST_TIMEOUT_MILLIS = 5000;
+    private static final long MODEM_REQUEST_TIMEOUT_MILLIS = 10000;
+
+    // Modem and SIM requests waited on at once; further ones fail right away rather than park
+    // yet another binder thread behind a busy main thread.  Ending a call and entering a PIN
+    // are not limited, so that a flood of slow requests can not keep the user from doing either.
+    private static final int MAX_REQUESTS_IN_FLIGHT = 8;
 
     /** The singleton instance. */
     private static PhoneInterfaceManager sInstance;
@@ -102,6 +115,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
     Handler mDtmfStopHandler = new Handler();
     Runnable mDtmfStopRunnable;
 
+    private final Object mRequestLock = new Object();
+    private int mRequestsInFlight;                              // Guarded by mRequestLock
+    private final RequestStats[] mRequestStats = new RequestStats[CMD_COUNT];
+
     private final List<ITelephonyListener> mListeners = new ArrayList<ITelephonyListener>();
     private final Map<IBinder, TelephonyListenerDeathRecipient> mDeathRecipients =
             new HashMap<IBinder, TelephonyListenerDeathRecipient>();
@@ -124,20 +141,44 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
     }
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters wait on the request
+     * after sending, up to a deadline. The main thread completes the request with
+     * completeRequest() once it has a result.
      */
     private static final class MainThreadRequest {
+        /** The command, for the stats */
+        public final int command;
         /** The argument to use for the request */
         public Object argument;
         /** The result of the request that is run on the main thread */
         public Object result;
+        /** When the request was sent, and when the main thread picked it up */
+        public final long sendTime;
+        public long startTime;
+        /** Whether the request still counts towards MAX_REQUESTS_IN_FLIGHT */
+        public boolean inFlight;
 
-        public MainThreadRequest(Object argument) {
+        public MainThreadRequest(int command, Object argument, boolean inFlight) {
+            this.command = command;
             this.argument = argument;
+            this.inFlight = inFlight;
+            this.sendTime = SystemClock.elapsedRealtime();
         }
     }
 
+    /**
+     * Per command timings of the requests sent to the main thread.
+     */
+    private static final class RequestStats {
+        int count;
+        int timeouts;
+        int rejected;
+        long totalQueueMillis;
+        long maxQueueMillis;
+        long totalExecMillis;
+        long maxExecMillis;
+    }
+
     /**
      * A handler that processes messages on the main thread in the phone process. Since many
      * of the Phone calls are not thread safe this is needed to shuttle the requests from the
@@ -157,15 +198,16 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
             Message onCompleted;
             AsyncResult ar;
 
+            if (msg.obj instanceof MainThreadRequest) {
+                ((MainThreadRequest) msg.obj).startTime = SystemClock.elapsedRealtime();
+            }
+
             switch (msg.what) {
                 case CMD_HANDLE_PIN_MMI:
                     request = (MainThreadRequest) msg.obj;
                     request.result = Boolean.valueOf(
                             mPhone.handlePinMmi((String) request.argument));
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    completeRequest(request);
                     break;
 
                 case CMD_HANDLE_NEIGHBORING_CELL:
@@ -184,10 +226,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
                         // create an empty list to notify the waiting thread
                         request.result = new ArrayList<NeighboringCellInfo>();
                     }
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    completeRequest(request);
                     break;
 
                 case CMD_ANSWER_RINGING_CALL:
@@ -214,10 +253,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
                     }
                     if (DBG) log("CMD_END_CALL: " + (hungUp ? "hung up!" : "no call to hang up"));
                     request.result = hungUp;
-                    // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    completeRequest(request);
                     break;
                 case CMD_EXCHANGE_APDU:
                     request = (MainThreadRequest) msg.obj;
@@ -246,9 +282,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
                             }
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    completeRequest(request);
                     break;
 
                 case CMD_OPEN_CHANNEL:
@@ -281,9 +315,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
                             }
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    completeRequest(request);
                     break;
 
                 case CMD_CLOSE_CHANNEL:
@@ -312,9 +344,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
                             }
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    completeRequest(request);
                     break;
 
                case CMD_SIM_IO:
@@ -346,9 +376,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
                             }
                         }
                     }
-                    synchronized (request) {
-                         request.notifyAll();
-                    }
+                    completeRequest(request);
                     break;
 
                 default:
@@ -361,6 +389,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
     /**
      * Posts the specified command to be executed on the main thread,
      * waits for the request to complete, and returns the result.
+     *
+     * If the request does not complete within the command's timeout, if the waiting thread
+     * is interrupted, or if too many modem or SIM requests are already waiting (see
+     * {@link #isLimited}), this returns the command's failure result instead (see
+     * {@link #getFailedResult}).  Once sent, the command still runs on the main thread
+     * later, even if it timed out.
+     *
      * @see #sendRequestAsync
      */
     private Object sendRequest(int command, Object argument) {
@@ -368,21 +403,168 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
             throw new RuntimeException("This method will deadlock if called from the main thread.");
         }
 
-        MainThreadRequest request = new MainThreadRequest(argument);
+        final boolean limited = isLimited(command);
+        if (limited) {
+            synchronized (mRequestLock) {
+                if (mRequestsInFlight >= MAX_REQUESTS_IN_FLIGHT) {
+                    Log.w(LOG_TAG, "sendRequest: too many requests in flight, failing " + command);
+                    getRequestStats(command).rejected++;
+                    return getFailedResult(command);
+                }
+                mRequestsInFlight++;
+            }
+        }
+
+        MainThreadRequest request = new MainThreadRequest(command, argument, limited);
         Message msg = mMainThreadHandler.obtainMessage(command, request);
         msg.sendToTarget();
 
         // Wait for the request to complete
+        final long deadline = request.sendTime + getRequestTimeout(command);
+        boolean interrupted = false;
         synchronized (request) {
-            while (request.result == null) {
+            long remaining;
+            while (request.result == null
+                    && (remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
                 try {
-                    request.wait();
+                    request.wait(remaining);
                 } catch (InterruptedException e) {
-                    // Do nothing, go back and wait until the request is complete
+                    interrupted = true;
+                    break;
+                }
+            }
+            if (request.result != null) {
+                return request.result;
+            }
+            releaseRequest(request);
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Log.w(LOG_TAG, "sendRequest: command " + command + " timed out"
+                + (request.startTime == 0 ? " in the queue" : " while running"));
+        synchronized (mRequestLock) {
+            getRequestStats(command).timeouts++;
+        }
+        return getFailedResult(command);
+    }
+
+    /**
+     * Wakes up the thread waiting for the request, once request.result has been set.
+     * Main thread only.
+     */
+    private void completeRequest(MainThreadRequest request) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (request) {
+            releaseRequest(request);
+            request.notifyAll();
+        }
+        synchronized (mRequestLock) {
+            final RequestStats stats = getRequestStats(request.command);
+            final long queueMillis = request.startTime - request.sendTime;
+            final long execMillis = now - request.startTime;
+            stats.count++;
+            stats.totalQueueMillis += queueMillis;
+            stats.maxQueueMillis = Math.max(stats.maxQueueMillis, queueMillis);
+            stats.totalExecMillis += execMillis;
+            stats.maxExecMillis = Math.max(stats.maxExecMillis, execMillis);
+        }
+    }
+
+    /** Called with the request locked, by whichever of its waiter or the main thread is first. */
+    private void releaseRequest(MainThreadRequest request) {
+        if (request.inFlight) {
+            request.inFlight = false;
+            synchronized (mRequestLock) {
+                mRequestsInFlight--;
+            }
+        }
+    }
+
+    private RequestStats getRequestStats(int command) {
+        if (mRequestStats[command] == null) {
+            mRequestStats[command] = new RequestStats();
+        }
+        return mRequestStats[command];
+    }
+
+    /**
+     * Whether the command counts towards MAX_REQUESTS_IN_FLIGHT.  Only the modem and SIM
+     * requests, which any app holding the permission can send and which take long to run, do.
+     */
+    private static boolean isLimited(int command) {
+        switch (command) {
+            case CMD_HANDLE_NEIGHBORING_CELL:
+            case CMD_EXCHANGE_APDU:
+            case CMD_OPEN_CHANNEL:
+            case CMD_CLOSE_CHANNEL:
+            case CMD_SIM_IO:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static long getRequestTimeout(int command) {
+        switch (command) {
+            case CMD_HANDLE_NEIGHBORING_CELL:
+            case CMD_EXCHANGE_APDU:
+            case CMD_OPEN_CHANNEL:
+            case CMD_CLOSE_CHANNEL:
+            case CMD_SIM_IO:
+                return MODEM_REQUEST_TIMEOUT_MILLIS;
+            default:
+                return REQUEST_TIMEOUT_MILLIS;
+        }
+    }
+
+    /**
+     * Returns what a request that could not complete returns to its caller: the same as
+     * the command returns when it fails on the main thread.
+     */
+    private Object getFailedResult(int command) {
+        switch (command) {
+            case CMD_HANDLE_PIN_MMI:
+            case CMD_END_CALL:
+                return Boolean.FALSE;
+            case CMD_HANDLE_NEIGHBORING_CELL:
+                return new ArrayList<NeighboringCellInfo>();
+            case CMD_EXCHANGE_APDU:
+            case CMD_SIM_IO:
+                mLastError = 1;
+                return new IccIoResult(0x6f, 0, (byte[])null);
+            case CMD_OPEN_CHANNEL:
+                mLastError = 1;
+                return new Integer(0);
+            case CMD_CLOSE_CHANNEL:
+                mLastError = 1;
+                return new Integer(-1);
+            default:
+                throw new IllegalArgumentException("Unexpected command: " + command);
+        }
+    }
+
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("PhoneInterfaceManager:");
+        synchronized (mRequestLock) {
+            pw.println("  modem and SIM requests in flight: " + mRequestsInFlight);
+            for (int command = 0; command < CMD_COUNT; command++) {
+                final RequestStats stats = mRequestStats[command];
+                if (stats == null) {
+                    continue;
                 }
+                pw.println("  command " + command + ": n=" + stats.count
+                        + " timeouts=" + stats.timeouts
+                        + " rejected=" + stats.rejected
+                        + " queue avg/max=" + (stats.count == 0 ? 0
+                                : stats.totalQueueMillis / stats.count)
+                        + "/" + stats.maxQueueMillis + "ms"
+                        + " exec avg/max=" + (stats.count == 0 ? 0
+                                : stats.totalExecMillis / stats.count)
+                        + "/" + stats.maxExecMillis + "ms");
             }
         }
-        return request.result;
     }
 
     /**
@@ -514,7 +696,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub implements CallModele
 
     /**
      * End a call based on call state
-     * @return true is a call was ended
+     * @return true is a call was ended.  If the main thread does not get to the request in
+     *         time this returns false, but the call is still ended once it does; a caller
+     *         seeing false should check the call state rather than assume the call is still up.
      */
     public boolean endCall() {
         enforceCallPermission();
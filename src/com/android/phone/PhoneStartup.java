@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Runs the startup of the phone process in stages and records how long each part took.
+ *
+ * Components that have to exist before the first incoming call is handled are still created
+ * inline by PhoneGlobals.onCreate, which calls {@link #mark} after each one.  Everything else is
+ * declared as a step with the steps it depends on, and runs once onCreate has called
+ * {@link #finishCriticalPath}: {@link #defer deferred} steps one message at a time on the main
+ * thread, {@link #background} steps in order on a worker thread.  A step runs only when all the
+ * steps it names have finished, whichever thread they ran on.
+ *
+ * A step that throws is logged and counts as finished, so the steps depending on it still run.
+ * When the last step has finished the timeline is logged; it is also part of the phone dumpsys.
+ */
+final class PhoneStartup {
+    private static final String LOG_TAG = "PhoneStartup";
+
+    private static final int STAGE_MAIN = 0;
+    private static final int STAGE_DEFERRED = 1;
+    private static final int STAGE_BACKGROUND = 2;
+    private static final String[] STAGE_NAMES = { "main", "deferred", "background" };
+
+    private static class Step {
+        final String name;
+        final int stage;
+        final Runnable runnable;
+        final ArrayList<Step> dependents = new ArrayList<Step>();
+        int pendingDependencies;
+        boolean dispatched;
+        boolean failed;
+        // Relative to the start of the startup, -1 until known.
+        long startMillis = -1;
+        long endMillis = -1;
+
+        Step(String name, int stage, Runnable runnable) {
+            this.name = name;
+            this.stage = stage;
+            this.runnable = runnable;
+        }
+    }
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // All steps in the order they were declared.  Guarded by this.
+    private final LinkedHashMap<String, Step> mSteps = new LinkedHashMap<String, Step>();
+    private long mLastMark;
+    private long mCriticalPathMillis = -1;
+    private int mUnfinished;
+    private int mUnfinishedBackground;
+    private HandlerThread mBackgroundThread;
+    private Handler mBackgroundHandler;
+
+    /**
+     * Records that the main thread component with the given name has just been created, taking
+     * the time since the previous mark.
+     */
+    synchronized void mark(String name) {
+        final long now = now();
+        Step step = new Step(name, STAGE_MAIN, null);
+        step.startMillis = mLastMark;
+        step.endMillis = now;
+        mLastMark = now;
+        addStep(step);
+    }
+
+    /**
+     * Declares a step that runs on the main thread after the critical path, once the steps
+     * named by {@code after} have finished.
+     */
+    synchronized void defer(String name, Runnable runnable, String... after) {
+        declare(new Step(name, STAGE_DEFERRED, runnable), after);
+    }
+
+    /**
+     * Declares a step that runs on the startup worker thread after the critical path, once the
+     * steps named by {@code after} have finished.  Background steps must not touch state the
+     * main thread uses without synchronization, other than through the steps depending on them.
+     */
+    synchronized void background(String name, Runnable runnable, String... after) {
+        mUnfinishedBackground++;
+        declare(new Step(name, STAGE_BACKGROUND, runnable), after);
+    }
+
+    /**
+     * Ends the critical path: called at the end of onCreate.  Starts the declared steps that are
+     * not waiting for others.
+     */
+    synchronized void finishCriticalPath() {
+        mCriticalPathMillis = now();
+        Log.i(LOG_TAG, "Critical path done in " + mCriticalPathMillis + "ms, "
+                + mUnfinished + " steps left");
+        for (Step step : mSteps.values()) {
+            if (step.stage != STAGE_MAIN && step.pendingDependencies == 0) {
+                dispatch(step);
+            }
+        }
+        if (mUnfinished == 0) {
+            logTimeline();
+        }
+    }
+
+    private void declare(Step step, String... after) {
+        for (String name : after) {
+            Step dependency = mSteps.get(name);
+            if (dependency == null) {
+                throw new IllegalArgumentException(step.name + " depends on unknown step " + name);
+            }
+            if (dependency.endMillis < 0) {
+                dependency.dependents.add(step);
+                step.pendingDependencies++;
+            }
+        }
+        addStep(step);
+        mUnfinished++;
+        if (mCriticalPathMillis >= 0 && step.pendingDependencies == 0) {
+            dispatch(step);
+        }
+    }
+
+    private void addStep(Step step) {
+        if (mSteps.containsKey(step.name)) {
+            throw new IllegalArgumentException("Duplicate startup step " + step.name);
+        }
+        mSteps.put(step.name, step);
+    }
+
+    private void dispatch(final Step step) {
+        if (step.dispatched) return;
+        step.dispatched = true;
+
+        final Runnable runner = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PhoneStartup.this) {
+                    step.startMillis = now();
+                }
+                try {
+                    step.runnable.run();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Startup step " + step.name + " failed", e);
+                    step.failed = true;
+                } finally {
+                    onStepFinished(step);
+                }
+            }
+        };
+        if (step.stage == STAGE_BACKGROUND) {
+            if (mBackgroundHandler == null) {
+                mBackgroundThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+                mBackgroundThread.start();
+                mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+            }
+            mBackgroundHandler.post(runner);
+        } else {
+            mMainHandler.post(runner);
+        }
+    }
+
+    private synchronized void onStepFinished(Step step) {
+        step.endMillis = now();
+        for (Step dependent : step.dependents) {
+            if (--dependent.pendingDependencies == 0) {
+                dispatch(dependent);
+            }
+        }
+        if (step.stage == STAGE_BACKGROUND && --mUnfinishedBackground == 0) {
+            // Anything posted before this returns has already run, as the thread runs steps
+            // in order, so it can go.
+            mBackgroundThread.quit();
+            mBackgroundThread = null;
+            mBackgroundHandler = null;
+        }
+        if (--mUnfinished == 0) {
+            logTimeline();
+        }
+    }
+
+    private long now() {
+        return SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+    private void logTimeline() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        dumpLocked(pw);
+        pw.flush();
+        Log.i(LOG_TAG, sw.toString());
+    }
+
+    /* package */ synchronized void dump(PrintWriter pw) {
+        dumpLocked(pw);
+    }
+
+    private void dumpLocked(PrintWriter pw) {
+        pw.println("PhoneStartup: critical path " + mCriticalPathMillis + "ms, "
+                + mUnfinished + " steps unfinished");
+        pw.println(String.format("  %-28s %-10s %7s %7s", "step", "stage", "start", "took"));
+        for (Step step : mSteps.values()) {
+            pw.println(String.format("  %-28s %-10s %7s %7s", step.name, STAGE_NAMES[step.stage],
+                    step.startMillis >= 0 ? "+" + step.startMillis : "-",
+                    step.endMillis >= 0 ? (step.endMillis - step.startMillis) + "ms" : "-")
+                    + (step.failed ? "  failed" : ""));
+        }
+    }
+}
@@ -35,6 +35,11 @@ import android.provider.Settings;
 import android.util.Log;
 
 import com.android.internal.telephony.Phone;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Ringer manager for the Phone app.
  */
@@ -67,6 +72,13 @@ public class Ringer {
     private long mFirstRingEventTime = -1;
     private long mFirstRingStartTime = -1;
 
+    // Prepared ringtones, and ring start latency statistics for dump().
+    private final RingtoneCache mRingtoneCache;
+    private boolean mRingtoneFromCache;
+    private long mLastRingLatency = -1;
+    private long mTotalRingLatency;
+    private int mRingCount;
+
     /**
      * Initialize the singleton Ringer instance.
      * This is only done once, at startup, from PhoneApp.onCreate().
@@ -91,6 +103,21 @@ public class Ringer {
         // We don't rely on getSystemService(Context.VIBRATOR_SERVICE) to make sure this
         // vibrator object will be isolated from others.
         mVibrator = new SystemVibrator(context);
+
+        mRingtoneCache = new RingtoneCache(context);
+        mRingtoneCache.prepare(Settings.System.DEFAULT_RINGTONE_URI);
+    }
+
+    /**
+     * Prepares the default ringtone and the given custom ringtones ahead of incoming calls.
+     *
+     * @param customRingtones Custom ringtones, most important first.
+     */
+    void prewarmRingtones(List<Uri> customRingtones) {
+        final List<Uri> uris = new ArrayList<Uri>(customRingtones.size() + 1);
+        uris.add(Settings.System.DEFAULT_RINGTONE_URI);
+        uris.addAll(customRingtones);
+        mRingtoneCache.prewarm(uris);
     }
 
     /**
@@ -231,6 +258,10 @@ public class Ringer {
                 msg.obj = mRingtone;
                 mRingHandler.sendMessage(msg);
                 PhoneUtils.setAudioMode();
+                if (mRingtone != null) {
+                    // The stopped ringtone releases its player; have another one ready.
+                    mRingtoneCache.prepare(mCustomRingtoneUri);
+                }
                 mRingThread = null;
                 mRingHandler = null;
                 mRingtone = null;
@@ -315,12 +346,18 @@ public class Ringer {
                         case PLAY_RING_ONCE:
                             if (DBG) log("mRingHandler: PLAY_RING_ONCE...");
                             if (mRingtone == null && !hasMessages(STOP_RING)) {
-                                // create the ringtone with the uri
-                                if (DBG) log("creating ringtone: " + mCustomRingtoneUri);
-                                r = RingtoneManager.getRingtone(mContext, mCustomRingtoneUri);
+                                // use a prepared ringtone if there is one, otherwise create
+                                // the ringtone with the uri
+                                r = mRingtoneCache.take(mCustomRingtoneUri);
+                                final boolean fromCache = r != null;
+                                if (r == null) {
+                                    if (DBG) log("creating ringtone: " + mCustomRingtoneUri);
+                                    r = RingtoneManager.getRingtone(mContext, mCustomRingtoneUri);
+                                }
                                 synchronized (Ringer.this) {
                                     if (!hasMessages(STOP_RING)) {
                                         mRingtone = r;
+                                        mRingtoneFromCache = fromCache;
                                     }
                                 }
                             }
@@ -331,6 +368,7 @@ public class Ringer {
                                 synchronized (Ringer.this) {
                                     if (mFirstRingStartTime < 0) {
                                         mFirstRingStartTime = SystemClock.elapsedRealtime();
+                                        recordRingLatency();
                                     }
                                 }
                             }
@@ -351,6 +389,31 @@ public class Ringer {
         }
     }
 
+    /**
+     * Records how long the first ring of this call took from the ring event to the ringtone
+     * playing.
+     */
+    private void recordRingLatency() {
+        if (mFirstRingEventTime < 0) {
+            return;
+        }
+        mLastRingLatency = mFirstRingStartTime - mFirstRingEventTime;
+        mTotalRingLatency += mLastRingLatency;
+        mRingCount++;
+        Log.i(LOG_TAG, "Ring started after " + mLastRingLatency + "ms ("
+                + (mRingtoneFromCache ? "prepared" : "not prepared") + ")");
+    }
+
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("Ringer:");
+        synchronized (this) {
+            pw.println("  rings: " + mRingCount + ", last start latency: " + mLastRingLatency
+                    + "ms, average: " + (mRingCount > 0 ? mTotalRingLatency / mRingCount : -1)
+                    + "ms");
+        }
+        mRingtoneCache.dump(pw);
+    }
+
     private static void log(String msg) {
         Log.d(LOG_TAG, msg);
     }
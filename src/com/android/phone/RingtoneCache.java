@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemProperties;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a few ringtones prepared ahead of time so that an incoming call does not have to wait for
+ * media player setup before it starts ringing.
+ *
+ * A Ringtone releases its player once stopped, so a cached ringtone is handed out at most once;
+ * {@link Ringer} asks for it to be prepared again after the ring stops. Every prepared ringtone
+ * holds a media player, so the cache is bounded to a small number of entries and evicts the least
+ * recently used one beyond that.
+ */
+class RingtoneCache {
+    private static final String LOG_TAG = "RingtoneCache";
+    private static final boolean DBG =
+            (PhoneGlobals.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
+
+    private static final int MAX_ENTRIES = 3;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    // Access ordered, so iteration starts from the least recently used entry.
+    private final LinkedHashMap<Uri, Ringtone> mPrepared =      // Guarded by this
+            new LinkedHashMap<Uri, Ringtone>(MAX_ENTRIES + 1, 0.75f, true);
+    private int mHits;                                          // Guarded by this
+    private int mMisses;                                        // Guarded by this
+
+    RingtoneCache(Context context) {
+        mContext = context;
+
+        final HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // The default ringtone uri resolves to whatever the user picked at preparation time, so
+        // a cached one goes stale when that setting changes.
+        context.getContentResolver().registerContentObserver(
+                Settings.System.getUriFor(Settings.System.RINGTONE), false,
+                new ContentObserver(mHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        if (DBG) log("Default ringtone changed");
+                        release(take(Settings.System.DEFAULT_RINGTONE_URI, false));
+                        prepare(Settings.System.DEFAULT_RINGTONE_URI);
+                    }
+                });
+    }
+
+    /**
+     * Prepares the given ringtones in the background, in order of priority. Only the first few
+     * fit in the cache.
+     */
+    void prewarm(final List<Uri> uris) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int count = Math.min(uris.size(), MAX_ENTRIES);
+                // Prepare in reverse so that the most important one ends up most recently used.
+                for (int i = count - 1; i >= 0; i--) {
+                    prepareNow(uris.get(i));
+                }
+            }
+        });
+    }
+
+    /**
+     * Prepares a single ringtone in the background unless it is already cached.
+     */
+    void prepare(final Uri uri) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                prepareNow(uri);
+            }
+        });
+    }
+
+    /**
+     * Hands out the prepared ringtone for the uri, or null if there is none. The ringtone is
+     * removed from the cache.
+     */
+    Ringtone take(Uri uri) {
+        return take(uri, true);
+    }
+
+    private synchronized Ringtone take(Uri uri, boolean count) {
+        final Ringtone ringtone = mPrepared.remove(uri);
+        if (count) {
+            if (ringtone != null) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        return ringtone;
+    }
+
+    private void prepareNow(Uri uri) {
+        synchronized (this) {
+            if (mPrepared.containsKey(uri)) {
+                // Touch it so that it counts as recently used.
+                mPrepared.get(uri);
+                return;
+            }
+        }
+
+        if (DBG) log("Preparing " + uri);
+        final Ringtone ringtone = RingtoneManager.getRingtone(mContext, uri);
+        if (ringtone == null) {
+            Log.w(LOG_TAG, "Unable to prepare ringtone " + uri);
+            return;
+        }
+
+        Ringtone evicted = null;
+        synchronized (this) {
+            mPrepared.put(uri, ringtone);
+            if (mPrepared.size() > MAX_ENTRIES) {
+                final Iterator<Map.Entry<Uri, Ringtone>> it = mPrepared.entrySet().iterator();
+                evicted = it.next().getValue();
+                it.remove();
+            }
+        }
+        release(evicted);
+    }
+
+    private static void release(Ringtone ringtone) {
+        if (ringtone != null) {
+            // Stopping a ringtone that never played releases its player.
+            ringtone.stop();
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  prepared ringtones: " + mPrepared.size() + "/" + MAX_ENTRIES);
+        pw.println("  ringtone cache hits: " + mHits + ", misses: " + mMisses);
+    }
+
+    private static void log(String msg) {
+        Log.d(LOG_TAG, msg);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Imports the ADN rows of a SIM into the contacts provider.
+ *
+ * {@link #importAll} writes many contacts per provider transaction instead of one, and records
+ * how many rows have been committed so far.  If an import is canceled or the process dies, the
+ * next import of the same SIM contents into the same account picks up after the last committed
+ * row rather than creating the earlier contacts again.
+ *
+ * Each batch is applied as a single transaction without yield points in between, so a batch that
+ * fails leaves nothing behind and the recorded position stays exact.  Such a batch is retried one
+ * contact at a time, so that one bad row only loses that row, as before.
+ */
+class SimContactImporter {
+    private static final String LOG_TAG = "SimContactImporter";
+    private static final boolean DBG =
+            (PhoneGlobals.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
+
+    // Contacts per provider transaction.  A full SIM holds a few hundred, and a contact takes
+    // three or four operations, which keeps a batch well below the provider's limit of 500
+    // operations between yield points.
+    private static final int BATCH_SIZE = 50;
+
+    private static final String PREFS_NAME = "sim_contact_import";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_ACCOUNT = "account";
+    private static final String KEY_COMMITTED = "committed";
+
+    /**
+     * Receives the number of rows done so far, from the thread running the import.
+     */
+    interface ProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mPrefs;
+    private final Account mAccount;
+    private final String mAccountKey;
+
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>();
+    private final TextUtils.SimpleStringSplitter mEmailSplitter =
+            new TextUtils.SimpleStringSplitter(',');
+
+    private volatile boolean mCanceled;
+
+    // Stats from the last importAll(), for logging.
+    private int mTransactions;
+    private int mFailedRows;
+
+    SimContactImporter(Context context, Account account) {
+        mResolver = context.getContentResolver();
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mAccount = account;
+        mAccountKey = account != null ? account.type + "/" + account.name : "";
+    }
+
+    /**
+     * Stops a running {@link #importAll} after the batch it is building; the rows of that batch
+     * are not written.  May be called from any thread.
+     */
+    void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * Imports every row of the cursor, resuming after an earlier interrupted import of the same
+     * rows if there was one.  Blocks until done or canceled.
+     *
+     * @return true if all rows were imported, false if canceled
+     */
+    boolean importAll(Cursor cursor, ProgressListener listener) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final int total = cursor.getCount();
+        final long fingerprint = fingerprint(cursor);
+        int done = getResumePosition(fingerprint, total);
+        final int resumedAt = done;
+        mTransactions = 0;
+        mFailedRows = 0;
+        listener.onProgress(done, total);
+
+        mOperations.clear();
+        int pending = 0;
+        cursor.moveToPosition(done - 1);
+        while (!mCanceled && cursor.moveToNext()) {
+            addContactOperations(cursor, mOperations);
+            pending++;
+            if (pending == BATCH_SIZE || cursor.isLast()) {
+                commitBatch(cursor, done, pending);
+                done += pending;
+                pending = 0;
+                saveResumePosition(fingerprint, done);
+                listener.onProgress(done, total);
+            }
+        }
+        mOperations.clear();
+
+        if (!mCanceled) {
+            mPrefs.edit().clear().apply();
+        }
+        Log.i(LOG_TAG, "Imported rows " + resumedAt + ".." + done + " of " + total
+                + " in " + mTransactions + " transactions, " + mFailedRows + " failed, "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms"
+                + (mCanceled ? " (canceled)" : ""));
+        return !mCanceled;
+    }
+
+    /**
+     * Imports the row the cursor is at on its own.
+     */
+    void importOne(Cursor cursor) {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        addContactOperations(cursor, operations);
+        apply(operations);
+    }
+
+    /**
+     * Writes the operations built for the given rows, falling back to one contact at a time if
+     * the whole batch cannot be written.  Leaves the cursor on the last of the rows.
+     */
+    private void commitBatch(Cursor cursor, int first, int count) {
+        if (apply(mOperations)) {
+            mOperations.clear();
+            return;
+        }
+        mOperations.clear();
+
+        Log.w(LOG_TAG, "Batch of rows " + first + ".." + (first + count) + " failed, retrying");
+        for (int i = 0; i < count; i++) {
+            if (cursor.moveToPosition(first + i)) {
+                addContactOperations(cursor, mOperations);
+                if (!apply(mOperations)) {
+                    mFailedRows++;
+                }
+                mOperations.clear();
+            }
+        }
+        cursor.moveToPosition(first + count - 1);
+    }
+
+    private boolean apply(ArrayList<ContentProviderOperation> operations) {
+        mTransactions++;
+        try {
+            mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        return false;
+    }
+
+    /**
+     * Appends the operations inserting the contact in the cursor's current row.  The data rows
+     * refer back to the raw contact by its position in the list, so contacts can share a batch.
+     */
+    private void addContactOperations(Cursor cursor,
+            ArrayList<ContentProviderOperation> operations) {
+        final String nameWithPhoneType = cursor.getString(ADNList.NAME_COLUMN);
+        final String phoneNumber = cursor.getString(ADNList.NUMBER_COLUMN);
+        final String emailAddresses = cursor.getString(ADNList.EMAILS_COLUMN);
+
+        final int rawContactIndex = operations.size();
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
+        if (mAccount != null) {
+            builder.withValue(RawContacts.ACCOUNT_NAME, mAccount.name);
+            builder.withValue(RawContacts.ACCOUNT_TYPE, mAccount.type);
+        } else {
+            builder.withValues(SimContacts.sEmptyContentValues);
+        }
+        operations.add(builder.build());
+
+        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, rawContactIndex);
+        builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+        builder.withValue(StructuredName.DISPLAY_NAME, getName(nameWithPhoneType));
+        operations.add(builder.build());
+
+        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+        builder.withValueBackReference(Phone.RAW_CONTACT_ID, rawContactIndex);
+        builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+        builder.withValue(Phone.TYPE, getPhoneType(nameWithPhoneType));
+        builder.withValue(Phone.NUMBER, phoneNumber);
+        builder.withValue(Data.IS_PRIMARY, 1);
+        operations.add(builder.build());
+
+        if (!TextUtils.isEmpty(emailAddresses)) {
+            mEmailSplitter.setString(emailAddresses);
+            for (String emailAddress : mEmailSplitter) {
+                if (emailAddress.length() == 0) {
+                    continue;
+                }
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Email.RAW_CONTACT_ID, rawContactIndex);
+                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
+                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
+                builder.withValue(Email.DATA, emailAddress);
+                operations.add(builder.build());
+            }
+        }
+    }
+
+    /**
+     * Returns the name without the /W /H /M or /O suffix signifying the phone type.
+     */
+    private static String getName(String nameWithPhoneType) {
+        final int nameLen = nameWithPhoneType.length();
+        if (nameLen - 2 >= 0 && nameWithPhoneType.charAt(nameLen - 2) == '/') {
+            return nameWithPhoneType.substring(0, nameLen - 2);
+        }
+        return nameWithPhoneType;
+    }
+
+    private static int getPhoneType(String nameWithPhoneType) {
+        final int nameLen = nameWithPhoneType.length();
+        if (nameLen - 2 >= 0 && nameWithPhoneType.charAt(nameLen - 2) == '/') {
+            final char c = Character.toUpperCase(nameWithPhoneType.charAt(nameLen - 1));
+            if (c == 'W') {
+                return Phone.TYPE_WORK;
+            } else if (c == 'M' || c == 'O') {
+                return Phone.TYPE_MOBILE;
+            } else if (c == 'H') {
+                return Phone.TYPE_HOME;
+            }
+        }
+        return Phone.TYPE_OTHER;
+    }
+
+    /**
+     * Returns the number of rows an earlier import of the same rows into the same account
+     * committed before it was interrupted, or 0.
+     */
+    private int getResumePosition(long fingerprint, int total) {
+        if (mPrefs.getLong(KEY_FINGERPRINT, 0) != fingerprint
+                || !mAccountKey.equals(mPrefs.getString(KEY_ACCOUNT, null))) {
+            return 0;
+        }
+        final int committed = mPrefs.getInt(KEY_COMMITTED, 0);
+        if (committed <= 0 || committed >= total) {
+            return 0;
+        }
+        if (DBG) log("Resuming import after row " + committed);
+        return committed;
+    }
+
+    private void saveResumePosition(long fingerprint, int committed) {
+        mPrefs.edit()
+                .putLong(KEY_FINGERPRINT, fingerprint)
+                .putString(KEY_ACCOUNT, mAccountKey)
+                .putInt(KEY_COMMITTED, committed)
+                .apply();
+    }
+
+    /**
+     * Returns a hash of every row of the cursor, to tell whether the SIM contents changed since
+     * an interrupted import.
+     */
+    private static long fingerprint(Cursor cursor) {
+        long hash = cursor.getCount();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            hash = 31 * hash + hashString(cursor.getString(ADNList.NAME_COLUMN));
+            hash = 31 * hash + hashString(cursor.getString(ADNList.NUMBER_COLUMN));
+            hash = 31 * hash + hashString(cursor.getString(ADNList.EMAILS_COLUMN));
+        }
+        // 0 is what an empty preference reads as.
+        return hash != 0 ? hash : 1;
+    }
+
+    private static int hashString(String s) {
+        return s != null ? s.hashCode() : 0;
+    }
+
+    private static void log(String msg) {
+        Log.d(LOG_TAG, msg);
+    }
+}
@@ -19,25 +19,14 @@ package com.android.phone;
 import android.accounts.Account;
 import android.app.ActionBar;
 import android.app.ProgressDialog;
-import android.content.ContentProviderOperation;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.RemoteException;
-import android.provider.ContactsContract;
-import android.provider.ContactsContract.CommonDataKinds.Email;
-import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
-import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.StructuredName;
-import android.provider.ContactsContract.Data;
-import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -51,8 +40,6 @@ import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-
 /**
  * SIM Address Book UI for the Phone app.
  */
@@ -72,35 +59,11 @@ public class SimContacts extends ADNList {
     private Account mAccount;
     private boolean mActivityExiting = false;
 
-    private static class NamePhoneTypePair {
-        final String name;
-        final int phoneType;
-        public NamePhoneTypePair(String nameWithPhoneType) {
-            // Look for /W /H /M or /O at the end of the name signifying the type
-            int nameLen = nameWithPhoneType.length();
-            if (nameLen - 2 >= 0 && nameWithPhoneType.charAt(nameLen - 2) == '/') {
-                char c = Character.toUpperCase(nameWithPhoneType.charAt(nameLen - 1));
-                if (c == 'W') {
-                    phoneType = Phone.TYPE_WORK;
-                } else if (c == 'M' || c == 'O') {
-                    phoneType = Phone.TYPE_MOBILE;
-                } else if (c == 'H') {
-                    phoneType = Phone.TYPE_HOME;
-                } else {
-                    phoneType = Phone.TYPE_OTHER;
-                }
-                name = nameWithPhoneType.substring(0, nameLen - 2);
-            } else {
-                phoneType = Phone.TYPE_OTHER;
-                name = nameWithPhoneType;
-            }
-        }
-    }
-
     private class ImportAllSimContactsThread extends Thread
             implements OnCancelListener, OnClickListener {
 
-        boolean mCanceled = false;
+        private final SimContactImporter mImporter =
+                new SimContactImporter(SimContacts.this, mAccount);
 
         public ImportAllSimContactsThread() {
             super("ImportAllSimContactsThread");
@@ -108,14 +71,12 @@ public class SimContacts extends ADNList {
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
-            final ContentResolver resolver = getContentResolver();
-
-            mCursor.moveToPosition(-1);
-            while (!mCanceled && mCursor.moveToNext()) {
-                actuallyImportOneSimContact(mCursor, resolver, mAccount);
-                mProgressDialog.incrementProgressBy(1);
-            }
+            mImporter.importAll(mCursor, new SimContactImporter.ProgressListener() {
+                @Override
+                public void onProgress(int done, int total) {
+                    mProgressDialog.setProgress(done);
+                }
+            });
 
             mProgressDialog.dismiss();
             mActivityExiting = true;
@@ -123,12 +84,12 @@ public class SimContacts extends ADNList {
         }
 
         public void onCancel(DialogInterface dialog) {
-            mCanceled = true;
+            mImporter.cancel();
         }
 
         public void onClick(DialogInterface dialog, int which) {
             if (which == DialogInterface.BUTTON_NEGATIVE) {
-                mCanceled = true;
+                mImporter.cancel();
                 mProgressDialog.dismiss();
             } else {
                 Log.e(LOG_TAG, "Unknown button event has come: " + dialog.toString());
@@ -136,80 +97,9 @@ public class SimContacts extends ADNList {
         }
     }
 
-    private static void actuallyImportOneSimContact(
-            final Cursor cursor, final ContentResolver resolver, Account account) {
-        final NamePhoneTypePair namePhoneTypePair =
-            new NamePhoneTypePair(cursor.getString(NAME_COLUMN));
-        final String name = namePhoneTypePair.name;
-        final int phoneType = namePhoneTypePair.phoneType;
-        final String phoneNumber = cursor.getString(NUMBER_COLUMN);
-        final String emailAddresses = cursor.getString(EMAILS_COLUMN);
-        final String[] emailAddressArray;
-        if (!TextUtils.isEmpty(emailAddresses)) {
-            emailAddressArray = emailAddresses.split(",");
-        } else {
-            emailAddressArray = null;
-        }
-
-        final ArrayList<ContentProviderOperation> operationList =
-            new ArrayList<ContentProviderOperation>();
-        ContentProviderOperation.Builder builder =
-            ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
-        String myGroupsId = null;
-        if (account != null) {
-            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
-            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
-        } else {
-            builder.withValues(sEmptyContentValues);
-        }
-        operationList.add(builder.build());
-
-        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, 0);
-        builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-        builder.withValue(StructuredName.DISPLAY_NAME, name);
-        operationList.add(builder.build());
-
-        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
-        builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-        builder.withValue(Phone.TYPE, phoneType);
-        builder.withValue(Phone.NUMBER, phoneNumber);
-        builder.withValue(Data.IS_PRIMARY, 1);
-        operationList.add(builder.build());
-
-        if (emailAddresses != null) {
-            for (String emailAddress : emailAddressArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, 0);
-                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-                builder.withValue(Email.DATA, emailAddress);
-                operationList.add(builder.build());
-            }
-        }
-
-        if (myGroupsId != null) {
-            builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-            builder.withValueBackReference(GroupMembership.RAW_CONTACT_ID, 0);
-            builder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
-            builder.withValue(GroupMembership.GROUP_SOURCE_ID, myGroupsId);
-            operationList.add(builder.build());
-        }
-
-        try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
-        } catch (RemoteException e) {
-            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            Log.e(LOG_TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-        }
-    }
-
     private void importOneSimContact(int position) {
-        final ContentResolver resolver = getContentResolver();
         if (mCursor.moveToPosition(position)) {
-            actuallyImportOneSimContact(mCursor, resolver, mAccount);
+            new SimContactImporter(this, mAccount).importOne(mCursor);
         } else {
             Log.e(LOG_TAG, "Failed to move the cursor to the position \"" + position + "\"");
         }
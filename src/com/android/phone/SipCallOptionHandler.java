@@ -464,10 +464,6 @@ public class SipCallOptionHandler extends Activity implements
 
     private SipProfile getPrimaryFromExistingProfiles(String primarySipUri) {
         mProfileList = mSipProfileDb.retrieveSipProfileList();
-        if (mProfileList == null) return null;
-        for (SipProfile p : mProfileList) {
-            if (p.getUriString().equals(primarySipUri)) return p;
-        }
-        return null;
+        return mSipProfileDb.getProfileFromUri(primarySipUri);
     }
 }
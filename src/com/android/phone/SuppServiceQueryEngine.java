@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.telephony.CallForwardInfo;
+import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.IccCardConstants;
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.TelephonyIntents;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Reads the supplementary service settings shown by the call settings screens: call forwarding
+ * for each reason, call waiting and CLIR.
+ *
+ * Queries are sent to the network as soon as they are asked for, up to
+ * config_supp_service_max_queries_in_flight at a time, instead of one after the other.  A query
+ * asked for while the same one is already pending shares its reply.  Successful replies are kept,
+ * so a screen can show the last known value straight away while it reads the current one.
+ *
+ * A kept value is dropped when the setting is changed through this class, and call forwarding
+ * values are dropped when the network sends a call forwarding indication.  Every value is
+ * dropped when the SIM stops being ready, since the next one may have other settings; this is
+ * watched for here, whether or not a settings screen is open.  Everything runs on the main
+ * thread.
+ */
+class SuppServiceQueryEngine {
+    private static final String LOG_TAG = "SuppServiceQueryEngine";
+    private static final boolean DBG =
+            (PhoneGlobals.DBG_LEVEL >= 1) && (SystemProperties.getInt("ro.debuggable", 0) == 1);
+
+    // Query keys.  Call forwarding queries use the CommandsInterface.CF_REASON_* value.
+    private static final int KEY_CALL_WAITING = 100;
+    private static final int KEY_CLIR = 101;
+
+    private static final int EVENT_QUERY_DONE = 1;
+
+    private static class Query {
+        final int key;
+        final ArrayList<Message> responses = new ArrayList<Message>();
+        boolean sent;
+        long sendTime;
+
+        Query(int key) {
+            this.key = key;
+        }
+    }
+
+    private final int mMaxInFlight;
+
+    // The phone the cached values and pending queries belong to.
+    private Phone mPhone;
+
+    // Last successful result for each key.
+    private final SparseArray<Object> mCache = new SparseArray<Object>();
+    // Queries that a new request for the same key may share; queued or sent after the last
+    // invalidation of the key.
+    private final SparseArray<Query> mActive = new SparseArray<Query>();
+    // Queries waiting for a free slot.
+    private final LinkedList<Query> mQueue = new LinkedList<Query>();
+    private int mInFlight;
+
+    // Stats, for dumpsys.
+    private int mSent;
+    private int mCompleted;
+    private int mJoined;
+    private int mCacheHits;
+    private int mInvalidations;
+    private int mMaxInFlightSeen;
+    private long mTotalQueryMillis;
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case EVENT_QUERY_DONE:
+                    onQueryDone((AsyncResult) msg.obj);
+                    break;
+            }
+        }
+    };
+
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String state = intent.getStringExtra(IccCardConstants.INTENT_KEY_ICC_STATE);
+            if (!IccCardConstants.INTENT_VALUE_ICC_READY.equals(state)
+                    && !IccCardConstants.INTENT_VALUE_ICC_IMSI.equals(state)
+                    && !IccCardConstants.INTENT_VALUE_ICC_LOADED.equals(state)) {
+                if (DBG) log("SIM state " + state + ", dropping cached values");
+                invalidateAll();
+            }
+        }
+    };
+
+    SuppServiceQueryEngine(Context context) {
+        mMaxInFlight = Math.max(1, context.getResources().getInteger(
+                R.integer.config_supp_service_max_queries_in_flight));
+        context.registerReceiver(mSimStateReceiver,
+                new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED));
+    }
+
+    /**
+     * Returns the result of the last call forwarding query for the reason, or null if there is
+     * none or it has been invalidated since.
+     */
+    CallForwardInfo[] getCachedCallForwardingOption(int reason) {
+        return (CallForwardInfo[]) getCached(reason);
+    }
+
+    /** Returns the result of the last call waiting query, or null. */
+    int[] getCachedCallWaiting() {
+        return (int[]) getCached(KEY_CALL_WAITING);
+    }
+
+    /** Returns the result of the last CLIR query, or null. */
+    int[] getCachedOutgoingCallerIdDisplay() {
+        return (int[]) getCached(KEY_CLIR);
+    }
+
+    /**
+     * Reads the call forwarding setting from the network.  The response is sent the same way
+     * as by {@link Phone#getCallForwardingOption}.
+     */
+    void getCallForwardingOption(int reason, Message response) {
+        query(reason, response);
+    }
+
+    void getCallWaiting(Message response) {
+        query(KEY_CALL_WAITING, response);
+    }
+
+    void getOutgoingCallerIdDisplay(Message response) {
+        query(KEY_CLIR, response);
+    }
+
+    void setCallForwardingOption(int action, int reason, String number, int timerSeconds,
+            Message response) {
+        if (reason == CommandsInterface.CF_REASON_ALL
+                || reason == CommandsInterface.CF_REASON_ALL_CONDITIONAL) {
+            invalidateCallForwarding();
+        } else {
+            invalidate(reason);
+        }
+        getPhone().setCallForwardingOption(action, reason, number, timerSeconds, response);
+    }
+
+    void setCallWaiting(boolean enable, Message response) {
+        invalidate(KEY_CALL_WAITING);
+        getPhone().setCallWaiting(enable, response);
+    }
+
+    void setOutgoingCallerIdDisplay(int mode, Message response) {
+        invalidate(KEY_CLIR);
+        getPhone().setOutgoingCallerIdDisplay(mode, response);
+    }
+
+    /**
+     * Drops the call forwarding values, for when the network indicates that forwarding changed.
+     */
+    void invalidateCallForwarding() {
+        for (int reason = CommandsInterface.CF_REASON_UNCONDITIONAL;
+                reason <= CommandsInterface.CF_REASON_ALL_CONDITIONAL; reason++) {
+            invalidate(reason);
+        }
+    }
+
+    /** Drops every value, for when the SIM goes away. */
+    private void invalidateAll() {
+        invalidateCallForwarding();
+        invalidate(KEY_CALL_WAITING);
+        invalidate(KEY_CLIR);
+    }
+
+    private Object getCached(int key) {
+        getPhone();
+        Object result = mCache.get(key);
+        if (result != null) mCacheHits++;
+        return result;
+    }
+
+    private void invalidate(int key) {
+        if (mCache.get(key) != null) mInvalidations++;
+        mCache.remove(key);
+        // A query already on its way may have been answered before the change, so later
+        // requests must not share it.  One still queued will be sent after it and can stay.
+        Query query = mActive.get(key);
+        if (query != null && query.sent) {
+            mActive.remove(key);
+        }
+    }
+
+    private Phone getPhone() {
+        Phone phone = PhoneGlobals.getPhone();
+        if (phone != mPhone) {
+            // The values read from the old phone do not apply to the new one.
+            if (DBG) log("phone changed, dropping cached values");
+            mCache.clear();
+            mActive.clear();
+            mPhone = phone;
+        }
+        return phone;
+    }
+
+    private void query(int key, Message response) {
+        getPhone();
+        Query query = mActive.get(key);
+        if (query != null) {
+            mJoined++;
+            query.responses.add(response);
+            return;
+        }
+        query = new Query(key);
+        query.responses.add(response);
+        mActive.put(key, query);
+        if (mInFlight < mMaxInFlight) {
+            send(query);
+        } else {
+            mQueue.add(query);
+        }
+    }
+
+    private void send(Query query) {
+        query.sent = true;
+        query.sendTime = SystemClock.elapsedRealtime();
+        mInFlight++;
+        mSent++;
+        mMaxInFlightSeen = Math.max(mMaxInFlightSeen, mInFlight);
+        if (DBG) log("send " + keyToString(query.key) + ", in flight " + mInFlight);
+
+        Message msg = mHandler.obtainMessage(EVENT_QUERY_DONE, query);
+        switch (query.key) {
+            case KEY_CALL_WAITING:
+                mPhone.getCallWaiting(msg);
+                break;
+            case KEY_CLIR:
+                mPhone.getOutgoingCallerIdDisplay(msg);
+                break;
+            default:
+                mPhone.getCallForwardingOption(query.key, msg);
+                break;
+        }
+    }
+
+    private void onQueryDone(AsyncResult ar) {
+        final Query query = (Query) ar.userObj;
+        final long elapsed = SystemClock.elapsedRealtime() - query.sendTime;
+        mInFlight--;
+        mCompleted++;
+        mTotalQueryMillis += elapsed;
+        if (DBG) {
+            log(keyToString(query.key) + " done in " + elapsed + "ms"
+                    + (ar.exception != null ? ", exception=" + ar.exception : ""));
+        }
+
+        if (mActive.get(query.key) == query) {
+            mActive.remove(query.key);
+            if (ar.exception == null && isValidResult(query.key, ar.result)) {
+                mCache.put(query.key, ar.result);
+            } else {
+                mCache.remove(query.key);
+            }
+        }
+
+        for (Message response : query.responses) {
+            AsyncResult.forMessage(response, ar.result, ar.exception);
+            response.sendToTarget();
+        }
+
+        while (mInFlight < mMaxInFlight && !mQueue.isEmpty()) {
+            send(mQueue.removeFirst());
+        }
+    }
+
+    private static boolean isValidResult(int key, Object result) {
+        switch (key) {
+            case KEY_CALL_WAITING:
+                return result instanceof int[] && ((int[]) result).length > 0;
+            case KEY_CLIR:
+                return result instanceof int[] && ((int[]) result).length == 2;
+            default:
+                return result instanceof CallForwardInfo[]
+                        && ((CallForwardInfo[]) result).length > 0;
+        }
+    }
+
+    private static String keyToString(int key) {
+        switch (key) {
+            case KEY_CALL_WAITING:
+                return "CW";
+            case KEY_CLIR:
+                return "CLIR";
+            default:
+                return "CF" + key;
+        }
+    }
+
+    /* package */ void dump(PrintWriter pw) {
+        pw.println("SuppServiceQueryEngine:");
+        pw.println("  max in flight: " + mMaxInFlight + " (reached " + mMaxInFlightSeen + ")");
+        pw.println("  in flight: " + mInFlight + ", queued: " + mQueue.size());
+        pw.println("  sent: " + mSent + ", joined: " + mJoined
+                + ", avg query: " + (mCompleted > 0 ? mTotalQueryMillis / mCompleted : 0) + "ms");
+        pw.println("  cache hits: " + mCacheHits + ", invalidations: " + mInvalidations
+                + ", cached: " + mCache.size());
+    }
+
+    private static void log(String msg) {
+        Log.d(LOG_TAG, msg);
+    }
+}
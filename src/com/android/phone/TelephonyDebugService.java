@@ -47,7 +47,69 @@ public class TelephonyDebugService extends Service {
 
     @Override
     protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null && args.length == 2 && "calltrace".equals(args[0])) {
+            // Runtime switch for call pipeline tracing; see CallTracer.
+            if ("on".equals(args[1])) {
+                CallTracer.setEnabled(true);
+            } else if ("off".equals(args[1])) {
+                CallTracer.setEnabled(false);
+            } else if ("reset".equals(args[1])) {
+                CallTracer.reset();
+            }
+            CallTracer.dump(pw);
+            return;
+        }
+
         mDebugService.dump(fd, pw, args);
+
+        final PhoneGlobals app = PhoneGlobals.getInstanceIfPrimary();
+        if (app == null) {
+            return;
+        }
+        pw.println();
+        CallTracer.dump(pw);
+        if (app.getCallStateMonitor() != null) {
+            pw.println();
+            app.getCallStateMonitor().dump(pw);
+        }
+        if (app.getCallHandlerServiceProxy() != null) {
+            pw.println();
+            app.getCallHandlerServiceProxy().dump(pw);
+        }
+        if (app.phoneMgr != null) {
+            pw.println();
+            app.phoneMgr.dump(pw);
+        }
+        if (app.getDtmfTonePlayer() != null) {
+            pw.println();
+            app.getDtmfTonePlayer().dump(pw);
+        }
+        if (app.getCallLogger() != null) {
+            pw.println();
+            app.getCallLogger().dump(pw);
+        }
+        if (app.getSuppServiceQueryEngine() != null) {
+            pw.println();
+            app.getSuppServiceQueryEngine().dump(pw);
+        }
+        if (app.notifier != null) {
+            pw.println();
+            app.notifier.dump(pw);
+        }
+        if (app.callerInfoCache != null) {
+            pw.println();
+            app.callerInfoCache.dump(pw);
+        }
+        pw.println();
+        ContactsAsyncHelper.dump(pw);
+        if (app.getRinger() != null) {
+            pw.println();
+            app.getRinger().dump(pw);
+        }
+        if (app.getStartup() != null) {
+            pw.println();
+            app.getStartup().dump(pw);
+        }
     }
 }
 
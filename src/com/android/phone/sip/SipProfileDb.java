@@ -22,18 +22,33 @@ import android.content.Context;
 import android.net.sip.SipProfile;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
  * Utility class that helps perform operations on the SipProfile database.
+ *
+ * The profiles are loaded from storage once per process and then served from memory, indexed by
+ * profile name and by URI.  Saving or deleting a profile writes all of them back to a single file,
+ * replaced atomically.  Profiles stored by older versions, one serialized object per profile
+ * directory, are moved into that file the first time it is loaded.
+ *
+ * A profiles file that cannot be read is renamed rather than overwritten, and the old
+ * directories are only deleted once every profile in them has been moved, so that no stored
+ * account is lost to a bad file.
  */
 public class SipProfileDb {
     private static final String TAG = SipProfileDb.class.getSimpleName();
@@ -41,90 +56,289 @@ public class SipProfileDb {
     private static final String PROFILES_DIR = "/profiles/";
     private static final String PROFILE_OBJ_FILE = ".pobj";
 
+    private static final String PROFILES_FILE = "sip_profiles";
+    private static final String CORRUPT_PROFILES_FILE = "sip_profiles.corrupt";
+    // Version 1 did not store the uid of the app that created each profile.
+    private static final int PROFILES_FILE_VERSION = 2;
+    private static final int PROFILES_FILE_VERSION_NO_UID = 1;
+
+    // The profiles of this process, in the order they were added, or null until loaded.  Shared
+    // by all instances and guarded by SipProfileDb.class.
+    private static LinkedHashMap<String, SipProfile> sProfilesByName;
+    private static HashMap<String, SipProfile> sProfilesByUri;
+    // Set when the profiles file could not be read and could not be moved out of the way either;
+    // writing would then destroy the profiles in it.
+    private static boolean sProfilesFileUnusable;
+
     private String mProfilesDirectory;
+    private AtomicFile mProfilesFile;
     private SipSharedPreferences mSipSharedPreferences;
-    private int mProfilesCount = -1;
 
     public SipProfileDb(Context context) {
         mProfilesDirectory = context.getFilesDir().getAbsolutePath()
                 + PROFILES_DIR;
+        mProfilesFile = new AtomicFile(new File(context.getFilesDir(), PROFILES_FILE));
         mSipSharedPreferences = new SipSharedPreferences(context);
     }
 
     public void deleteProfile(SipProfile p) {
         synchronized(SipProfileDb.class) {
-            deleteProfile(new File(mProfilesDirectory + p.getProfileName()));
-            if (mProfilesCount < 0) retrieveSipProfileListInternal();
-            mSipSharedPreferences.setProfilesCount(--mProfilesCount);
-        }
-    }
-
-    private void deleteProfile(File file) {
-        if (file.isDirectory()) {
-            for (File child : file.listFiles()) deleteProfile(child);
+            loadProfiles();
+            if (removeProfile(p.getProfileName()) == null) return;
+            try {
+                writeProfiles();
+            } catch (IOException e) {
+                Log.e(TAG, "deleteProfile()", e);
+            }
+            mSipSharedPreferences.setProfilesCount(sProfilesByName.size());
         }
-        file.delete();
     }
 
     public void saveProfile(SipProfile p) throws IOException {
         synchronized(SipProfileDb.class) {
-            if (mProfilesCount < 0) retrieveSipProfileListInternal();
-            File f = new File(mProfilesDirectory + p.getProfileName());
-            if (!f.exists()) f.mkdirs();
-            AtomicFile atomicFile =
-                    new AtomicFile(new File(f, PROFILE_OBJ_FILE));
-            FileOutputStream fos = null;
-            ObjectOutputStream oos = null;
+            loadProfiles();
+            SipProfile old = removeProfile(p.getProfileName());
+            addProfile(p);
             try {
-                fos = atomicFile.startWrite();
-                oos = new ObjectOutputStream(fos);
-                oos.writeObject(p);
-                oos.flush();
-                mSipSharedPreferences.setProfilesCount(++mProfilesCount);
-                atomicFile.finishWrite(fos);
+                writeProfiles();
             } catch (IOException e) {
-                atomicFile.failWrite(fos);
+                removeProfile(p.getProfileName());
+                if (old != null) addProfile(old);
                 throw e;
-            } finally {
-                if (oos != null) oos.close();
             }
+            mSipSharedPreferences.setProfilesCount(sProfilesByName.size());
         }
     }
 
     public int getProfilesCount() {
-        return (mProfilesCount < 0) ?
-                mSipSharedPreferences.getProfilesCount() : mProfilesCount;
+        synchronized(SipProfileDb.class) {
+            return (sProfilesByName == null) ?
+                    mSipSharedPreferences.getProfilesCount() : sProfilesByName.size();
+        }
     }
 
     public List<SipProfile> retrieveSipProfileList() {
         synchronized(SipProfileDb.class) {
-            return retrieveSipProfileListInternal();
+            loadProfiles();
+            return Collections.synchronizedList(
+                    new ArrayList<SipProfile>(sProfilesByName.values()));
+        }
+    }
+
+    /** Returns the profile with the given URI, or null if there is none. */
+    public SipProfile getProfileFromUri(String uri) {
+        synchronized(SipProfileDb.class) {
+            loadProfiles();
+            return sProfilesByUri.get(uri);
         }
     }
 
-    private List<SipProfile> retrieveSipProfileListInternal() {
-        List<SipProfile> sipProfileList = Collections.synchronizedList(
-                new ArrayList<SipProfile>());
+    private static void addProfile(SipProfile p) {
+        sProfilesByName.put(p.getProfileName(), p);
+        sProfilesByUri.put(p.getUriString(), p);
+    }
+
+    private static SipProfile removeProfile(String profileName) {
+        SipProfile p = sProfilesByName.remove(profileName);
+        if (p != null) sProfilesByUri.remove(p.getUriString());
+        return p;
+    }
+
+    private void loadProfiles() {
+        if (sProfilesByName != null) return;
+        sProfilesByName = new LinkedHashMap<String, SipProfile>();
+        sProfilesByUri = new HashMap<String, SipProfile>();
+
+        boolean loaded = false;
+        try {
+            readProfiles();
+            loaded = true;
+        } catch (FileNotFoundException e) {
+            // Nothing stored yet, or only in the old format.
+        } catch (IOException e) {
+            Log.e(TAG, "loadProfiles()", e);
+            sProfilesByName.clear();
+            sProfilesByUri.clear();
+            keepCorruptFile();
+        }
 
         File root = new File(mProfilesDirectory);
+        if (!loaded && root.isDirectory()) migrateProfiles(root);
+
+        mSipSharedPreferences.setProfilesCount(sProfilesByName.size());
+    }
+
+    /**
+     * Moves a profiles file that cannot be read aside, where it is kept for recovery, so that
+     * the next save starts a new one instead of replacing it.
+     */
+    private void keepCorruptFile() {
+        File file = mProfilesFile.getBaseFile();
+        File corrupt = new File(file.getParentFile(),
+                CORRUPT_PROFILES_FILE + "." + System.currentTimeMillis());
+        if (file.renameTo(corrupt)) {
+            Log.w(TAG, "Kept the unreadable profiles file as " + corrupt);
+        } else {
+            Log.e(TAG, "Cannot move the unreadable profiles file, not saving profiles");
+            sProfilesFileUnusable = true;
+        }
+    }
+
+    private void readProfiles() throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mProfilesFile.openRead()));
+            int version = in.readInt();
+            if (version != PROFILES_FILE_VERSION && version != PROFILES_FILE_VERSION_NO_UID) {
+                throw new IOException("Unknown profiles file version " + version);
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                SipProfile p = readProfile(in, version);
+                if (p != null) addProfile(p);
+            }
+        } finally {
+            if (in != null) in.close();
+        }
+    }
+
+    private void writeProfiles() throws IOException {
+        if (sProfilesFileUnusable) {
+            throw new IOException("Profiles file cannot be read, not overwriting it");
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mProfilesFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(PROFILES_FILE_VERSION);
+            out.writeInt(sProfilesByName.size());
+            for (SipProfile p : sProfilesByName.values()) {
+                writeProfile(out, p);
+            }
+            out.flush();
+            mProfilesFile.finishWrite(fos);
+        } catch (IOException e) {
+            mProfilesFile.failWrite(fos);
+            throw e;
+        }
+    }
+
+    private static void writeProfile(DataOutputStream out, SipProfile p) throws IOException {
+        writeString(out, p.getProfileName());
+        writeString(out, p.getUserName());
+        writeString(out, p.getSipDomain());
+        out.writeInt(p.getPort());
+        writeString(out, p.getProtocol());
+        writeString(out, p.getProxyAddress());
+        writeString(out, p.getAuthUserName());
+        writeString(out, p.getPassword());
+        writeString(out, p.getDisplayName());
+        out.writeBoolean(p.getSendKeepAlive());
+        out.writeBoolean(p.getAutoRegistration());
+        out.writeInt(p.getCallingUid());
+    }
+
+    private static SipProfile readProfile(DataInputStream in, int version) throws IOException {
+        String profileName = readString(in);
+        String userName = readString(in);
+        String domain = readString(in);
+        int port = in.readInt();
+        String protocol = readString(in);
+        String proxyAddress = readString(in);
+        String authUserName = readString(in);
+        String password = readString(in);
+        String displayName = readString(in);
+        boolean sendKeepAlive = in.readBoolean();
+        boolean autoRegistration = in.readBoolean();
+        int callingUid = (version == PROFILES_FILE_VERSION_NO_UID) ? 0 : in.readInt();
+        try {
+            SipProfile p = new SipProfile.Builder(userName, domain)
+                    .setProfileName(profileName)
+                    .setPort(port)
+                    .setProtocol(protocol)
+                    .setOutboundProxy(proxyAddress)
+                    .setAuthUserName(authUserName)
+                    .setPassword(password)
+                    .setDisplayName(displayName)
+                    .setSendKeepAlive(sendKeepAlive)
+                    .setAutoRegistration(autoRegistration)
+                    .build();
+            p.setCallingUid(callingUid);
+            return p;
+        } catch (ParseException e) {
+            Log.w(TAG, "read a profile: " + e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "read a profile: " + e);
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Moves the profiles stored one per directory into the profiles file.  The directories are
+     * only deleted once the file is written and every profile in them made it into the file;
+     * otherwise they are left for a later version to recover from.
+     */
+    private void migrateProfiles(File root) {
         String[] dirs = root.list();
-        if (dirs == null) return sipProfileList;
-        for (String dir : dirs) {
-            File f = new File(new File(root, dir), PROFILE_OBJ_FILE);
-            if (!f.exists()) continue;
-            try {
-                SipProfile p = deserialize(f);
-                if (p == null) continue;
-                if (!dir.equals(p.getProfileName())) continue;
+        int failed = 0;
+        if (dirs != null) {
+            for (String dir : dirs) {
+                File f = new File(new File(root, dir), PROFILE_OBJ_FILE);
+                if (!f.exists()) continue;
+                try {
+                    SipProfile p = deserialize(f);
+                    if (p == null || !dir.equals(p.getProfileName())) {
+                        Log.w(TAG, "migrateProfiles(): cannot move profile " + dir);
+                        failed++;
+                        continue;
+                    }
 
-                sipProfileList.add(p);
-            } catch (IOException e) {
-                Log.e(TAG, "retrieveProfileListFromStorage()", e);
+                    addProfile(p);
+                } catch (IOException e) {
+                    Log.e(TAG, "migrateProfiles(): cannot move profile " + dir, e);
+                    failed++;
+                }
             }
         }
-        mProfilesCount = sipProfileList.size();
-        mSipSharedPreferences.setProfilesCount(mProfilesCount);
-        return sipProfileList;
+
+        try {
+            writeProfiles();
+        } catch (IOException e) {
+            Log.e(TAG, "migrateProfiles(): keeping the old profiles", e);
+            return;
+        }
+        Log.i(TAG, "Migrated " + sProfilesByName.size() + " profiles");
+        if (failed > 0) {
+            Log.w(TAG, "migrateProfiles(): keeping " + root + ", " + failed + " not migrated");
+            return;
+        }
+        deleteFile(root);
+    }
+
+    /**
+     * Forgets the profiles loaded by this process, as if it had been restarted.  For tests.
+     */
+    /* package */ static void clearLoadedProfiles() {
+        synchronized(SipProfileDb.class) {
+            sProfilesByName = null;
+            sProfilesByUri = null;
+            sProfilesFileUnusable = false;
+        }
+    }
+
+    private void deleteFile(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) deleteFile(child);
+        }
+        file.delete();
     }
 
     private SipProfile deserialize(File profileObjectFile) throws IOException {
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+import com.android.services.telephony.common.Call;
+import com.android.services.telephony.common.Call.Capabilities;
+import com.android.services.telephony.common.Call.DisconnectCause;
+import com.android.services.telephony.common.Call.Fields;
+import com.android.services.telephony.common.Call.State;
+
+/**
+ * Tests the full and delta parcels of {@link Call}.
+ */
+public class CallDeltaTest extends AndroidTestCase {
+
+    private static Call newCall() {
+        Call call = new Call(7);
+        call.setState(State.ACTIVE);
+        call.setNumber("6505551212");
+        call.setNumberPresentation(PhoneConstants.PRESENTATION_ALLOWED);
+        call.setCnapName("CNAP NAME");
+        call.setCnapNamePresentation(PhoneConstants.PRESENTATION_ALLOWED);
+        call.setCapabilities(Capabilities.HOLD | Capabilities.MUTE);
+        call.setConnectTime(123456789L);
+        call.setGatewayNumber("5551000");
+        call.setGatewayPackage("com.example.gateway");
+        return call;
+    }
+
+    private static Call parcelRoundTrip(Call call) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            call.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Call.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int parcelSize(Call call) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            call.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertSameCall(Call expected, Call actual) {
+        assertEquals(expected.getCallId(), actual.getCallId());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getDisconnectCause(), actual.getDisconnectCause());
+        assertEquals(expected.getCapabilities(), actual.getCapabilities());
+        assertEquals(expected.getConnectTime(), actual.getConnectTime());
+        assertEquals(expected.getChildCallIds(), actual.getChildCallIds());
+        assertEquals(expected.getGatewayNumber(), actual.getGatewayNumber());
+        assertEquals(expected.getGatewayPackage(), actual.getGatewayPackage());
+        assertEquals(expected.getIdentification(), actual.getIdentification());
+    }
+
+    @SmallTest
+    public void testFullParcelRoundTrip() {
+        Call call = newCall();
+        call.addChildId(8);
+        call.addChildId(9);
+
+        Call copy = parcelRoundTrip(call);
+        assertFalse(copy.isDelta());
+        assertEquals(Fields.ALL, copy.getFields());
+        assertSameCall(call, copy);
+    }
+
+    @SmallTest
+    public void testFullParcelCarriesDisconnectCause() {
+        Call call = newCall();
+        call.setState(State.DISCONNECTED);
+        call.setDisconnectCause(DisconnectCause.BUSY);
+
+        Call copy = parcelRoundTrip(call);
+        assertEquals(DisconnectCause.BUSY, copy.getDisconnectCause());
+        assertSameCall(call, copy);
+    }
+
+    @SmallTest
+    public void testDeltaOfUnchangedCallIsEmpty() {
+        Call call = newCall();
+        Call delta = Call.createDelta(call, new Call(call));
+
+        assertTrue(delta.isDelta());
+        assertEquals(0, delta.getFields());
+        assertTrue(parcelSize(delta) < parcelSize(call));
+
+        Call applied = new Call(call);
+        applied.applyDelta(parcelRoundTrip(delta));
+        assertSameCall(call, applied);
+    }
+
+    @SmallTest
+    public void testDeltaCarriesOnlyChangedFields() {
+        Call previous = newCall();
+        Call current = new Call(previous);
+        current.setState(State.ONHOLD);
+        current.setCnapName("OTHER NAME");
+
+        Call delta = Call.createDelta(previous, current);
+        assertEquals(Fields.STATE | Fields.IDENTIFICATION, delta.getFields());
+
+        Call applied = new Call(previous);
+        applied.applyDelta(parcelRoundTrip(delta));
+        assertSameCall(current, applied);
+    }
+
+    @SmallTest
+    public void testDeltasApplyInSequence() {
+        Call sent = newCall();
+        Call received = parcelRoundTrip(sent);
+
+        // Conference, then disconnect with a cause, then a capability change.
+        Call conference = new Call(sent);
+        conference.addChildId(8);
+        conference.addChildId(9);
+        conference.setCapabilities(Capabilities.MUTE);
+
+        Call disconnected = new Call(conference);
+        disconnected.setState(State.DISCONNECTED);
+        disconnected.setDisconnectCause(DisconnectCause.NORMAL);
+        disconnected.setConnectTime(0);
+
+        Call[] updates = { conference, disconnected };
+        for (Call update : updates) {
+            received.applyDelta(parcelRoundTrip(Call.createDelta(sent, update)));
+            assertSameCall(update, received);
+            sent = update;
+        }
+    }
+
+    @SmallTest
+    public void testDeltaKeepsCauseAcrossSeparateStateChange() {
+        // The cause is set while the call is still active, so getDisconnectCause() hides it.
+        Call previous = newCall();
+        Call current = new Call(previous);
+        current.setDisconnectCause(DisconnectCause.LOCAL);
+        Call received = new Call(previous);
+        received.applyDelta(parcelRoundTrip(Call.createDelta(previous, current)));
+        assertEquals(DisconnectCause.NOT_DISCONNECTED, received.getDisconnectCause());
+
+        Call disconnected = new Call(current);
+        disconnected.setState(State.DISCONNECTED);
+        Call delta = Call.createDelta(current, disconnected);
+        assertEquals(Fields.STATE, delta.getFields());
+        received.applyDelta(parcelRoundTrip(delta));
+        assertEquals(DisconnectCause.LOCAL, received.getDisconnectCause());
+    }
+
+    @SmallTest
+    public void testFullParcelKeepsCauseSetBeforeDisconnect() {
+        // A local hangup sets the cause while the call is still active, and the call is sent in
+        // full, as for an incoming call; the sender keeps a copy as the base of its deltas.
+        Call call = newCall();
+        call.setDisconnectCause(DisconnectCause.LOCAL);
+        Call received = parcelRoundTrip(call);
+        Call lastSent = new Call(call);
+        assertEquals(DisconnectCause.NOT_DISCONNECTED, received.getDisconnectCause());
+
+        Call disconnected = new Call(call);
+        disconnected.setState(State.DISCONNECTED);
+        Call delta = Call.createDelta(lastSent, disconnected);
+        assertEquals(Fields.STATE, delta.getFields());
+        received.applyDelta(parcelRoundTrip(delta));
+        assertEquals(DisconnectCause.LOCAL, received.getDisconnectCause());
+    }
+
+    @SmallTest
+    public void testDeltaForOtherCallIsRejected() {
+        Call call = newCall();
+        Call other = new Call(8);
+        try {
+            call.applyDelta(Call.createDelta(other, new Call(other)));
+            fail("Applying a delta of another call should fail");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.services.telephony.common.Call;
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+// Compares the linear entry scan CallModeler.getCallWithId() used to do against the call id
+// index, for maps shaped like CallModeler's (one regular and one conference map).
+// Run with: adb shell am instrument -w -e class com.android.phone.CallIdLookupBenchmark \
+//     com.android.phone.tests/android.test.InstrumentationTestRunner
+public class CallIdLookupBenchmark extends AndroidTestCase {
+    private static final String TAG = "CallIdLookupBenchmark";
+
+    private static final int ITERATIONS = 100000;
+
+    @LargeTest
+    public void testLookup() throws Exception {
+        for (int calls : new int[] { 2, 8, 32 }) {
+            runLookup(calls);
+        }
+    }
+
+    private void runLookup(int calls) {
+        final HashMap<Object, Call> callMap = new HashMap<Object, Call>();
+        final HashMap<Object, Call> confCallMap = new HashMap<Object, Call>();
+        final SparseArray<Object> index = new SparseArray<Object>();
+
+        for (int i = 1; i <= calls; i++) {
+            final Object connection = new Object();
+            final HashMap<Object, Call> map = (i % 4 == 0) ? confCallMap : callMap;
+            map.put(connection, new Call(i));
+            index.put(i, connection);
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        int found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (scan(callMap, confCallMap, (i % calls) + 1) != null) found++;
+        }
+        final long scanNs = SystemClock.elapsedRealtimeNanos() - start;
+        assertEquals(ITERATIONS, found);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final int callId = (i % calls) + 1;
+            final Object connection = index.get(callId);
+            Call call = callMap.get(connection);
+            if (call == null || call.getCallId() != callId) {
+                call = confCallMap.get(connection);
+            }
+            if (call != null) found++;
+        }
+        final long indexNs = SystemClock.elapsedRealtimeNanos() - start;
+        assertEquals(ITERATIONS, found);
+
+        Log.i(TAG, calls + " calls: scan " + (scanNs / ITERATIONS) + "ns/lookup, index "
+                + (indexNs / ITERATIONS) + "ns/lookup");
+    }
+
+    private static Call scan(HashMap<Object, Call> callMap, HashMap<Object, Call> confCallMap,
+            int callId) {
+        for (Entry<Object, Call> entry : callMap.entrySet()) {
+            if (entry.getValue().getCallId() == callId) {
+                return entry.getValue();
+            }
+        }
+        for (Entry<Object, Call> entry : confCallMap.entrySet()) {
+            if (entry.getValue().getCallId() == callId) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.provider.CallLog;
+import android.provider.CallLog.Calls;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.PhoneConstants;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CallLogWriterTest extends AndroidTestCase {
+
+    /**
+     * Keeps the inserted call log rows in memory, and can be told to fail batches.
+     */
+    private static class FakeCallLogProvider extends MockContentProvider {
+        final ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        // Number of batches still to fail, and whether a failing batch writes its rows first.
+        int failures;
+        boolean failAfterWriting;
+
+        FakeCallLogProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public synchronized ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            if (failures > 0 && !failAfterWriting) {
+                failures--;
+                throw new OperationApplicationException("failing on purpose");
+            }
+            for (ContentProviderOperation op : operations) {
+                // Only the inserts carry values; the trimming delete has none.
+                final ContentValues values =
+                        op.resolveValueBackReferences(new ContentProviderResult[0], 0);
+                if (values != null) {
+                    rows.add(values);
+                }
+            }
+            if (failures > 0) {
+                failures--;
+                throw new OperationApplicationException("failing on purpose after writing");
+            }
+            return new ContentProviderResult[operations.size()];
+        }
+
+        @Override
+        public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            // The writer only asks whether a row with the given date and type exists.
+            final MatrixCursor cursor = new MatrixCursor(new String[] { Calls._ID });
+            for (int i = 0; i < rows.size(); i++) {
+                final ContentValues row = rows.get(i);
+                if (selectionArgs[0].equals(row.getAsString(Calls.DATE))
+                        && selectionArgs[1].equals(row.getAsString(Calls.TYPE))) {
+                    cursor.addRow(new Object[] { i });
+                }
+            }
+            return cursor;
+        }
+
+        synchronized int size() {
+            return rows.size();
+        }
+    }
+
+    private HandlerThread mThread;
+    private File mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("CallLogWriterTest");
+        mThread.start();
+        mJournal = new File(getContext().getCacheDir(), "call_log_journal_test");
+        mJournal.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        mJournal.delete();
+        super.tearDown();
+    }
+
+    private FakeCallLogProvider newProvider() {
+        return new FakeCallLogProvider(getContext());
+    }
+
+    private CallLogWriter newWriter(FakeCallLogProvider provider, Looper looper) {
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(CallLog.AUTHORITY, provider);
+        return new CallLogWriter(resolver, mJournal, looper);
+    }
+
+    private static CallLogWriter.Entry newEntry(String number, long start) {
+        return new CallLogWriter.Entry(null, number, PhoneConstants.PRESENTATION_ALLOWED,
+                Calls.OUTGOING_TYPE, start, 65000);
+    }
+
+    /**
+     * Waits until the looper has handled everything posted to it so far.
+     */
+    private static void sync(Looper looper) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(looper).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @SmallTest
+    public void testBatchIsWritten() throws Exception {
+        final FakeCallLogProvider provider = newProvider();
+        final CallLogWriter writer = newWriter(provider, mThread.getLooper());
+
+        writer.addEntry(newEntry("5551000", 1000));
+        writer.addEntry(newEntry("5552000", 2000));
+        writer.flushNow();
+        sync(mThread.getLooper());
+
+        assertEquals(2, provider.size());
+        assertEquals("5551000", provider.rows.get(0).getAsString(Calls.NUMBER));
+        assertEquals(65, (long) provider.rows.get(0).getAsLong(Calls.DURATION));
+        assertFalse(mJournal.exists());
+    }
+
+    @SmallTest
+    public void testJournalIsRecoveredByNextWriter() throws Exception {
+        // The first writer cannot write, so its entries stay in the journal, as if the process
+        // had died before the batch went out.
+        final FakeCallLogProvider failing = newProvider();
+        failing.failures = Integer.MAX_VALUE;
+        final CallLogWriter first = newWriter(failing, mThread.getLooper());
+        first.addEntry(newEntry("5551000", 1000));
+        first.addEntry(newEntry(null, 2000));
+        first.flushNow();
+        sync(mThread.getLooper());
+        assertEquals(0, failing.size());
+        assertTrue(mJournal.exists());
+
+        final HandlerThread thread = new HandlerThread("CallLogWriterTest2");
+        thread.start();
+        try {
+            final FakeCallLogProvider provider = newProvider();
+            newWriter(provider, thread.getLooper());
+            sync(thread.getLooper());
+
+            assertEquals(2, provider.size());
+            final ContentValues row = provider.rows.get(0);
+            assertEquals("5551000", row.getAsString(Calls.NUMBER));
+            assertEquals(1000, (long) row.getAsLong(Calls.DATE));
+            assertEquals(Calls.OUTGOING_TYPE, (int) row.getAsInteger(Calls.TYPE));
+            final ContentValues second = provider.rows.get(1);
+            assertEquals("", second.getAsString(Calls.NUMBER));
+            assertEquals(Calls.PRESENTATION_UNKNOWN,
+                    (int) second.getAsInteger(Calls.NUMBER_PRESENTATION));
+            assertFalse(mJournal.exists());
+        } finally {
+            thread.quit();
+        }
+    }
+
+    @SmallTest
+    public void testFailedBatchIsRetried() throws Exception {
+        final FakeCallLogProvider provider = newProvider();
+        provider.failures = 1;
+        final CallLogWriter writer = newWriter(provider, mThread.getLooper());
+
+        writer.addEntry(newEntry("5551000", 1000));
+        writer.flushNow();
+        sync(mThread.getLooper());
+        assertEquals(0, provider.size());
+        assertTrue(writer.getRetryDelayMillis() > 0);
+
+        // Stands in for the scheduled retry.
+        writer.flushNow();
+        sync(mThread.getLooper());
+        assertEquals(1, provider.size());
+        assertEquals(0, writer.getRetryDelayMillis());
+        assertFalse(mJournal.exists());
+    }
+
+    @SmallTest
+    public void testRetryBacksOff() throws Exception {
+        final FakeCallLogProvider provider = newProvider();
+        provider.failures = 2;
+        final CallLogWriter writer = newWriter(provider, mThread.getLooper());
+
+        writer.addEntry(newEntry("5551000", 1000));
+        writer.flushNow();
+        sync(mThread.getLooper());
+        final int firstDelay = writer.getRetryDelayMillis();
+
+        writer.flushNow();
+        sync(mThread.getLooper());
+        assertEquals(firstDelay * 2, writer.getRetryDelayMillis());
+    }
+
+    @SmallTest
+    public void testPartlyWrittenBatchIsNotDuplicated() throws Exception {
+        final FakeCallLogProvider provider = newProvider();
+        provider.failures = 1;
+        provider.failAfterWriting = true;
+        final CallLogWriter writer = newWriter(provider, mThread.getLooper());
+
+        writer.addEntry(newEntry("5551000", 1000));
+        writer.flushNow();
+        sync(mThread.getLooper());
+        assertEquals(1, provider.size());
+
+        writer.flushNow();
+        sync(mThread.getLooper());
+        assertEquals(1, provider.size());
+        assertEquals(0, writer.getRetryDelayMillis());
+    }
+
+    @SmallTest
+    public void testRecoveredEntryAlreadyLoggedIsSkipped() throws Exception {
+        final FakeCallLogProvider failing = newProvider();
+        failing.failures = Integer.MAX_VALUE;
+        final CallLogWriter first = newWriter(failing, mThread.getLooper());
+        first.addEntry(newEntry("5551000", 1000));
+        first.addEntry(newEntry("5552000", 2000));
+        first.flushNow();
+        sync(mThread.getLooper());
+
+        // The first entry made it into the call log before the process died.
+        final FakeCallLogProvider provider = newProvider();
+        final ContentValues logged = new ContentValues();
+        logged.put(Calls.NUMBER, "5551000");
+        logged.put(Calls.DATE, 1000L);
+        logged.put(Calls.TYPE, Calls.OUTGOING_TYPE);
+        provider.rows.add(logged);
+
+        final HandlerThread thread = new HandlerThread("CallLogWriterTest2");
+        thread.start();
+        try {
+            newWriter(provider, thread.getLooper());
+            sync(thread.getLooper());
+
+            assertEquals(2, provider.size());
+            assertEquals("5552000", provider.rows.get(1).getAsString(Calls.NUMBER));
+        } finally {
+            thread.quit();
+        }
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.internal.telephony.Call.State;
+import com.android.internal.telephony.CallManager;
+import com.android.internal.telephony.Connection;
+import com.android.internal.telephony.Connection.DisconnectCause;
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneConstants;
+import com.android.internal.telephony.UUSInfo;
+import com.android.phone.CallGatewayManager.RawGatewayInfo;
+import com.android.services.telephony.common.Call;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives two CallModelers through the same sequence of telephony states.  One gets the phone
+ * state change events as telephony sends them, so it may skip the rescan when its snapshots say
+ * nothing changed; the other is forced to rescan on every event.  After each event both must
+ * model the same Calls.
+ */
+public class CallModelerSnapshotTest extends AndroidTestCase {
+    private static final String TAG = "CallModelerSnapshotTest";
+
+    private static final String NUMBER = "6505551212";
+    private static final String NUMBER2 = "6505551313";
+    private static final String NUMBER3 = "6505551414";
+
+    // Events timed per modeler, after as many to warm up.
+    private static final int TIMED_EVENTS = 2000;
+
+    private static class FakeCall extends com.android.internal.telephony.Call {
+        final ArrayList<Connection> connections = new ArrayList<Connection>();
+        Phone phone;
+        State callState = State.IDLE;
+
+        @Override
+        public List<Connection> getConnections() {
+            return connections;
+        }
+
+        @Override
+        public Phone getPhone() {
+            return phone;
+        }
+
+        @Override
+        public State getState() {
+            return callState;
+        }
+
+        @Override
+        public boolean isMultiparty() {
+            return connections.size() > 1;
+        }
+
+        @Override
+        public void hangup() {
+        }
+    }
+
+    private static class FakeConnection extends Connection {
+        final String address;
+        final long createTime;
+        FakeCall call;
+        // Overrides the state of the call when set, as for a connection that has just ended.
+        State state;
+        String cnapName;
+        long connectTime;
+        DisconnectCause cause = DisconnectCause.NOT_DISCONNECTED;
+
+        FakeConnection(String address, long createTime) {
+            this.address = address;
+            this.createTime = createTime;
+        }
+
+        @Override
+        public State getState() {
+            if (state != null) return state;
+            return call != null ? call.getState() : State.IDLE;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public String getCnapName() {
+            return cnapName;
+        }
+
+        @Override
+        public int getCnapNamePresentation() {
+            return PhoneConstants.PRESENTATION_ALLOWED;
+        }
+
+        @Override
+        public com.android.internal.telephony.Call getCall() {
+            return call;
+        }
+
+        @Override
+        public long getCreateTime() {
+            return createTime;
+        }
+
+        @Override
+        public long getConnectTime() {
+            return connectTime;
+        }
+
+        @Override
+        public long getDisconnectTime() {
+            return 0;
+        }
+
+        @Override
+        public long getDurationMillis() {
+            return 0;
+        }
+
+        @Override
+        public long getHoldDurationMillis() {
+            return 0;
+        }
+
+        @Override
+        public DisconnectCause getDisconnectCause() {
+            return cause;
+        }
+
+        @Override
+        public boolean isIncoming() {
+            return false;
+        }
+
+        @Override
+        public void hangup() {
+        }
+
+        @Override
+        public void separate() {
+        }
+
+        @Override
+        public PostDialState getPostDialState() {
+            return PostDialState.NOT_STARTED;
+        }
+
+        @Override
+        public String getRemainingPostDialString() {
+            return "";
+        }
+
+        @Override
+        public void proceedAfterWaitChar() {
+        }
+
+        @Override
+        public void proceedAfterWildChar(String str) {
+        }
+
+        @Override
+        public void cancelPostDial() {
+        }
+
+        @Override
+        public int getNumberPresentation() {
+            return PhoneConstants.PRESENTATION_ALLOWED;
+        }
+
+        @Override
+        public UUSInfo getUUSInfo() {
+            return null;
+        }
+    }
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private final FakeCall mRinging = new FakeCall();
+    private final FakeCall mForeground = new FakeCall();
+    private final FakeCall mBackground = new FakeCall();
+    private Phone mPhone;
+    private CallManager mCallManager;
+    // Gets the events as telephony sends them, and may skip the rescan.
+    private CallModeler mModeler;
+    // Rescans on every event.
+    private CallModeler mReference;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("CallModelerSnapshotTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mPhone = newFakePhone(getContext());
+        mRinging.phone = mPhone;
+        mForeground.phone = mPhone;
+        mBackground.phone = mPhone;
+
+        // CallManager and the modelers create their Handlers on the calling thread.
+        runOnThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Constructor<CallManager> constructor =
+                            CallManager.class.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                    mCallManager = constructor.newInstance();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                mCallManager.registerPhone(mPhone);
+                mModeler = new CallModeler(new CallStateMonitor(mCallManager), mCallManager,
+                        CallGatewayManager.getInstance());
+                mReference = new CallModeler(new CallStateMonitor(mCallManager), mCallManager,
+                        CallGatewayManager.getInstance());
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    /**
+     * Makes a GSM phone answering with the fake calls, and with nothing for everything else.
+     */
+    private Phone newFakePhone(final Context context) {
+        return (Phone) Proxy.newProxyInstance(Phone.class.getClassLoader(),
+                new Class<?>[] { Phone.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (name.equals("getPhoneType")) return PhoneConstants.PHONE_TYPE_GSM;
+                if (name.equals("getPhoneName")) return "Fake";
+                if (name.equals("getContext")) return context;
+                if (name.equals("getRingingCall")) return mRinging;
+                if (name.equals("getForegroundCall")) return mForeground;
+                if (name.equals("getBackgroundCall")) return mBackground;
+                if (name.equals("getState")) {
+                    if (mRinging.isRinging()) return PhoneConstants.State.RINGING;
+                    if (!mForeground.isIdle() || !mBackground.isIdle()) {
+                        return PhoneConstants.State.OFFHOOK;
+                    }
+                    return PhoneConstants.State.IDLE;
+                }
+                if (name.equals("equals")) return proxy == args[0];
+                if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                if (name.equals("toString")) return "FakePhone";
+
+                final Class<?> type = method.getReturnType();
+                if (type == boolean.class) return false;
+                if (type == int.class) return 0;
+                if (type == long.class) return 0L;
+                return null;
+            }
+        });
+    }
+
+    private void runOnThread(final Runnable runnable) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final RuntimeException[] failure = new RuntimeException[1];
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private static Message phoneStateChanged(Object result) {
+        Message msg = Message.obtain();
+        msg.what = CallStateMonitor.PHONE_STATE_CHANGED;
+        msg.obj = new AsyncResult(null, result, null);
+        return msg;
+    }
+
+    /**
+     * Sends a phone state change for the current telephony state to both modelers and checks
+     * that they agree.
+     */
+    private void sendStateChanged(final String step) throws Exception {
+        runOnThread(new Runnable() {
+            @Override
+            public void run() {
+                mModeler.handleMessage(phoneStateChanged(mPhone));
+                // Without a Phone in the result the modeler cannot skip.
+                mReference.handleMessage(phoneStateChanged(null));
+
+                final List<Call> calls = sorted(mModeler.getFullList());
+                final List<Call> expected = sorted(mReference.getFullList());
+                assertEquals(step, expected.size(), calls.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertSameCall(step, expected.get(i), calls.get(i));
+                }
+            }
+        });
+    }
+
+    private static List<Call> sorted(List<Call> calls) {
+        final List<Call> copy = new ArrayList<Call>(calls);
+        Collections.sort(copy, new Comparator<Call>() {
+            @Override
+            public int compare(Call lhs, Call rhs) {
+                return lhs.getCallId() - rhs.getCallId();
+            }
+        });
+        return copy;
+    }
+
+    private static void assertSameCall(String step, Call expected, Call actual) {
+        final String message = step + ": " + expected + " vs " + actual;
+        assertEquals(message, expected.getCallId(), actual.getCallId());
+        assertEquals(message, expected.getState(), actual.getState());
+        assertEquals(message, expected.getNumber(), actual.getNumber());
+        assertEquals(message, expected.getNumberPresentation(), actual.getNumberPresentation());
+        assertEquals(message, expected.getCnapName(), actual.getCnapName());
+        assertEquals(message, expected.getCapabilities(), actual.getCapabilities());
+        assertEquals(message, expected.getConnectTime(), actual.getConnectTime());
+        assertEquals(message, expected.getDisconnectCause(), actual.getDisconnectCause());
+        assertEquals(message, expected.getChildCallIds(), actual.getChildCallIds());
+        assertEquals(message, expected.getGatewayNumber(), actual.getGatewayNumber());
+        assertEquals(message, expected.getGatewayPackage(), actual.getGatewayPackage());
+    }
+
+    private static void add(FakeCall call, FakeConnection connection) {
+        connection.call = call;
+        call.connections.add(connection);
+    }
+
+    private static void move(FakeConnection connection, FakeCall to) {
+        connection.call.connections.remove(connection);
+        add(to, connection);
+    }
+
+    @LargeTest
+    public void testSkippedUpdatesMatchFullRescan() throws Exception {
+        final FakeConnection first = new FakeConnection(NUMBER, 1000);
+        final FakeConnection second = new FakeConnection(NUMBER2, 2000);
+        try {
+            add(mForeground, first);
+            mForeground.callState = State.DIALING;
+            sendStateChanged("dialing");
+            sendStateChanged("dialing, repeated");
+
+            mForeground.callState = State.ALERTING;
+            sendStateChanged("alerting");
+            sendStateChanged("alerting, repeated");
+
+            mForeground.callState = State.ACTIVE;
+            first.connectTime = 5000;
+            sendStateChanged("active");
+            sendStateChanged("active, repeated");
+
+            // Changes that come without a call state change.
+            first.cnapName = "CNAP NAME";
+            sendStateChanged("cnap name");
+            CallGatewayManager.getInstance().setGatewayInfoForConnection(first,
+                    new RawGatewayInfo("com.example.gateway", Uri.parse("tel:5551000"), NUMBER));
+            sendStateChanged("gateway");
+            sendStateChanged("gateway, repeated");
+
+            // Hold the first call and dial a second one.
+            move(first, mBackground);
+            mBackground.callState = State.HOLDING;
+            add(mForeground, second);
+            mForeground.callState = State.DIALING;
+            sendStateChanged("second dialing");
+
+            mForeground.callState = State.ACTIVE;
+            second.connectTime = 9000;
+            sendStateChanged("second active");
+            sendStateChanged("second active, repeated");
+
+            // Swap, which moves the calls without changing any connection.
+            move(first, mForeground);
+            move(second, mBackground);
+            mBackground.callState = State.HOLDING;
+            sendStateChanged("swapped");
+            sendStateChanged("swapped, repeated");
+
+            // Merge: only the ability to swap and merge changes for the held call.
+            move(second, mForeground);
+            mBackground.callState = State.IDLE;
+            sendStateChanged("merged");
+            sendStateChanged("merged, repeated");
+
+            second.state = State.DISCONNECTED;
+            second.cause = DisconnectCause.NORMAL;
+            sendStateChanged("second disconnected");
+            mForeground.connections.remove(second);
+            sendStateChanged("second removed");
+            sendStateChanged("second removed, repeated");
+
+            first.state = State.DISCONNECTED;
+            first.cause = DisconnectCause.NORMAL;
+            mForeground.callState = State.DISCONNECTED;
+            sendStateChanged("first disconnected");
+            mForeground.connections.remove(first);
+            mForeground.callState = State.IDLE;
+            sendStateChanged("idle");
+            sendStateChanged("idle, repeated");
+        } finally {
+            CallGatewayManager.getInstance().clearGatewayData(first);
+        }
+    }
+
+    /**
+     * Returns how long the modeler takes to handle the given number of phone state changes, in
+     * nanoseconds, with nothing changing in between.
+     */
+    private long timeStateChanges(final CallModeler modeler, final Phone phone, final int count)
+            throws Exception {
+        final long[] elapsed = new long[1];
+        runOnThread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    modeler.handleMessage(phoneStateChanged(phone));
+                }
+                elapsed[0] = System.nanoTime() - start;
+            }
+        });
+        return elapsed[0];
+    }
+
+    @LargeTest
+    public void testSkippedUpdateIsCheaperThanRescan() throws Exception {
+        // A conference of two held, and a third call active.
+        final FakeConnection first = new FakeConnection(NUMBER, 1000);
+        final FakeConnection second = new FakeConnection(NUMBER2, 2000);
+        final FakeConnection third = new FakeConnection(NUMBER3, 3000);
+        add(mBackground, first);
+        add(mBackground, second);
+        mBackground.callState = State.HOLDING;
+        add(mForeground, third);
+        mForeground.callState = State.ACTIVE;
+        sendStateChanged("conference held, third active");
+
+        timeStateChanges(mModeler, mPhone, TIMED_EVENTS);
+        timeStateChanges(mReference, null, TIMED_EVENTS);
+        final long skipped = timeStateChanges(mModeler, mPhone, TIMED_EVENTS);
+        final long rescanned = timeStateChanges(mReference, null, TIMED_EVENTS);
+        Log.i(TAG, "Per phone state change: skipped " + skipped / TIMED_EVENTS + "ns, rescanned "
+                + rescanned / TIMED_EVENTS + "ns");
+        assertTrue("skipped " + skipped + "ns, rescanned " + rescanned + "ns",
+                skipped < rescanned);
+
+        // Skipping did not lose anything.
+        sendStateChanged("after timing");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class CallTracerTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        CallTracer.reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CallTracer.reset();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testSpansAreGroupedByStage() throws Exception {
+        CallTracer.record(CallTracer.STAGE_MODELER, 100);
+        CallTracer.record(CallTracer.STAGE_COMMAND_DTMF, 200);
+        CallTracer.record(CallTracer.STAGE_MODELER, 50);
+
+        final long[][] durations = CallTracer.snapshot();
+        assertEquals(2, durations[CallTracer.STAGE_MODELER].length);
+        assertEquals(50, durations[CallTracer.STAGE_MODELER][0]);
+        assertEquals(100, durations[CallTracer.STAGE_MODELER][1]);
+        assertEquals(1, durations[CallTracer.STAGE_COMMAND_DTMF].length);
+        assertEquals(0, durations[CallTracer.STAGE_MONITOR_QUEUE].length);
+    }
+
+    @SmallTest
+    public void testPercentiles() throws Exception {
+        for (int i = 1; i <= 100; i++) {
+            CallTracer.record(CallTracer.STAGE_EVENT_TO_UI, i);
+        }
+
+        final long[] sorted = CallTracer.snapshot()[CallTracer.STAGE_EVENT_TO_UI];
+        assertEquals(50, CallTracer.percentile(sorted, 50));
+        assertEquals(99, CallTracer.percentile(sorted, 99));
+        assertEquals(0, CallTracer.percentile(new long[0], 50));
+    }
+
+    @SmallTest
+    public void testBufferKeepsMostRecentSpans() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            CallTracer.record(CallTracer.STAGE_MODELER, 1);
+        }
+        for (int i = 0; i < 10; i++) {
+            CallTracer.record(CallTracer.STAGE_PROXY_BINDER, 1);
+        }
+
+        final long[][] durations = CallTracer.snapshot();
+        assertEquals(10, durations[CallTracer.STAGE_PROXY_BINDER].length);
+        assertTrue(durations[CallTracer.STAGE_MODELER].length < 10000);
+    }
+
+    @SmallTest
+    public void testEndIgnoresUnstartedSpan() throws Exception {
+        CallTracer.end(CallTracer.STAGE_MODELER, 0);
+        assertEquals(0, CallTracer.snapshot()[CallTracer.STAGE_MODELER].length);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+// Replays call state changes and CLCC requests against ClccIndex and against the algorithm
+// BluetoothPhoneService.listCurrentCallsGsm() used to run on every request, and checks that
+// both assign the same indexes.
+public class ClccIndexTest extends AndroidTestCase {
+
+    private static final int MAX_CONNECTIONS = 6;
+
+    /**
+     * The index assignment formerly done from scratch for each CLCC request, with connections
+     * represented by their creation time.
+     */
+    private static class ReferenceIndex {
+        final long[] mClccTimestamps = new long[MAX_CONNECTIONS];
+        final boolean[] mClccUsed = new boolean[MAX_CONNECTIONS];
+        final Long[] mClccConnections = new Long[MAX_CONNECTIONS];
+
+        void listCurrentCalls(List<Long> connections) {
+            LinkedList<Long> newConnections = new LinkedList<Long>();
+            for (int i = 0; i < MAX_CONNECTIONS; i++) {
+                mClccConnections[i] = null;
+            }
+
+            // Mark connections that we already known about
+            boolean clccUsed[] = new boolean[MAX_CONNECTIONS];
+            for (int i = 0; i < MAX_CONNECTIONS; i++) {
+                clccUsed[i] = mClccUsed[i];
+                mClccUsed[i] = false;
+            }
+            for (Long c : connections) {
+                boolean found = false;
+                long timestamp = c;
+                for (int i = 0; i < MAX_CONNECTIONS; i++) {
+                    if (clccUsed[i] && timestamp == mClccTimestamps[i]) {
+                        mClccUsed[i] = true;
+                        found = true;
+                        mClccConnections[i] = c;
+                        break;
+                    }
+                }
+                if (!found) {
+                    newConnections.add(c);
+                }
+            }
+
+            // Find a CLCC index for new connections
+            while (!newConnections.isEmpty()) {
+                // Find lowest empty index
+                int i = 0;
+                while (mClccUsed[i]) i++;
+                // Find earliest connection
+                long earliestTimestamp = newConnections.get(0);
+                Long earliestConnection = newConnections.get(0);
+                for (int j = 0; j < newConnections.size(); j++) {
+                    long timestamp = newConnections.get(j);
+                    if (timestamp < earliestTimestamp) {
+                        earliestTimestamp = timestamp;
+                        earliestConnection = newConnections.get(j);
+                    }
+                }
+
+                // update
+                mClccUsed[i] = true;
+                mClccTimestamps[i] = earliestTimestamp;
+                mClccConnections[i] = earliestConnection;
+                newConnections.remove(earliestConnection);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testNewConnectionsTakeLowestFreeIndexEarliestFirst() throws Exception {
+        final ClccIndex<Long> index = new ClccIndex<Long>(MAX_CONNECTIONS);
+        report(index, 300L, 100L, 200L);
+        index.commit();
+        assertEquals(Long.valueOf(100L), index.get(0));
+        assertEquals(Long.valueOf(200L), index.get(1));
+        assertEquals(Long.valueOf(300L), index.get(2));
+
+        // 200 goes away and 400 shows up: 400 takes the freed index, the others keep theirs.
+        report(index, 100L, 300L, 400L);
+        index.commit();
+        assertEquals(Long.valueOf(100L), index.get(0));
+        assertEquals(Long.valueOf(400L), index.get(1));
+        assertEquals(Long.valueOf(300L), index.get(2));
+        assertNull(index.get(3));
+    }
+
+    @SmallTest
+    public void testIndexesOnlyChangeOnCommit() throws Exception {
+        final ClccIndex<Long> index = new ClccIndex<Long>(MAX_CONNECTIONS);
+        report(index, 100L, 200L);
+        index.commit();
+
+        // 100 ends and 300 starts while 200 still holds index 1; 300 must not be placed until
+        // the next request, where index 0 is free again.
+        report(index, 200L);
+        report(index, 200L, 300L);
+        assertEquals(Long.valueOf(100L), index.get(0));
+        index.commit();
+        assertEquals(Long.valueOf(300L), index.get(0));
+        assertEquals(Long.valueOf(200L), index.get(1));
+    }
+
+    @SmallTest
+    public void testReplayMatchesReferenceAlgorithm() throws Exception {
+        final Random random = new Random(0);
+        for (int run = 0; run < 200; run++) {
+            replay(random, 100);
+        }
+    }
+
+    // HELPERS
+
+    private static void report(ClccIndex<Long> index, Long... connections) {
+        index.clearLive();
+        for (Long c : connections) {
+            index.addLive(c, c);
+        }
+    }
+
+    /**
+     * Adds and removes random connections, polling CLCC in between, and compares every
+     * response with the reference algorithm.
+     */
+    private void replay(Random random, int steps) {
+        final ClccIndex<Long> index = new ClccIndex<Long>(MAX_CONNECTIONS);
+        final ReferenceIndex reference = new ReferenceIndex();
+        final List<Long> live = new ArrayList<Long>();
+        long now = 1000;
+
+        for (int step = 0; step < steps; step++) {
+            final int action = random.nextInt(4);
+            if (action == 0 && live.size() < MAX_CONNECTIONS) {
+                // Creation times are not always reported in order (e.g. a waiting call
+                // racing an outgoing one).
+                now += 1 + random.nextInt(10);
+                live.add(random.nextInt(4) == 0 ? now - 5 : now);
+            } else if (action == 1 && !live.isEmpty()) {
+                live.remove(random.nextInt(live.size()));
+            } else if (action == 2) {
+                index.clearLive();
+                for (Long c : live) {
+                    index.addLive(c, c);
+                }
+                continue;
+            }
+
+            // Every change is followed by a call state change.
+            index.clearLive();
+            for (Long c : live) {
+                index.addLive(c, c);
+            }
+
+            if (random.nextBoolean()) {
+                index.commit();
+                reference.listCurrentCalls(live);
+                for (int i = 0; i < MAX_CONNECTIONS; i++) {
+                    assertEquals("step " + step + " index " + i,
+                            reference.mClccConnections[i], index.get(i));
+                }
+            }
+        }
+    }
+}
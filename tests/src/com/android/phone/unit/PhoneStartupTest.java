@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone;
+
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PhoneStartupTest extends AndroidTestCase {
+
+    // Names of the steps that have run, in the order they ran.
+    private final List<String> mRan = new ArrayList<String>();
+
+    /**
+     * Returns a step that records that it ran, and on which thread.
+     */
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                final boolean main = Looper.myLooper() == Looper.getMainLooper();
+                synchronized (mRan) {
+                    mRan.add(name + (main ? "@main" : "@background"));
+                }
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private List<String> ran() {
+        synchronized (mRan) {
+            return new ArrayList<String>(mRan);
+        }
+    }
+
+    private static String dump(PhoneStartup startup) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        startup.dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    @SmallTest
+    public void testStepsWaitForTheirDependencies() throws Exception {
+        final PhoneStartup startup = new PhoneStartup();
+        final CountDownLatch done = new CountDownLatch(1);
+        startup.mark("Critical");
+        startup.background("Load", record("Load"));
+        startup.defer("Early", record("Early"));
+        startup.defer("Create", record("Create"), "Load", "Early");
+        startup.background("Index", record("Index"), "Create");
+        startup.defer("Done", countDown(done), "Index", "Critical");
+
+        // Nothing runs before the critical path is done.
+        Thread.sleep(50);
+        assertTrue(ran().isEmpty());
+
+        startup.finishCriticalPath();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        final List<String> ran = ran();
+        assertEquals(4, ran.size());
+        assertTrue(ran.contains("Load@background"));
+        assertTrue(ran.contains("Early@main"));
+        assertEquals("Create@main", ran.get(2));
+        assertEquals("Index@background", ran.get(3));
+    }
+
+    @SmallTest
+    public void testStepDeclaredLateRunsWhenReady() throws Exception {
+        final PhoneStartup startup = new PhoneStartup();
+        final CountDownLatch first = new CountDownLatch(1);
+        startup.defer("First", countDown(first));
+        startup.finishCriticalPath();
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch late = new CountDownLatch(1);
+        startup.background("Late", countDown(late), "First");
+        assertTrue(late.await(5, TimeUnit.SECONDS));
+    }
+
+    @SmallTest
+    public void testFailedStepStillReleasesDependents() throws Exception {
+        final PhoneStartup startup = new PhoneStartup();
+        final CountDownLatch done = new CountDownLatch(2);
+        startup.background("Broken", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("failing on purpose");
+            }
+        });
+        startup.defer("AfterBroken", countDown(done), "Broken");
+        startup.background("AfterBrokenInBackground", countDown(done), "Broken");
+        startup.finishCriticalPath();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        final String dump = dump(startup);
+        assertTrue(dump, dump.contains("failed"));
+    }
+
+    @SmallTest
+    public void testUnknownAndDuplicateStepsAreRejected() {
+        final PhoneStartup startup = new PhoneStartup();
+        startup.mark("Critical");
+        try {
+            startup.defer("Orphan", record("Orphan"), "Missing");
+            fail("Depending on an unknown step should fail");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            startup.defer("Critical", record("Critical"));
+            fail("Declaring a step twice should fail");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
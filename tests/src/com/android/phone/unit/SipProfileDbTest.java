@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Need to be in this package to access package methods.
+package com.android.phone.sip;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.net.sip.SipProfile;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+public class SipProfileDbTest extends AndroidTestCase {
+
+    private static final byte[] GARBAGE = { 0, 0, 0, 1, 0, 0, 0, 7, 42 };
+    private static final int CALLING_UID = 10042;
+
+    private File mFilesDir;
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFilesDir = new File(getContext().getCacheDir(), "sip_profile_db_test");
+        deleteFile(mFilesDir);
+        mFilesDir.mkdirs();
+        // Keeps the profiles and their preferences away from those of the phone.
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public File getFilesDir() {
+                return mFilesDir;
+            }
+
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                return super.getSharedPreferences("sip_profile_db_test_" + name,
+                        Context.MODE_PRIVATE);
+            }
+        };
+        SipProfileDb.clearLoadedProfiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SipProfileDb.clearLoadedProfiles();
+        deleteFile(mFilesDir);
+        super.tearDown();
+    }
+
+    private static void deleteFile(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteFile(child);
+        }
+        file.delete();
+    }
+
+    private static SipProfile newProfile(String name) throws Exception {
+        SipProfile profile = new SipProfile.Builder("alice", "sip.example.com")
+                .setProfileName(name)
+                .setPort(5070)
+                .setProtocol("TCP")
+                .setOutboundProxy("proxy.example.com")
+                .setAuthUserName("alice-auth")
+                .setPassword("secret")
+                .setDisplayName("Alice " + name)
+                .setSendKeepAlive(true)
+                .setAutoRegistration(false)
+                .build();
+        profile.setCallingUid(CALLING_UID);
+        return profile;
+    }
+
+    /**
+     * Loads the profiles the way a newly started process would.
+     */
+    private List<SipProfile> reload() {
+        SipProfileDb.clearLoadedProfiles();
+        return new SipProfileDb(mContext).retrieveSipProfileList();
+    }
+
+    private static void assertSameProfile(SipProfile expected, SipProfile actual) {
+        assertEquals(expected.getProfileName(), actual.getProfileName());
+        assertEquals(expected.getUriString(), actual.getUriString());
+        assertEquals(expected.getUserName(), actual.getUserName());
+        assertEquals(expected.getSipDomain(), actual.getSipDomain());
+        assertEquals(expected.getPort(), actual.getPort());
+        assertEquals(expected.getProtocol(), actual.getProtocol());
+        assertEquals(expected.getProxyAddress(), actual.getProxyAddress());
+        assertEquals(expected.getAuthUserName(), actual.getAuthUserName());
+        assertEquals(expected.getPassword(), actual.getPassword());
+        assertEquals(expected.getDisplayName(), actual.getDisplayName());
+        assertEquals(expected.getSendKeepAlive(), actual.getSendKeepAlive());
+        assertEquals(expected.getAutoRegistration(), actual.getAutoRegistration());
+        assertEquals(expected.getCallingUid(), actual.getCallingUid());
+    }
+
+    private void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeOldProfile(String dir, Object profile) throws IOException {
+        File profileDir = new File(mFilesDir, "profiles/" + dir);
+        profileDir.mkdirs();
+        File file = new File(profileDir, ".pobj");
+        if (profile == null) {
+            writeFile(file, GARBAGE);
+            return;
+        }
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        try {
+            out.writeObject(profile);
+        } finally {
+            out.close();
+        }
+    }
+
+    @SmallTest
+    public void testProfilesRoundTrip() throws Exception {
+        SipProfile first = newProfile("first");
+        // Optional fields left out.
+        SipProfile second = new SipProfile.Builder("bob", "sip.example.org")
+                .setProfileName("second")
+                .build();
+        SipProfileDb db = new SipProfileDb(mContext);
+        db.saveProfile(first);
+        db.saveProfile(second);
+
+        List<SipProfile> profiles = reload();
+        assertEquals(2, profiles.size());
+        assertSameProfile(first, profiles.get(0));
+        assertSameProfile(second, profiles.get(1));
+        assertEquals(2, new SipProfileDb(mContext).getProfilesCount());
+        assertSameProfile(second,
+                new SipProfileDb(mContext).getProfileFromUri(second.getUriString()));
+
+        new SipProfileDb(mContext).deleteProfile(first);
+        profiles = reload();
+        assertEquals(1, profiles.size());
+        assertSameProfile(second, profiles.get(0));
+    }
+
+    @SmallTest
+    public void testVersion1FileIsRead() throws Exception {
+        // The file as the first version wrote it, without the calling uid.
+        DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(mFilesDir, "sip_profiles")));
+        try {
+            out.writeInt(1);
+            out.writeInt(1);
+            for (String s : new String[] { "first", "alice", "sip.example.com" }) {
+                out.writeBoolean(true);
+                out.writeUTF(s);
+            }
+            out.writeInt(5060);
+            out.writeBoolean(true);
+            out.writeUTF("UDP");
+            for (int i = 0; i < 4; i++) out.writeBoolean(false);
+            out.writeBoolean(true);
+            out.writeBoolean(true);
+        } finally {
+            out.close();
+        }
+
+        List<SipProfile> profiles = reload();
+        assertEquals(1, profiles.size());
+        SipProfile p = profiles.get(0);
+        assertEquals("first", p.getProfileName());
+        assertEquals("alice", p.getUserName());
+        assertEquals(5060, p.getPort());
+        assertEquals(0, p.getCallingUid());
+
+        // Saved again in the current version.
+        new SipProfileDb(mContext).saveProfile(newProfile("second"));
+        profiles = reload();
+        assertEquals(2, profiles.size());
+        assertEquals(CALLING_UID, profiles.get(1).getCallingUid());
+    }
+
+    @SmallTest
+    public void testCorruptFileIsKept() throws Exception {
+        writeFile(new File(mFilesDir, "sip_profiles"), GARBAGE);
+
+        SipProfileDb db = new SipProfileDb(mContext);
+        assertEquals(0, db.retrieveSipProfileList().size());
+        db.saveProfile(newProfile("new"));
+
+        File kept = null;
+        for (File file : mFilesDir.listFiles()) {
+            if (file.getName().startsWith("sip_profiles.corrupt")) kept = file;
+        }
+        assertNotNull(kept);
+        assertEquals(GARBAGE.length, kept.length());
+        assertEquals(1, reload().size());
+    }
+
+    @SmallTest
+    public void testOldProfilesAreMigrated() throws Exception {
+        SipProfile first = newProfile("first");
+        writeOldProfile("first", first);
+
+        List<SipProfile> profiles = reload();
+        assertEquals(1, profiles.size());
+        assertSameProfile(first, profiles.get(0));
+        assertFalse(new File(mFilesDir, "profiles").exists());
+
+        profiles = reload();
+        assertEquals(1, profiles.size());
+    }
+
+    @SmallTest
+    public void testOldProfilesAreKeptWhenOneFails() throws Exception {
+        writeOldProfile("first", newProfile("first"));
+        writeOldProfile("broken", null);
+
+        List<SipProfile> profiles = reload();
+        assertEquals(1, profiles.size());
+        assertTrue(new File(mFilesDir, "profiles/broken/.pobj").exists());
+        assertTrue(new File(mFilesDir, "profiles/first/.pobj").exists());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.internal.telephony.ITelephony;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures the throughput of the hot ITelephony getters over binder, with several threads
+// polling them at once the way the status bar and apps do.
+// Run with: adb shell am instrument -w -e class com.android.phone.TelephonyGetterBenchmark \
+//     com.android.phone.tests/android.test.InstrumentationTestRunner
+public class TelephonyGetterBenchmark extends AndroidTestCase {
+    private static final String TAG = "TelephonyGetterBenchmark";
+
+    private static final long DURATION_MILLIS = 3000;
+
+    @LargeTest
+    public void testGetterThroughput() throws Exception {
+        final ITelephony telephony =
+                ITelephony.Stub.asInterface(ServiceManager.getService("phone"));
+        assertNotNull(telephony);
+
+        for (int threads : new int[] { 1, 4, 16 }) {
+            runGetters(telephony, threads);
+        }
+    }
+
+    private void runGetters(final ITelephony telephony, int threads) throws Exception {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] deadline = new long[1];
+
+        for (int i = 0; i < threads; i++) {
+            new Thread(TAG + i) {
+                @Override
+                public void run() {
+                    long count = 0;
+                    try {
+                        start.await();
+                        while (SystemClock.elapsedRealtime() < deadline[0]) {
+                            telephony.getCallState();
+                            telephony.isIdle();
+                            telephony.isOffhook();
+                            telephony.isRinging();
+                            telephony.getDataState();
+                            telephony.getDataActivity();
+                            telephony.isRadioOn();
+                            count += 7;
+                        }
+                    } catch (RemoteException e) {
+                        failures.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        calls.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        deadline[0] = SystemClock.elapsedRealtime() + DURATION_MILLIS;
+        start.countDown();
+        done.await();
+        assertEquals(0, failures.get());
+
+        Log.i(TAG, threads + " threads: " + (calls.get() * 1000 / DURATION_MILLIS)
+                + " getter calls/s, " + (DURATION_MILLIS * 1000000L * threads / calls.get())
+                + "ns/call per thread");
+    }
+}